@@ -0,0 +1,345 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Correlates outstanding data requests with the data set messages that answer them.
+ * 
+ * A request is completed once the received data covers its entire address range,
+ * which may take several data set messages. Requests that are not answered within
+ * the timeout are sent again if a sender was given, up to the maximum number of
+ * retries, doubling the timeout every time. When no retries are left, the request
+ * completes exceptionally with a TimeoutException.
+ * 
+ * The timeout starts when the request is tracked, or, if the sender reports sent
+ * requests (see setTimeoutFromSend), when the request is actually sent. The latter
+ * keeps requests that wait in a transmit queue from timing out before they are sent.
+ * 
+ * Data that does not contribute to any outstanding request, such as late or
+ * duplicate replies, is counted as unmatched.
+ * 
+ * Futures are completed on the thread that delivers the data, which is the MIDI
+ * receiver thread; dependent actions should not block.
+ */
+public class DataRequestTracker {
+	
+	public static final int DEFAULT_TIMEOUT = 3000;
+	public static final int DEFAULT_MAXIMUM_RETRIES = 2;
+	
+	private List<Request> requests = new ArrayList<Request>();
+	private ScheduledExecutorService scheduler;
+	private volatile long timeout = DEFAULT_TIMEOUT;
+	private volatile boolean timeoutFromSend = false;
+	private volatile int maximumRetries = DEFAULT_MAXIMUM_RETRIES;
+	private volatile long retryCount = 0;
+	private volatile long unmatchedCount = 0;
+	
+	/**
+	 * Starts tracking a data request.
+	 * The request should be sent after calling this, so that an early reply is not missed.
+	 * @param address The start address of the requested data.
+	 * @param length The length of the requested data.
+	 * @return A future that completes with the requested data.
+	 */
+	public CompletableFuture<byte[]> track(Address address, int length) {
+		return track(address, length, null);
+	}
+	
+	/**
+	 * Starts tracking a data request, which is sent again when it times out.
+	 * The request should be sent after calling this, so that an early reply is not missed.
+	 * @param address The start address of the requested data.
+	 * @param length The length of the requested data.
+	 * @param sender Sends the request again, or null to not retry. Runs on the timeout thread.
+	 * @return A future that completes with the requested data.
+	 */
+	public CompletableFuture<byte[]> track(Address address, int length, Runnable sender) {
+		if (length <= 0)
+			throw new IllegalArgumentException("Length must be positive.");
+		
+		Request request = new Request(address, length, sender);
+		synchronized (this) {
+			requests.add(request);
+			request.timeout = timeout;
+			if (timeoutFromSend)
+				request.unsent = true;
+			else
+				scheduleTimeout(request);
+		}
+		return request.future;
+	}
+	
+	/**
+	 * Starts the timeout of the oldest tracked request for the given range that was not
+	 * sent yet. Only has effect if the timeout starts from the send time.
+	 * @param address The start address of the sent request.
+	 * @param length The length of the sent request.
+	 */
+	public synchronized void requestSent(Address address, int length) {
+		for (Request request : requests) {
+			if (request.unsent && request.address.equals(address) && request.data.length == length) {
+				request.unsent = false;
+				scheduleTimeout(request);
+				return;
+			}
+		}
+	}
+	
+	private synchronized void scheduleTimeout(final Request request) {
+		if (request.timeout <= 0)
+			return;
+		if (scheduler == null)
+			scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+		request.timeoutTask = scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				timedOut(request);
+			}
+		}, request.timeout, TimeUnit.MILLISECONDS);
+	}
+	
+	private void timedOut(Request request) {
+		synchronized (this) {
+			if (!requests.contains(request))
+				return;
+			if (request.sender == null || request.retries >= maximumRetries) {
+				requests.remove(request);
+				request.future.completeExceptionally(new TimeoutException("Data request timed out: " + request.address));
+				return;
+			}
+			request.retries++;
+			request.timeout *= 2;
+			retryCount++;
+			if (timeoutFromSend)
+				request.unsent = true;
+			else
+				scheduleTimeout(request);
+		}
+		try {
+			request.sender.run();
+		} catch (RuntimeException e) {
+			if (remove(request)) {
+				request.timeoutTask.cancel(false);
+				request.future.completeExceptionally(e);
+			}
+		}
+	}
+	
+	/**
+	 * Processes received data, completing the requests whose data is now complete.
+	 * @param address The start address of the received data.
+	 * @param data The received data.
+	 * @return False if the data did not contribute to any outstanding request.
+	 */
+	public boolean receive(Address address, byte[] data) {
+		return receive(address, ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * Processes received data, completing the requests whose data is now complete.
+	 * @param address The start address of the received data.
+	 * @param data The buffer whose remaining bytes are the received data. Its position is not modified.
+	 * @return False if the data did not contribute to any outstanding request.
+	 */
+	public boolean receive(Address address, ByteBuffer data) {
+		List<Request> completed = new ArrayList<Request>();
+		boolean matched = false;
+		synchronized (this) {
+			Iterator<Request> iterator = requests.iterator();
+			while (iterator.hasNext()) {
+				Request request = iterator.next();
+				int remaining = request.remaining;
+				if (request.receive(address.getValue(), data)) {
+					iterator.remove();
+					completed.add(request);
+				}
+				if (request.remaining < remaining)
+					matched = true;
+			}
+			if (!matched)
+				unmatchedCount++;
+		}
+		for (Request request : completed) {
+			if (request.timeoutTask != null)
+				request.timeoutTask.cancel(false);
+			request.future.complete(request.data);
+		}
+		return matched;
+	}
+	
+	/**
+	 * Cancels all outstanding requests.
+	 */
+	public void cancelAll() {
+		List<Request> cancelled;
+		synchronized (this) {
+			cancelled = requests;
+			requests = new ArrayList<Request>();
+		}
+		for (Request request : cancelled) {
+			if (request.timeoutTask != null)
+				request.timeoutTask.cancel(false);
+			request.future.cancel(false);
+		}
+	}
+	
+	/**
+	 * Returns the number of requests that are waiting for data.
+	 * @return The number of outstanding requests.
+	 */
+	public synchronized int getPendingCount() {
+		return requests.size();
+	}
+	
+	/**
+	 * Returns the time after which a request is first retried or fails.
+	 * @return The timeout in milliseconds.
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * Sets the time after which a request is first retried or fails.
+	 * Applies to requests that are tracked after this call.
+	 * @param milliseconds The timeout in milliseconds, or 0 to wait indefinitely.
+	 */
+	public void setTimeout(long milliseconds) {
+		if (milliseconds < 0)
+			throw new IllegalArgumentException("Timeout must not be negative.");
+		timeout = milliseconds;
+	}
+	
+	/**
+	 * Returns whether the timeout starts when a request is reported as sent.
+	 * @return True if the timeout starts from the send time.
+	 */
+	public boolean isTimeoutFromSend() {
+		return timeoutFromSend;
+	}
+	
+	/**
+	 * Sets whether the timeout starts when a request is reported as sent through
+	 * requestSent(), rather than when it is tracked. Applies to requests that are
+	 * tracked after this call.
+	 * @param fromSend True to start the timeout from the send time.
+	 */
+	public void setTimeoutFromSend(boolean fromSend) {
+		timeoutFromSend = fromSend;
+	}
+	
+	/**
+	 * Returns the number of times a request is sent again before it fails.
+	 * @return The maximum number of retries.
+	 */
+	public int getMaximumRetries() {
+		return maximumRetries;
+	}
+	
+	/**
+	 * Sets the number of times a request is sent again before it fails.
+	 * @param retries The maximum number of retries, or 0 to not retry.
+	 */
+	public void setMaximumRetries(int retries) {
+		if (retries < 0)
+			throw new IllegalArgumentException("Retries must not be negative.");
+		maximumRetries = retries;
+	}
+	
+	/**
+	 * Returns the number of times a request was sent again because it timed out.
+	 * @return The number of retries.
+	 */
+	public long getRetryCount() {
+		return retryCount;
+	}
+	
+	/**
+	 * Returns the number of times that received data did not contribute to any
+	 * outstanding request, for example because it was a late or duplicate reply.
+	 * @return The number of unmatched replies.
+	 */
+	public long getUnmatchedCount() {
+		return unmatchedCount;
+	}
+	
+	private synchronized boolean remove(Request request) {
+		return requests.remove(request);
+	}
+	
+	private static class Request {
+		
+		private Address address;
+		private byte[] data;
+		private boolean[] received;
+		private int remaining;
+		private CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		private ScheduledFuture<?> timeoutTask;
+		private Runnable sender;
+		private long timeout;
+		private boolean unsent = false;
+		private int retries = 0;
+		
+		public Request(Address address, int length, Runnable sender) {
+			this.address = address;
+			this.sender = sender;
+			this.data = new byte[length];
+			this.received = new boolean[length];
+			this.remaining = length;
+		}
+		
+		/**
+		 * Copies the overlapping part of the received data.
+		 * @return True if the request is now complete.
+		 */
+		public boolean receive(int start, ByteBuffer bytes) {
+			int offset = start - address.getValue() - bytes.position();
+			int from = Math.max(0, offset + bytes.position());
+			int to = Math.min(data.length, offset + bytes.limit());
+			for (int i = from; i < to; i++) {
+				data[i] = bytes.get(i - offset);
+				if (!received[i]) {
+					received[i] = true;
+					remaining--;
+				}
+			}
+			return from < to && remaining == 0;
+		}
+		
+	}
+	
+	private static class DaemonThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Data request timeout");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+}
@@ -15,14 +15,28 @@
  */
 package nl.grauw.gaia;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
 import nl.grauw.gaia.Address.AddressException;
 import nl.grauw.gaia.Note.NoteName;
 import nl.grauw.gaia.Parameters.ParameterChange;
 import nl.grauw.gaia.Parameters.ParameterChangeListener;
-import nl.grauw.gaia.Patch.PatchChangeListener;
+import nl.grauw.gaia.midi.DebouncingMidiTransmitter;
+import nl.grauw.gaia.midi.JavaMidiConnection;
+import nl.grauw.gaia.midi.LinkProfile;
+import nl.grauw.gaia.midi.MessageDispatcher;
+import nl.grauw.gaia.midi.MessageDispatcher.Handler;
 import nl.grauw.gaia.midi.MidiConnection;
 import nl.grauw.gaia.midi.MidiReceiver;
-import nl.grauw.gaia.midi.MidiTransmitter;
+import nl.grauw.gaia.midi.PendingWriteQueue;
+import nl.grauw.gaia.midi.QueuedMidiTransmitter;
+import nl.grauw.gaia.midi.RedundancyFilter;
 import nl.grauw.gaia.midi.messages.ControlChangeMessage;
 import nl.grauw.gaia.midi.messages.DataRequest1;
 import nl.grauw.gaia.midi.messages.DataSet1;
@@ -31,6 +45,7 @@ import nl.grauw.gaia.midi.messages.IdentityRequest;
 import nl.grauw.gaia.midi.messages.Message;
 import nl.grauw.gaia.midi.messages.NoteOffMessage;
 import nl.grauw.gaia.midi.messages.NoteOnMessage;
+import nl.grauw.gaia.midi.messages.ParameterControlChangeMessage;
 import nl.grauw.gaia.midi.messages.ProgramChangeMessage;
 import nl.grauw.gaia.midi.messages.ControlChangeMessage.Controller;
 import nl.grauw.gaia.parameters.System;
@@ -55,18 +70,40 @@ import nl.grauw.gaia.tool.mvc.Observable;
 public class Gaia extends Observable implements ParameterChangeListener, MidiReceiver {
 	
 	private boolean opened = false;
-	private boolean identityConfirmed = false;
+	private volatile boolean identityConfirmed = false;
+	
+	private PendingWriteQueue pendingWrites;
+	private QueuedMidiTransmitter transmitter;
+	private RedundancyFilter redundancyFilter;
+	private DebouncingMidiTransmitter debouncer;
+	private LinkProfile linkProfile = new LinkProfile();
+	private DataRequestTracker requestTracker = new DataRequestTracker();
+	private WriteVerifier writeVerifier = new WriteVerifier(this);
+	private volatile boolean verifyWrites = false;
+	private volatile boolean sendControlChanges = false;
+	private MessageDispatcher dispatcher = new MessageDispatcher();
+	private volatile long duplicateCount = 0;
 	
-	private MidiTransmitter transmitter;
+	/**
+	 * Receives the messages that other inputs merge into the GAIA output.
+	 */
+	private MidiReceiver mergeReceiver = new MidiReceiver() {
+		@Override
+		public void receive(Message message) {
+			updateRedundancyFilter(message);
+		}
+	};
 	
-	private int device_id = 0;
+	private volatile int device_id = 0;
 	
+	final static int BROADCAST_DEVICE = 0x7F;
 	final static int synth_channel = 0;
 	final static int gm_channel = 1;
 	
 	final static Note C_4 = new Note(NoteName.C, 4);
 	
 	private Log log;
+	private MidiConnection connection;
 	
 	private System system;
 	private TemporaryPatch temporaryPatch;
@@ -74,8 +111,24 @@ public class Gaia extends Observable implements ParameterChangeListener, MidiRec
 	
 	public Gaia(Log log, MidiConnection connection) {
 		this.log = log;
-		this.transmitter = connection.getMidiTransmitter();
+		this.connection = connection;
+		this.pendingWrites = new PendingWriteQueue(connection.getMidiTransmitter(), log);
+		this.transmitter = new QueuedMidiTransmitter(pendingWrites, log);
+		this.transmitter.setLinkProfile(linkProfile);
+		this.transmitter.setSysexInterval(0);
+		this.transmitter.addRequestListener(new QueuedMidiTransmitter.RequestListener() {
+			@Override
+			public void onRequestSent(DataRequest1 request) {
+				requestTracker.requestSent(request.getAddress(), request.getSize());
+			}
+		});
+		this.requestTracker.setTimeoutFromSend(true);
+		this.redundancyFilter = new RedundancyFilter(transmitter);
+		this.debouncer = new DebouncingMidiTransmitter(redundancyFilter);
 		connection.addMidiReceiver(this);
+		if (connection instanceof JavaMidiConnection)
+			((JavaMidiConnection) connection).addMergeReceiver(mergeReceiver);
+		addMessageHandlers();
 		
 		temporaryPatch = new TemporaryPatch(this);
 		for (int bank = 0; bank < 8; bank++) {
@@ -87,7 +140,7 @@ public class Gaia extends Observable implements ParameterChangeListener, MidiRec
 	
 	public void enableTxEditData() {
 		if (system == null) {
-			send(new DataSet1(new Address(0x01, 0x00, 0x00, 0x19), new byte[] { 1 } ));
+			send(new DataSet1(getTargetDeviceID(), new Address(0x01, 0x00, 0x00, 0x19), new byte[] { 1 } ));
 		} else {
 			system.setTxEditData(true);
 		}
@@ -134,6 +187,25 @@ public class Gaia extends Observable implements ParameterChangeListener, MidiRec
 		return device_id;
 	}
 	
+	/**
+	 * Returns the device ID to address system exclusive messages to.
+	 * Until the identity is confirmed, messages are broadcast, so that any GAIA
+	 * on the port responds; after that only the confirmed GAIA is addressed.
+	 * @return The GAIA’s device ID, or the broadcast ID 7FH.
+	 */
+	public int getTargetDeviceID() {
+		int id = device_id;
+		return identityConfirmed && id >= 0x10 && id <= 0x1F ? id : BROADCAST_DEVICE;
+	}
+	
+	/**
+	 * Returns whether a message with the given device ID comes from this GAIA.
+	 * Once the identity is confirmed, messages of other GAIAs on the same port are ignored.
+	 */
+	private boolean isFromDevice(int id) {
+		return !identityConfirmed || id == device_id || id == BROADCAST_DEVICE;
+	}
+	
 	/**
 	 * Initialises the system.
 	 * @throws GaiaNotFoundException 
@@ -143,6 +215,8 @@ public class Gaia extends Observable implements ParameterChangeListener, MidiRec
 			throw new RuntimeException("GAIA is already opened.");
 		
 		opened = true;
+		transmitter.start();
+		resendPendingWrites();
 		notifyObservers("opened");
 		
 		requestIdentity();
@@ -156,6 +230,12 @@ public class Gaia extends Observable implements ParameterChangeListener, MidiRec
 	 */
 	public void close() {
 		opened = false;
+		debouncer.close();
+		pendingWrites.add(transmitter.stop());
+		pendingWrites.close();
+		redundancyFilter.clear();
+		requestTracker.cancelAll();
+		linkProfile.reset();
 		identityConfirmed = false;
 		device_id = 0;
 		
@@ -164,39 +244,199 @@ public class Gaia extends Observable implements ParameterChangeListener, MidiRec
 		notifyObservers("device_id");
 	}
 	
+	/**
+	 * Closes the system, and stops receiving messages from the connection.
+	 * Use this when the connection outlives this instance, for example because it is shared.
+	 */
+	public void dispose() {
+		if (opened)
+			close();
+		connection.removeMidiReceiver(this);
+		if (connection instanceof JavaMidiConnection)
+			((JavaMidiConnection) connection).removeMergeReceiver(mergeReceiver);
+	}
+	
+	/**
+	 * Sends the parameter writes that could not be sent before, ahead of any other message.
+	 */
+	private void resendPendingWrites() {
+		List<DataSet1> writes = pendingWrites.drain();
+		if (!writes.isEmpty()) {
+			log.log("Resending " + writes.size() + " pending writes.");
+			redundancyFilter.send(new ArrayList<Message>(writes));
+		}
+	}
+	
 	/**
 	 * Sends a MidiMessage to the GAIA.
+	 * While the GAIA is closed, data sets are kept as pending writes.
 	 * @param message
 	 */
 	public void send(Message message) {
-		if (!opened)
-			throw new RuntimeException("MIDI connection not open.");
+		if (!opened) {
+			if (!(message instanceof DataSet1))
+				throw new RuntimeException("MIDI connection not open.");
+			pendingWrites.add((DataSet1) message);
+			return;
+		}
 		
-		transmitter.send(message);
+		debouncer.send(message);
+	}
+	
+	/**
+	 * Sends a batch of MidiMessages to the GAIA.
+	 * While the GAIA is closed, batches of data sets are kept as pending writes.
+	 * @param messages
+	 */
+	public void send(List<Message> messages) {
+		if (!opened) {
+			for (Message message : messages)
+				if (!(message instanceof DataSet1))
+					throw new RuntimeException("MIDI connection not open.");
+			pendingWrites.add(messages);
+			return;
+		}
+		
+		debouncer.send(messages);
+	}
+	
+	public Log getLog() {
+		return log;
+	}
+	
+	/**
+	 * Returns the parameter writes that are sent once the GAIA is opened again.
+	 * @return The pending write queue.
+	 */
+	public PendingWriteQueue getPendingWrites() {
+		return pendingWrites;
+	}
+	
+	/**
+	 * Returns the outbound message queue.
+	 * @return The queued transmitter.
+	 */
+	public QueuedMidiTransmitter getTransmitter() {
+		return transmitter;
+	}
+	
+	/**
+	 * Returns the transmitter that limits the rate of continuous parameter edits.
+	 * @return The debouncing transmitter.
+	 */
+	public DebouncingMidiTransmitter getDebouncer() {
+		return debouncer;
+	}
+	
+	/**
+	 * Returns the filter that drops messages which would not change the device state.
+	 * @return The redundancy filter.
+	 */
+	public RedundancyFilter getRedundancyFilter() {
+		return redundancyFilter;
+	}
+	
+	/**
+	 * Returns the measured performance of the MIDI link, which paces the outbound
+	 * system exclusive messages and can estimate the duration of bulk transfers.
+	 * @return The link profile.
+	 */
+	public LinkProfile getLinkProfile() {
+		return linkProfile;
+	}
+	
+	/**
+	 * Sets whether uploaded parameters are read back, and resent if the GAIA did not apply them.
+	 * This applies to complete parameter blocks and batches, not to individual parameter edits.
+	 * @param verifyWrites True to verify writes.
+	 */
+	public void setVerifyWrites(boolean verifyWrites) {
+		this.verifyWrites = verifyWrites;
+	}
+	
+	public boolean isVerifyWrites() {
+		return verifyWrites;
+	}
+	
+	/**
+	 * Sets whether edits of tone parameters in the temporary patch are sent as control
+	 * change messages where a controller can set the exact value. A control change is
+	 * 3 bytes where a data set is 15, so realtime sweeps use less of the link.
+	 * Other edits are still sent as data sets.
+	 * @param sendControlChanges True to send control changes.
+	 */
+	public void setSendControlChanges(boolean sendControlChanges) {
+		this.sendControlChanges = sendControlChanges;
+	}
+	
+	public boolean isSendControlChanges() {
+		return sendControlChanges;
+	}
+	
+	/**
+	 * Returns the verifier that reads back uploaded parameters.
+	 * @return The write verifier.
+	 */
+	public WriteVerifier getWriteVerifier() {
+		return writeVerifier;
+	}
+	
+	/**
+	 * Returns the tracker that correlates data requests with their replies.
+	 * @return The data request tracker.
+	 */
+	public DataRequestTracker getRequestTracker() {
+		return requestTracker;
+	}
+	
+	/**
+	 * Returns the dispatcher for incoming messages, to which handlers can be added.
+	 * @return The message dispatcher.
+	 */
+	public MessageDispatcher getDispatcher() {
+		return dispatcher;
 	}
 	
 	/**
 	 * Receives an incoming MidiMessage object from the ResponseReceiver.
+	 * Data sets of other GAIAs on the same port do not update the redundancy filter.
 	 * @param message
 	 */
 	public void receive(Message message) {
-		if (message instanceof IdentityReply) {
-			confirmIdentity((IdentityReply) message);
-		} else if (message instanceof DataSet1) {
-			updateParameters((DataSet1) message);
-		} else if (message instanceof ControlChangeMessage) {
-			updateParameters((ControlChangeMessage) message);
-		} else if (message instanceof ProgramChangeMessage) {
-			temporaryPatch.clearParameters();
-		}
+		updateRedundancyFilter(message);
+		dispatcher.receive(message);
+	}
+	
+	private void updateRedundancyFilter(Message message) {
+		if (!(message instanceof DataSet1) || isFromDevice(((DataSet1) message).getDeviceId()))
+			redundancyFilter.receive(message);
+	}
+	
+	private void addMessageHandlers() {
+		dispatcher.addHandler(IdentityReply.class, new Handler<IdentityReply>() {
+			public void handle(IdentityReply message) {
+				confirmIdentity(message);
+			}
+		});
+		dispatcher.addHandler(DataSet1.class, new Handler<DataSet1>() {
+			public void handle(DataSet1 message) {
+				updateParameters(message);
+			}
+		});
+		dispatcher.addHandler(ControlChangeMessage.class, new Handler<ControlChangeMessage>() {
+			public void handle(ControlChangeMessage message) {
+				updateParameters(message);
+			}
+		});
+		dispatcher.addHandler(ProgramChangeMessage.class, new Handler<ProgramChangeMessage>() {
+			public void handle(ProgramChangeMessage message) {
+				temporaryPatch.clearParameters();
+			}
+		});
 	}
 	
 	private void confirmIdentity(IdentityReply ir) {
-		int[] familyCode = ir.getDeviceFamilyCode();
-		int[] familyNumberCode = ir.getDeviceFamilyNumberCode();
-		if (ir.getIdNumber() == 0x41 &&	// Roland ID
-				familyCode[0] == 0x41 && familyCode[1] == 0x02 &&
-				familyNumberCode[0] == 0x00 && familyNumberCode[1] == 0x00) {
+		if (ir.isGaia() && isFromDevice(ir.getDeviceId())) {
 			device_id = ir.getDeviceId();
 			identityConfirmed = true;
 			notifyObservers("identityConfirmed");
@@ -205,11 +445,42 @@ public class Gaia extends Observable implements ParameterChangeListener, MidiRec
 	}
 	
 	private void updateParameters(DataSet1 message) {
-		try {
-			updateParameters(message.getAddress(), message.getDataSet());
-		} catch (AddressException e) {
-			// s’ok, maybe there’s a new firmware
+		if (!isFromDevice(message.getDeviceId()))
+			return;
+		
+		Address address = message.getAddress();
+		ByteBuffer data = message.getDataSetBuffer();
+		if (isCurrent(address, data)) {
+			duplicateCount++;
+		} else {
+			try {
+				updateParameters(address, data);
+			} catch (AddressException e) {
+				// s’ok, maybe there’s a new firmware
+			}
 		}
+		linkProfile.dataReceived(address.getValue(), data.remaining());
+		requestTracker.receive(address, data);
+	}
+	
+	/**
+	 * Returns whether the data is a complete parameters block that is identical to
+	 * the block in the model, which has no unsent changes. Such data, typically a
+	 * late or duplicate reply, is not applied, so that the model is not rebuilt.
+	 */
+	private boolean isCurrent(Address address, ByteBuffer data) {
+		Parameters parameters = getParameters(address);
+		return parameters != null && !parameters.hasChanged() && data.remaining() == parameters.getLength() &&
+				parameters.getDataBuffer(0, parameters.getLength()).equals(data);
+	}
+	
+	/**
+	 * Returns the number of received data set messages that were not applied
+	 * because they were identical to the parameters in the model.
+	 * @return The number of dropped duplicates.
+	 */
+	public long getDuplicateCount() {
+		return duplicateCount;
 	}
 	
 	private void updateParameters(ControlChangeMessage message) {
@@ -217,10 +488,21 @@ public class Gaia extends Observable implements ParameterChangeListener, MidiRec
 	}
 	
 	public void updateParameters(Address address, byte[] data) throws AddressException {
+		updateParameters(address, ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * Updates the parameters from a buffer, without copying the data first.
+	 * @param address The start address of the data.
+	 * @param data The buffer whose remaining bytes are the data. Its position is not modified.
+	 */
+	public void updateParameters(Address address, ByteBuffer data) throws AddressException {
 		int byte1 = address.getByte1();
 		if (byte1 == 0x01 && address.getByte2() == 0x00 && address.getByte3() == 0x00) {
-			if (address.getByte4() == 0x00 && data.length >= 0x6E) {
-				system = new System(address, data);
+			if (address.getByte4() == 0x00 && data.remaining() >= 0x6E) {
+				byte[] array = new byte[data.remaining()];
+				data.duplicate().get(array);
+				system = new System(address, array);
 				system.addParameterChangeListener(this);
 				notifyObservers("system");
 			} else if (system != null) {
@@ -238,6 +520,30 @@ public class Gaia extends Observable implements ParameterChangeListener, MidiRec
 		}
 	}
 	
+	/**
+	 * Returns the parameters that start at the given address.
+	 * @param address The start address of the parameters.
+	 * @return The parameters, or null if they are not loaded.
+	 */
+	public Parameters getParameters(Address address) {
+		if (system != null && system.getAddress().equals(address))
+			return system;
+		
+		Patch patch = null;
+		if (address.getByte1() == 0x10)
+			patch = temporaryPatch;
+		else if (address.getByte1() == 0x20)
+			patch = userPatches[address.getByte2() / 8][address.getByte2() % 8];
+		
+		if (patch != null) {
+			for (Parameters parameters : patch) {
+				if (parameters != null && parameters.getAddress().equals(address))
+					return parameters;
+			}
+		}
+		return null;
+	}
+	
 	public System getSystem() {
 		return system;
 	}
@@ -302,35 +608,25 @@ public class Gaia extends Observable implements ParameterChangeListener, MidiRec
 	 * A list is output to the console log with the actual value for each control change value.
 	 */
 	public void testControlChange() {
-		if (temporaryPatch.getTone(1) == null) {
-			temporaryPatch.loadTone(1);
-			temporaryPatch.addPatchChangeListener(new PatchChangeListener() {
-				public void onPatchChange(Patch patch, String detail) {
-					if ("tones".equals(detail))
-						testControlChange();
-				}
-			});
-		} else {
-			testControlChange(0);
-		}
+		CompletableFuture<?> tone = temporaryPatch.getTone(1) == null ?
+				temporaryPatch.loadTone(1) : CompletableFuture.completedFuture(null);
+		tone.thenRun(new Runnable() {
+			public void run() {
+				testControlChange(0);
+			}
+		});
 	}
 	
 	private void testControlChange(final int i) {
-		temporaryPatch.getTone(1).addParameterChangeListener(new ParameterChangeListener() {
-			public void onParameterChange(Parameters source, ParameterChange change) {
-				if (change.getOffset() == 0x03) {
-					source.removeParameterChangeListener(this);
-					
-					java.lang.System.out.print(((Tone)source).getOSCPitch().getValue() + ", ");
-					
-					if (i < 127)
-						testControlChange(i + 1);
-				}
+		send(new ControlChangeMessage(synth_channel, Controller.TONE_1_OSC_PITCH, i));
+		requestData(new Address(0x10, 0x00, 0x01, 0x03), 1).thenAccept(new Consumer<byte[]>() {
+			public void accept(byte[] data) {
+				java.lang.System.out.print(temporaryPatch.getTone(1).getOSCPitch().getValue() + ", ");
+				
+				if (i < 127)
+					testControlChange(i + 1);
 			}
 		});
-		
-		send(new ControlChangeMessage(synth_channel, Controller.TONE_1_OSC_PITCH, i));
-		send(new DataRequest1(new Address(0x10, 0x00, 0x01, 0x03), 1));
 	}
 	
 	/**
@@ -339,16 +635,110 @@ public class Gaia extends Observable implements ParameterChangeListener, MidiRec
 	 * @param length The length of the desired data.
 	 */
 	public void sendDataRequest(Address address, int length) {
-		send(new DataRequest1(address, length));
+		send(new DataRequest1(getTargetDeviceID(), address, length));
+	}
+	
+	/**
+	 * Requests data, and returns a future for the reply.
+	 * The future completes once data for the entire range has been received, after
+	 * the parameters have been updated. The timeout starts when the request leaves the
+	 * transmit queue. A request that times out is sent again, and
+	 * the future fails once the tracker’s retries are exhausted. It is cancelled when
+	 * the GAIA is closed.
+	 * @param address The start address of the desired data.
+	 * @param length The length of the desired data.
+	 * @return A future that completes with the received data.
+	 */
+	public CompletableFuture<byte[]> requestData(final Address address, final int length) {
+		if (!opened)
+			throw new RuntimeException("MIDI connection not open.");
+		
+		CompletableFuture<byte[]> future = requestTracker.track(address, length, new Runnable() {
+			public void run() {
+				log.log("Data request timed out, retrying: " + address);
+				sendDataRequest(address, length);
+			}
+		});
+		sendDataRequest(address, length);
+		return future;
+	}
+	
+	/**
+	 * Requests a block of parameters, and returns a future for the updated parameters.
+	 * The address and length must span a single complete parameters block.
+	 * @param address The start address of the parameters.
+	 * @param length The length of the parameters.
+	 * @return A future that completes with the received parameters.
+	 */
+	public CompletableFuture<Parameters> requestParameters(final Address address, int length) {
+		return requestData(address, length).thenApply(new Function<byte[], Parameters>() {
+			public Parameters apply(byte[] data) {
+				Parameters parameters = getParameters(address);
+				if (parameters == null)
+					throw new RuntimeException("No parameters at address " + address + ".");
+				return parameters;
+			}
+		});
 	}
 	
 	/**
 	 * Sends a data transmission.
 	 * Also updates the parameters to reflect the GAIA’s new state.
+	 * If write verification is enabled, the data is read back afterwards.
 	 * @param parameters The Parameters object containing the address and data to send.
 	 */
 	public void sendDataTransmission(Parameters parameters) {
 		sendDataTransmission(parameters, 0, parameters.getLength());
+		
+		if (verifyWrites && opened)
+			writeVerifier.verify(Collections.singletonList(new DataSet1(getTargetDeviceID(), parameters.getAddress(), parameters.getData())));
+	}
+	
+	/**
+	 * Sends the data of several parameters as a single batch.
+	 * Also updates the parameters to reflect the GAIA’s new state.
+	 * If write verification is enabled, the data is read back afterwards.
+	 * @param parametersList The Parameters objects containing the addresses and data to send.
+	 */
+	public void sendDataTransmission(Iterable<Parameters> parametersList) {
+		List<DataSet1> messages = new ArrayList<DataSet1>();
+		for (Parameters parameters : parametersList)
+			messages.add(new DataSet1(getTargetDeviceID(), parameters.getAddress(), parameters.getData()));
+		
+		send(new ArrayList<Message>(messages));
+		
+		if (verifyWrites && opened)
+			writeVerifier.verify(messages);
+		
+		try {
+			for (Parameters parameters : parametersList)
+				parameters.updateOriginalParameters(parameters.getAddress(), parameters.getData());
+		} catch (AddressException e) {
+			throw new RuntimeException("AddressException is not supposed to occur.", e);
+		}
+	}
+	
+	/**
+	 * Sends an edit of the temporary patch parameters.
+	 * If enabled, a tone parameter is sent as a control change message when a controller
+	 * can set its exact value, otherwise it falls back to a data transmission.
+	 * Also updates the parameters to reflect the GAIA’s new state.
+	 * @param parameters The Parameters object containing the address and data to send.
+	 * @param offset The start offset of the parameter data to send.
+	 * @param length The length of the parameter data to send.
+	 */
+	public void sendParameterChange(Parameters parameters, int offset, int length) {
+		if (sendControlChanges && opened && length == 1 && parameters instanceof Tone) {
+			ControlChangeMessage message = ((Tone) parameters).getControlChange(synth_channel, offset);
+			if (message != null) {
+				Address address = parameters.getAddress().add(offset);
+				ByteBuffer data = parameters.getDataBuffer(offset, length);
+				send(new ParameterControlChangeMessage(message, new DataSet1(getTargetDeviceID(), address, data)));
+				updateOriginalParameters(parameters, address, data);
+				return;
+			}
+		}
+		sendDataTransmission(parameters, offset, length);
 	}
 	
 	/**
@@ -360,10 +750,13 @@ public class Gaia extends Observable implements ParameterChangeListener, MidiRec
 	 */
 	public void sendDataTransmission(Parameters parameters, int offset, int length) {
 		Address address = parameters.getAddress().add(offset);
-		byte[] data = parameters.getData(offset, length);
-		
-		send(new DataSet1(address, data));
+		ByteBuffer data = parameters.getDataBuffer(offset, length);
 		
+		send(new DataSet1(getTargetDeviceID(), address, data));
+		updateOriginalParameters(parameters, address, data);
+	}
+	
+	private void updateOriginalParameters(Parameters parameters, Address address, ByteBuffer data) {
 		try {
 			parameters.updateOriginalParameters(address, data);
 		} catch (AddressException e) {
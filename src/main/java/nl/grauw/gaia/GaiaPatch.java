@@ -15,6 +15,10 @@
  */
 package nl.grauw.gaia;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 public abstract class GaiaPatch extends Patch {
 	
 	private Gaia gaia;
@@ -40,47 +44,51 @@ public abstract class GaiaPatch extends Patch {
 			gaia.sendDataRequest(address, length);
 		}
 	}
+	
+	protected CompletableFuture<Parameters> loadParameters(Address address, int length) {
+		return gaia.requestParameters(address, length);
+	}
 
 	public void load() {
 		loadData(getAddress(0x00), 0xE80);
 	}
 	
-	public void loadCommon() {
-		loadData(getAddress(0x00), 0x3D);
+	public CompletableFuture<Parameters> loadCommon() {
+		return loadParameters(getAddress(0x00), 0x3D);
 	}
 	
-	public void loadTone(int number) {
+	public CompletableFuture<Parameters> loadTone(int number) {
 		if (number < 1 || number > 3)
 			throw new RuntimeException("Tone number must be 1, 2 or 3.");
 		
-		loadData(getAddress(0x01 + number - 1), 0x3E);
+		return loadParameters(getAddress(0x01 + number - 1), 0x3E);
 	}
 	
-	public void loadDistortion() {
-		loadData(getAddress(0x04), 0x81);
+	public CompletableFuture<Parameters> loadDistortion() {
+		return loadParameters(getAddress(0x04), 0x81);
 	}
 	
-	public void loadFlanger() {
-		loadData(getAddress(0x06), 0x51);
+	public CompletableFuture<Parameters> loadFlanger() {
+		return loadParameters(getAddress(0x06), 0x51);
 	}
 	
-	public void loadDelay() {
-		loadData(getAddress(0x08), 0x51);
+	public CompletableFuture<Parameters> loadDelay() {
+		return loadParameters(getAddress(0x08), 0x51);
 	}
 	
-	public void loadReverb() {
-		loadData(getAddress(0x0A), 0x51);
+	public CompletableFuture<Parameters> loadReverb() {
+		return loadParameters(getAddress(0x0A), 0x51);
 	}
 	
-	public void loadArpeggioCommon() {
-		loadData(getAddress(0x0C), 0x08);
+	public CompletableFuture<Parameters> loadArpeggioCommon() {
+		return loadParameters(getAddress(0x0C), 0x08);
 	}
 	
-	public void loadArpeggioPattern(int note) {
+	public CompletableFuture<Parameters> loadArpeggioPattern(int note) {
 		if (note < 1 || note > 16)
 			throw new RuntimeException("Arpeggio pattern note must be between 1 and 16 (inclusive).");
 		
-		loadData(getAddress(0x0D + note - 1), 0x42);
+		return loadParameters(getAddress(0x0D + note - 1), 0x42);
 	}
 	
 	public void loadArpeggioAll() {
@@ -95,9 +103,7 @@ public abstract class GaiaPatch extends Patch {
 		if (!isComplete())
 			throw new IncompletePatchException();
 		
-		for (Parameters parameters : this) {
-			gaia.sendDataTransmission(parameters);
-		}
+		gaia.sendDataTransmission(this);
 	}
 	
 	/**
@@ -106,11 +112,13 @@ public abstract class GaiaPatch extends Patch {
 	 * Note: For user patches, saved changes are not persisted after reboot.
 	 */
 	public void saveModifiedParameters() {
+		List<Parameters> modified = new ArrayList<Parameters>();
 		for (Parameters parameters : this) {
 			if (parameters != null && parameters.hasChanged()) {
-				gaia.sendDataTransmission(parameters);
+				modified.add(parameters);
 			}
 		}
+		gaia.sendDataTransmission(modified);
 	}
 	
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiUnavailableException;
+
+import nl.grauw.gaia.midi.JavaMidiConnection;
+import nl.grauw.gaia.midi.MidiConnection;
+import nl.grauw.gaia.midi.MidiDeviceDiscovery;
+import nl.grauw.gaia.midi.MidiDeviceInventory;
+import nl.grauw.gaia.tool.mvc.Observable;
+
+/**
+ * Manages the sessions with several GAIA units on one host.
+ * 
+ * Every session has its own Gaia model, and with it its own outbound queue, link
+ * profile, redundancy filter and request tracker, so the units are paced and measured
+ * independently. Once a unit’s identity is confirmed, its system exclusive messages
+ * are addressed to its device ID, so units that share a port can be told apart.
+ * 
+ * Operations such as backups and uploads can be run against all units in parallel
+ * with runAll(). Observers are notified with the detail "sessions" when a session
+ * is added or removed.
+ */
+public class GaiaSessionManager extends Observable {
+	
+	private Log log;
+	private MidiDeviceInventory inventory;
+	private List<Session> sessions = new CopyOnWriteArrayList<Session>();
+	
+	public GaiaSessionManager(Log log, MidiDeviceInventory inventory) {
+		this.log = log;
+		this.inventory = inventory;
+	}
+	
+	/**
+	 * Searches all MIDI ports for GAIA units, and opens a session for every unit
+	 * that does not have one yet.
+	 * @return The sessions that were added.
+	 * @throws InterruptedException
+	 */
+	public List<Session> discover() throws InterruptedException {
+		List<Session> added = new ArrayList<Session>();
+		for (MidiDeviceDiscovery.Result result : new MidiDeviceDiscovery(inventory).discoverAll()) {
+			if (getSession(result.getInput().getDeviceInfo(), result.getIdentity().getDeviceId()) != null)
+				continue;
+			
+			Session shared = getSession(result.getInput().getDeviceInfo());
+			Session session;
+			if (shared != null) {
+				session = new Session(shared.connection, shared.port);
+			} else {
+				JavaMidiConnection connection = new JavaMidiConnection(log, new Properties(), inventory);
+				try {
+					connection.open(result.getInput(), result.getOutput());
+				} catch (MidiUnavailableException e) {
+					log.log("Opening " + result.getInput().getDeviceInfo() + " failed: " + e.getMessage());
+					continue;
+				}
+				session = new Session(connection, result.getInput().getDeviceInfo());
+				session.closeConnection = true;
+			}
+			// confirm the identity up front, so that units on a shared port are told apart
+			session.gaia.receive(result.getIdentity());
+			open(session);
+			added.add(session);
+		}
+		return added;
+	}
+	
+	/**
+	 * Opens a session on an already opened connection.
+	 * @param connection The MIDI connection to the unit.
+	 * @return The new session.
+	 */
+	public Session addSession(MidiConnection connection) {
+		Session session = new Session(connection, null);
+		open(session);
+		return session;
+	}
+	
+	private void open(Session session) {
+		sessions.add(session);
+		session.gaia.open();
+		notifyObservers("sessions");
+	}
+	
+	/**
+	 * Closes a session, and its MIDI connection if the manager opened it
+	 * and no other session shares it.
+	 * @param session The session to close.
+	 */
+	public void removeSession(Session session) {
+		if (!sessions.remove(session))
+			return;
+		session.close();
+		notifyObservers("sessions");
+	}
+	
+	/**
+	 * Closes all sessions.
+	 */
+	public void closeAll() {
+		for (Session session : sessions)
+			removeSession(session);
+	}
+	
+	/**
+	 * Returns the open sessions.
+	 * @return An unmodifiable list of the sessions.
+	 */
+	public List<Session> getSessions() {
+		return Collections.unmodifiableList(sessions);
+	}
+	
+	/**
+	 * Returns the session with the unit that has the given device ID.
+	 * @param deviceId The confirmed device ID.
+	 * @return The session, or null.
+	 */
+	public Session getSession(int deviceId) {
+		for (Session session : sessions) {
+			if (session.gaia.isIdentityConfirmed() && session.gaia.getDeviceID() == deviceId)
+				return session;
+		}
+		return null;
+	}
+	
+	private Session getSession(MidiDevice.Info port) {
+		for (Session session : sessions) {
+			if (session.port != null && session.port.equals(port))
+				return session;
+		}
+		return null;
+	}
+	
+	private Session getSession(MidiDevice.Info port, int deviceId) {
+		for (Session session : sessions) {
+			if (session.port != null && session.port.equals(port) &&
+					(!session.gaia.isIdentityConfirmed() || session.gaia.getDeviceID() == deviceId))
+				return session;
+		}
+		return null;
+	}
+	
+	/**
+	 * Runs an operation against all units in parallel.
+	 * @param operation The operation, which starts the work for a unit and returns a future for its result.
+	 * @return A future that completes with the results in session order, or fails if any operation fails.
+	 */
+	public <T> CompletableFuture<List<T>> runAll(Function<Gaia, CompletableFuture<T>> operation) {
+		final List<CompletableFuture<T>> futures = new ArrayList<CompletableFuture<T>>();
+		for (Session session : sessions)
+			futures.add(operation.apply(session.gaia));
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(
+				new Function<Void, List<T>>() {
+					public List<T> apply(Void result) {
+						List<T> results = new ArrayList<T>(futures.size());
+						for (CompletableFuture<T> future : futures)
+							results.add(future.join());
+						return results;
+					}
+				});
+	}
+	
+	/**
+	 * A session with a single GAIA unit.
+	 */
+	public class Session {
+		
+		private MidiConnection connection;
+		private MidiDevice.Info port;
+		private Gaia gaia;
+		private boolean closeConnection = false;
+		
+		private Session(MidiConnection connection, MidiDevice.Info port) {
+			this.connection = connection;
+			this.port = port;
+			this.gaia = new Gaia(log, connection);
+		}
+		
+		public Gaia getGaia() {
+			return gaia;
+		}
+		
+		public MidiConnection getConnection() {
+			return connection;
+		}
+		
+		/**
+		 * Returns the input port of the unit.
+		 * @return The port info, or null if the session was added with an existing connection.
+		 */
+		public MidiDevice.Info getPort() {
+			return port;
+		}
+		
+		private void close() {
+			gaia.dispose();
+			if (closeConnection) {
+				for (Session session : sessions) {
+					if (session.connection == connection) {
+						session.closeConnection = true;
+						return;
+					}
+				}
+				if (((JavaMidiConnection) connection).isOpened())
+					((JavaMidiConnection) connection).close();
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return (port != null ? port.getName() : "GAIA") +
+					(gaia.isIdentityConfirmed() ? String.format(" (device ID %02XH)", gaia.getDeviceID()) : "");
+		}
+		
+	}
+	
+}
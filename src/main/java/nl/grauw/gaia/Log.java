@@ -24,20 +24,39 @@ public class Log {
 	private StringBuffer log;
 	
 	private ListenerList<LogUpdateListener> updateListeners = new ListenerList<LogUpdateListener>();
+	private ListenerList<LogMessageListener> messageListeners = new ListenerList<LogMessageListener>();
 	
 	public Log() {
-		log = new StringBuffer();
+		this(true);
+	}
+	
+	/**
+	 * Constructs a new log.
+	 * @param keepHistory False to not keep the messages for getLog(), so that a long
+	 *                    running process that passes them to message listeners does not
+	 *                    build up an ever growing log.
+	 */
+	public Log(boolean keepHistory) {
+		log = keepHistory ? new StringBuffer() : null;
 	}
 	
 	public void log(Object message) {
-		log.append(message.toString());
-		log.append("\n");
+		String text = message.toString();
+		if (log != null) {
+			log.append(text);
+			log.append("\n");
+		}
 		
+		fireLogMessage(text);
 		fireLogUpdate();
 	}
 	
+	/**
+	 * Returns the logged messages, each followed by a newline.
+	 * @return The log, or an empty string if no history is kept.
+	 */
 	public String getLog() {
-		return log.toString();
+		return log != null ? log.toString() : "";
 	}
 	
 	public void addUpdateListener(LogUpdateListener listener) {
@@ -48,6 +67,19 @@ public class Log {
 		updateListeners.remove(listener);
 	}
 	
+	public void addMessageListener(LogMessageListener listener) {
+		messageListeners.add(listener);
+	}
+	
+	public void removeMessageListener(LogMessageListener listener) {
+		messageListeners.remove(listener);
+	}
+	
+	private void fireLogMessage(String message) {
+		for (LogMessageListener listener : messageListeners)
+			listener.onLogMessage(this, message);
+	}
+	
 	private void fireLogUpdate() {
 		for (LogUpdateListener listener : updateListeners)
 			listener.onLogUpdate(this);
@@ -57,4 +89,8 @@ public class Log {
 		public void onLogUpdate(Log source);
 	}
 	
+	public interface LogMessageListener extends EventListener {
+		public void onLogMessage(Log source, String message);
+	}
+	
 }
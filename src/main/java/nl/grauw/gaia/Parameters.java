@@ -15,6 +15,7 @@
  */
 package nl.grauw.gaia;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.EventListener;
 
@@ -80,6 +81,17 @@ public class Parameters extends Observable {
 		return copy;
 	}
 	
+	/**
+	 * Gets a read-only view of the parameter data in the specified range.
+	 * The view is backed by the parameters, so it reflects later changes.
+	 * @param offset The start position of the data to return.
+	 * @param length The length of the data to return.
+	 * @return A buffer whose remaining bytes are the requested parameter data.
+	 */
+	public ByteBuffer getDataBuffer(int offset, int length) {
+		return ByteBuffer.wrap(data, offset, length).slice().asReadOnlyBuffer();
+	}
+	
 	/**
 	 * Returns whether the data has changed since the last update.
 	 * @return True if the data has changed.
@@ -134,14 +146,24 @@ public class Parameters extends Observable {
 	 * @param newData The data to change. All bytes must be in the range 0-127.
 	 */
 	public void updateParameters(Address address, byte[] newData) throws AddressException {
+		updateParameters(address, ByteBuffer.wrap(newData));
+	}
+	
+	/**
+	 * Update parameter data from a buffer, without copying it first.
+	 * @param address The start address of the data to change.
+	 * @param newData The buffer whose remaining bytes are the data to change. Its position is not modified.
+	 */
+	public void updateParameters(Address address, ByteBuffer newData) throws AddressException {
 		int offset = this.address.offsetOf(address);
-		if (offset < 0 || offset >= getLength() || offset + newData.length > getLength())
+		int length = newData.remaining();
+		if (offset < 0 || offset >= getLength() || offset + length > getLength())
 			throw new AddressException("Address or data out of range.");
 		
-		for (int i = 0; i < newData.length; i++) {
-			originalData[offset + i] = data[offset + i] = newData[i];
+		for (int i = 0, position = newData.position(); i < length; i++) {
+			originalData[offset + i] = data[offset + i] = newData.get(position + i);
 		}
-		fireParameterChange(new ParameterChange(offset, newData.length));
+		fireParameterChange(new ParameterChange(offset, length));
 	}
 	
 	/**
@@ -151,12 +173,22 @@ public class Parameters extends Observable {
 	 * @param newData The data to change. All bytes must be in the range 0-127.
 	 */
 	public void updateOriginalParameters(Address address, byte[] newData) throws AddressException {
+		updateOriginalParameters(address, ByteBuffer.wrap(newData));
+	}
+	
+	/**
+	 * Update original parameter data only, from a buffer.
+	 * @param address The start address of the data to change.
+	 * @param newData The buffer whose remaining bytes are the data to change. Its position is not modified.
+	 */
+	public void updateOriginalParameters(Address address, ByteBuffer newData) throws AddressException {
 		int offset = this.address.offsetOf(address);
-		if (offset < 0 || offset >= getLength() || offset + newData.length > getLength())
+		int length = newData.remaining();
+		if (offset < 0 || offset >= getLength() || offset + length > getLength())
 			throw new AddressException("Address or data out of range.");
 		
-		for (int i = 0; i < newData.length; i++) {
-			originalData[offset + i] = newData[i];
+		for (int i = 0, position = newData.position(); i < length; i++) {
+			originalData[offset + i] = newData.get(position + i);
 		}
 	}
 	
@@ -15,6 +15,7 @@
  */
 package nl.grauw.gaia;
 
+import java.nio.ByteBuffer;
 import java.util.EventListener;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -55,53 +56,63 @@ public class Patch extends Observable implements Iterable<Parameters> {
 	 * @param data
 	 */
 	public void updateParameters(Address address, byte[] data) throws AddressException {
+		updateParameters(address, ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * Update the patch parameters from a buffer.
+	 * The data is only copied when a complete parameters block is received.
+	 * @param address
+	 * @param data The buffer whose remaining bytes are the data.
+	 */
+	public void updateParameters(Address address, ByteBuffer data) throws AddressException {
 		byte byte3 = address.getByte3();
 		byte byte4 = address.getByte4();
 		if (byte3 == 0x00) {
-			if (byte4 == 0x00 && data.length >= 0x3D) {
-				setCommon(new PatchCommon(address, data));
+			if (byte4 == 0x00 && data.remaining() >= 0x3D) {
+				setCommon(new PatchCommon(address, toArray(data)));
 			} else if (common != null) {
 				common.updateParameters(address, data);
 			}
 		} else if (byte3 == 0x01 || byte3 == 0x02 || byte3 == 0x03) {
-			if (byte4 == 0x00 && data.length >= 0x3E) {
-				setTone(byte3, new Tone(address, data));
+			if (byte4 == 0x00 && data.remaining() >= 0x3E) {
+				setTone(byte3, new Tone(address, toArray(data)));
 			} else if (tones[byte3 - 0x01] != null) {
 				tones[byte3 - 0x01].updateParameters(address, data);
 			}
 		} else if (byte3 == 0x04 || byte3 == 0x05) {
-			if (byte3 == 0x04 && byte4 == 0x00 && data.length >= 0x81) {
-				setDistortion(new Distortion(address, data));
+			if (byte3 == 0x04 && byte4 == 0x00 && data.remaining() >= 0x81) {
+				setDistortion(new Distortion(address, toArray(data)));
 			} else if (distortion != null) {
 				distortion.updateParameters(address, data);
 			}
 		} else if (byte3 == 0x06) {
-			if (byte4 == 0x00 && data.length >= 0x51) {
-				setFlanger(new Flanger(address, data));
+			if (byte4 == 0x00 && data.remaining() >= 0x51) {
+				setFlanger(new Flanger(address, toArray(data)));
 			} else if (flanger != null) {
 				flanger.updateParameters(address, data);
 			}
 		} else if (byte3 == 0x08) {
-			if (byte4 == 0x00 && data.length >= 0x51) {
-				setDelay(new Delay(address, data));
+			if (byte4 == 0x00 && data.remaining() >= 0x51) {
+				setDelay(new Delay(address, toArray(data)));
 			} else if (delay != null) {
 				delay.updateParameters(address, data);
 			}
 		} else if (byte3 == 0x0A) {
-			if (byte4 == 0x00 && data.length >= 0x51) {
-				setReverb(new Reverb(address, data));
+			if (byte4 == 0x00 && data.remaining() >= 0x51) {
+				setReverb(new Reverb(address, toArray(data)));
 			} else if (reverb != null) {
 				reverb.updateParameters(address, data);
 			}
 		} else if (byte3 == 0x0C) {
-			if (byte4 == 0x00 && data.length >= 0x08) {
-				setArpeggioCommon(new ArpeggioCommon(address, data));
+			if (byte4 == 0x00 && data.remaining() >= 0x08) {
+				setArpeggioCommon(new ArpeggioCommon(address, toArray(data)));
 			} else if (arpeggioCommon != null) {
 				arpeggioCommon.updateParameters(address, data);
 			}
 		} else if (byte3 >= 0x0D && byte3 <= 0x1C) {
-			if (byte4 == 0x00 && data.length >= 0x42) {
-				setArpeggioPattern(byte3 - 0x0C, new ArpeggioPattern(address, data));
+			if (byte4 == 0x00 && data.remaining() >= 0x42) {
+				setArpeggioPattern(byte3 - 0x0C, new ArpeggioPattern(address, toArray(data)));
 			} else if (arpeggioPatterns[byte3 - 0x0D] != null) {
 				arpeggioPatterns[byte3 - 0x0D].updateParameters(address, data);
 			}
@@ -110,6 +121,12 @@ public class Patch extends Observable implements Iterable<Parameters> {
 		}
 	}
 	
+	private static byte[] toArray(ByteBuffer data) {
+		byte[] array = new byte[data.remaining()];
+		data.duplicate().get(array);
+		return array;
+	}
+	
 	/**
 	 * Update the patch parameters from an existing Parameters object.
 	 * @param other
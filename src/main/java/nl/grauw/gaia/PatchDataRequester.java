@@ -15,12 +15,19 @@
  */
 package nl.grauw.gaia;
 
-import nl.grauw.gaia.Patch.PatchChangeListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * Utility class that requests all missing data in a patch.
+ * 
+ * The requests for all missing parameters are sent at once, and the
+ * replies are awaited together.
  */
-public class PatchDataRequester implements PatchChangeListener {
+public class PatchDataRequester {
 	
 	public interface PatchCompleteListener {
 		
@@ -35,6 +42,10 @@ public class PatchDataRequester implements PatchChangeListener {
 	GaiaPatch patch;
 	PatchCompleteListener listener;
 	
+	public PatchDataRequester(GaiaPatch patch) {
+		this(patch, null);
+	}
+	
 	public PatchDataRequester(GaiaPatch patch, PatchCompleteListener listener) {
 		this.patch = patch;
 		this.listener = listener;
@@ -43,50 +54,49 @@ public class PatchDataRequester implements PatchChangeListener {
 	/**
 	 * Checks whether patch parameters data is missing, and requests the missing
 	 * data from the GAIA if that’s the case.
+	 * @return A future that completes with the patch when it is complete.
 	 */
-	public void requestMissingParameters() {
-		if (!patch.hasPatchChangeListener(this)) {
-			patch.addPatchChangeListener(this);
+	public CompletableFuture<GaiaPatch> requestMissingParameters() {
+		List<CompletableFuture<Parameters>> requests = new ArrayList<CompletableFuture<Parameters>>();
+		if (patch.getCommon() == null)
+			requests.add(patch.loadCommon());
+		for (int number = 1; number <= 3; number++) {
+			if (patch.getTone(number) == null)
+				requests.add(patch.loadTone(number));
 		}
-		if (patch.getCommon() == null) {
-			patch.loadCommon();
-		} else if (patch.getTone(1) == null) {
-			patch.loadTone(1);
-		} else if (patch.getTone(2) == null) {
-			patch.loadTone(2);
-		} else if (patch.getTone(3) == null) {
-			patch.loadTone(3);
-		} else if (patch.getDistortion() == null) {
-			patch.loadDistortion();
-		} else if (patch.getFlanger() == null) {
-			patch.loadFlanger();
-		} else if (patch.getDelay() == null) {
-			patch.loadDelay();
-		} else if (patch.getReverb() == null) {
-			patch.loadReverb();
-		} else if (patch.getArpeggioCommon() == null) {
-			patch.loadArpeggioCommon();
-		} else {
-			for (int note = 1; note <= 16; note++) {
-				if (patch.getArpeggioPattern(note) == null) {
-					patch.loadArpeggioPattern(note);
-					return;
-				}
-			}
-			// done
-			patch.removePatchChangeListener(this);
-			listener.onPatchComplete(patch);
+		if (patch.getDistortion() == null)
+			requests.add(patch.loadDistortion());
+		if (patch.getFlanger() == null)
+			requests.add(patch.loadFlanger());
+		if (patch.getDelay() == null)
+			requests.add(patch.loadDelay());
+		if (patch.getReverb() == null)
+			requests.add(patch.loadReverb());
+		if (patch.getArpeggioCommon() == null)
+			requests.add(patch.loadArpeggioCommon());
+		for (int note = 1; note <= 16; note++) {
+			if (patch.getArpeggioPattern(note) == null)
+				requests.add(patch.loadArpeggioPattern(note));
 		}
-	}
-	
-	@Override
-	public void onPatchChange(Patch source, String detail) {
-		if (source == patch && ("common".equals(detail) || "tones".equals(detail) || "distortion".equals(detail) ||
-				"flanger".equals(detail) || "delay".equals(detail) || "reverb".equals(detail) ||
-				"arpeggioCommon".equals(detail) || "arpeggioPatterns".equals(detail))) {
-			
-			requestMissingParameters();
+		
+		CompletableFuture<GaiaPatch> future = CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[requests.size()]))
+				.thenApply(new Function<Void, GaiaPatch>() {
+					public GaiaPatch apply(Void result) {
+						return patch;
+					}
+				});
+		
+		if (listener != null) {
+			future.whenComplete(new BiConsumer<GaiaPatch, Throwable>() {
+				public void accept(GaiaPatch result, Throwable exception) {
+					if (exception == null)
+						listener.onPatchComplete(result);
+					else
+						patch.getGaia().getLog().log("Loading patch failed: " + exception.getMessage());
+				}
+			});
 		}
+		return future;
 	}
 	
 }
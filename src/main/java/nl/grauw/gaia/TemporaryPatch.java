@@ -41,7 +41,7 @@ public class TemporaryPatch extends GaiaPatch implements ParameterChangeListener
 	@Override
 	public void onParameterChange(Parameters source, ParameterChange change) {
 		if (source.hasChanged(change)) {
-			getGaia().sendDataTransmission(source, change.getOffset(), change.getLength());
+			getGaia().sendParameterChange(source, change.getOffset(), change.getLength());
 			
 			// reload effect parameters when effect type changes
 			if (source == getDistortion() && change.getOffset() == 0x00 && change.getLength() < 0x11) {
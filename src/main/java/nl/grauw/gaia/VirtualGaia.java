@@ -0,0 +1,382 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import nl.grauw.gaia.midi.MidiConnection;
+import nl.grauw.gaia.midi.MidiReceiver;
+import nl.grauw.gaia.midi.MidiTransmitter;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage.Controller;
+import nl.grauw.gaia.midi.messages.DataRequest1;
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.midi.messages.IdentityReply;
+import nl.grauw.gaia.midi.messages.IdentityRequest;
+import nl.grauw.gaia.midi.messages.Message;
+import nl.grauw.gaia.parameters.Tone;
+
+/**
+ * In-process emulation of a GAIA, for testing and benchmarking without hardware.
+ * 
+ * The emulator holds the parameter memory of the system (01 00 00 00), the temporary
+ * patch (10 00 xx 00) and the 64 user patches (20 xx xx 00), initially zeroed. It
+ * answers identity requests and data requests, applies data sets and the tone
+ * controllers, and ignores everything else. Like the GAIA, it replies to a data
+ * request with a data set per parameter block. Edits made with edit() are echoed
+ * as data sets when the TX Edit Data system parameter is on.
+ * 
+ * Messages travel over two simulated links, one in each direction, with configurable
+ * speed, latency, jitter and loss. Message order is preserved on each link. All
+ * processing happens on a single thread of the emulator, call close() to stop it.
+ */
+public class VirtualGaia implements MidiConnection, MidiTransmitter {
+	
+	public static final int MIDI_BYTE_RATE = 3125;
+	public static final int DEFAULT_DEVICE_ID = 0x10;
+	
+	final static Address TX_EDIT_DATA = new Address(0x01, 0x00, 0x00, 0x19);
+	final static int synth_channel = 0;
+	
+	private final static int[][] patchBlocks = {
+		{ 0x00, 0x3D }, { 0x01, 0x3E }, { 0x02, 0x3E }, { 0x03, 0x3E }, { 0x04, 0x81 },
+		{ 0x06, 0x51 }, { 0x08, 0x51 }, { 0x0A, 0x51 }, { 0x0C, 0x08 }
+	};
+	
+	private int deviceId = DEFAULT_DEVICE_ID;
+	private TreeMap<Integer, byte[]> blocks = new TreeMap<Integer, byte[]>();
+	private List<MidiReceiver> receivers = new CopyOnWriteArrayList<MidiReceiver>();
+	
+	private Link inbound = new Link();
+	private Link outbound = new Link();
+	private int byteRate = 0;
+	private long latency = 0;
+	private long jitter = 0;
+	private double lossRate = 0;
+	private Random random = new Random();
+	private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+	
+	private volatile long receivedCount = 0;
+	private volatile long sentCount = 0;
+	private volatile long lostCount = 0;
+	
+	public VirtualGaia() {
+		addBlock(new Address(0x01, 0x00, 0x00, 0x00), 0x6E);
+		addPatchBlocks(new Address(0x10, 0x00, 0x00, 0x00));
+		for (int patch = 0; patch < 64; patch++)
+			addPatchBlocks(new Address(0x20, patch, 0x00, 0x00));
+	}
+	
+	private void addPatchBlocks(Address address) {
+		for (int[] block : patchBlocks)
+			addBlock(address.add(block[0] << 7), block[1]);
+		for (int note = 0; note < 16; note++)
+			addBlock(address.add(0x0D + note << 7), 0x42);
+	}
+	
+	private void addBlock(Address address, int length) {
+		blocks.put(address.getValue(), new byte[length]);
+	}
+	
+	/**
+	 * Stops the emulator. Messages that are still underway are discarded.
+	 */
+	public void close() {
+		scheduler.shutdownNow();
+	}
+	
+	/**
+	 * Sets the device ID that the emulator responds to.
+	 * @param deviceId The device ID, between 0x10-0x1F (inclusive).
+	 */
+	public void setDeviceId(int deviceId) {
+		if (deviceId < 0x10 || deviceId > 0x1F)
+			throw new IllegalArgumentException("Invalid device ID.");
+		this.deviceId = deviceId;
+	}
+	
+	public int getDeviceId() {
+		return deviceId;
+	}
+	
+	/**
+	 * Sets the speed of both links.
+	 * @param bytesPerSecond The number of bytes per second, MIDI_BYTE_RATE for a MIDI
+	 *                       cable, or 0 for unlimited.
+	 */
+	public synchronized void setByteRate(int bytesPerSecond) {
+		if (bytesPerSecond < 0)
+			throw new IllegalArgumentException("Byte rate must not be negative.");
+		this.byteRate = bytesPerSecond;
+	}
+	
+	/**
+	 * Sets the time that a message is underway in addition to its transfer time.
+	 * @param latency The latency in milliseconds.
+	 */
+	public synchronized void setLatency(long latency) {
+		if (latency < 0)
+			throw new IllegalArgumentException("Latency must not be negative.");
+		this.latency = TimeUnit.MILLISECONDS.toNanos(latency);
+	}
+	
+	/**
+	 * Sets the maximum random variation that is added to the latency.
+	 * @param jitter The jitter in milliseconds.
+	 */
+	public synchronized void setJitter(long jitter) {
+		if (jitter < 0)
+			throw new IllegalArgumentException("Jitter must not be negative.");
+		this.jitter = TimeUnit.MILLISECONDS.toNanos(jitter);
+	}
+	
+	/**
+	 * Sets the fraction of the messages that get lost, in either direction.
+	 * @param lossRate The loss rate, between 0 and 1.
+	 */
+	public synchronized void setLossRate(double lossRate) {
+		if (lossRate < 0 || lossRate > 1)
+			throw new IllegalArgumentException("Loss rate must be between 0 and 1.");
+		this.lossRate = lossRate;
+	}
+	
+	/**
+	 * Seeds the random generator of the jitter and loss, to make a run repeatable.
+	 * @param seed The seed.
+	 */
+	public synchronized void setSeed(long seed) {
+		random.setSeed(seed);
+	}
+	
+	/**
+	 * Reads the parameter memory.
+	 * @param address The start address.
+	 * @param length The number of bytes to read.
+	 * @return The data, with 0 for bytes outside the parameter blocks.
+	 */
+	public synchronized byte[] read(Address address, int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			Map.Entry<Integer, byte[]> block = blocks.floorEntry(address.getValue() + i);
+			int offset = address.getValue() + i - (block != null ? block.getKey() : 0);
+			if (block != null && offset < block.getValue().length)
+				data[i] = block.getValue()[offset];
+		}
+		return data;
+	}
+	
+	/**
+	 * Writes the parameter memory, as a data set received by the GAIA would.
+	 * Bytes outside the parameter blocks are ignored.
+	 * @param address The start address.
+	 * @param data The data to write.
+	 */
+	public synchronized void write(Address address, byte[] data) {
+		for (int i = 0; i < data.length; i++) {
+			Map.Entry<Integer, byte[]> block = blocks.floorEntry(address.getValue() + i);
+			int offset = address.getValue() + i - (block != null ? block.getKey() : 0);
+			if (block != null && offset < block.getValue().length)
+				block.getValue()[offset] = data[i];
+		}
+	}
+	
+	/**
+	 * Simulates an edit on the front panel of the GAIA.
+	 * The edit is transmitted as a data set if TX Edit Data is on.
+	 * @param address The start address.
+	 * @param data The new data.
+	 */
+	public synchronized void edit(Address address, byte[] data) {
+		write(address, data);
+		if (read(TX_EDIT_DATA, 1)[0] == 1)
+			transmit(new DataSet1(deviceId, address, data));
+	}
+	
+	@Override
+	public void addMidiReceiver(MidiReceiver receiver) {
+		receivers.add(receiver);
+	}
+	
+	@Override
+	public void removeMidiReceiver(MidiReceiver receiver) {
+		receivers.remove(receiver);
+	}
+	
+	@Override
+	public MidiTransmitter getMidiTransmitter() {
+		return this;
+	}
+	
+	/**
+	 * Sends a message to the emulator.
+	 */
+	@Override
+	public synchronized void send(final Message message) {
+		inbound.transfer(message, new Runnable() {
+			@Override
+			public void run() {
+				receivedCount++;
+				process(message);
+			}
+		});
+	}
+	
+	@Override
+	public synchronized void send(List<Message> messages) {
+		for (Message message : messages)
+			send(message);
+	}
+	
+	private synchronized void process(Message message) {
+		if (message instanceof IdentityRequest) {
+			int id = ((IdentityRequest) message).getDeviceId();
+			if (id == deviceId || id == Gaia.BROADCAST_DEVICE)
+				transmit(createIdentityReply());
+		} else if (message instanceof DataRequest1) {
+			DataRequest1 request = (DataRequest1) message;
+			if (isForDevice(request.getMessage(2)))
+				reply(request.getAddress().getValue(), request.getSize());
+		} else if (message instanceof DataSet1) {
+			DataSet1 dataSet = (DataSet1) message;
+			if (isForDevice(dataSet.getDeviceId()))
+				write(dataSet.getAddress(), dataSet.getDataSet());
+		} else if (message instanceof ControlChangeMessage) {
+			process((ControlChangeMessage) message);
+		}
+	}
+	
+	private boolean isForDevice(int id) {
+		return id == deviceId || id == Gaia.BROADCAST_DEVICE;
+	}
+	
+	private IdentityReply createIdentityReply() {
+		return new IdentityReply(new byte[] {
+			(byte) 0xF0, 0x7E, (byte) deviceId, 0x06, 0x02, 0x41, 0x41, 0x02, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, (byte) 0xF7
+		});
+	}
+	
+	/**
+	 * Replies with a data set for each parameter block in the requested range.
+	 */
+	private void reply(int address, int size) {
+		Integer start = blocks.floorKey(address);
+		if (start == null)
+			start = address;
+		for (Map.Entry<Integer, byte[]> block : blocks.subMap(start, true, address + size, false).entrySet()) {
+			int from = Math.max(address, block.getKey());
+			int to = Math.min(address + size, block.getKey() + block.getValue().length);
+			if (from < to) {
+				byte[] data = Arrays.copyOfRange(block.getValue(), from - block.getKey(), to - block.getKey());
+				transmit(new DataSet1(deviceId, new Address(from), data));
+			}
+		}
+	}
+	
+	/**
+	 * Applies the tone controllers to the temporary patch.
+	 */
+	private void process(ControlChangeMessage message) {
+		Controller controller = message.getController();
+		if (message.getChannel() != synth_channel || controller == null || !controller.name().startsWith("TONE_"))
+			return;
+		Address address = new Address(0x10, 0x00, controller.name().charAt(5) - '0', 0x00);
+		Tone tone = new Tone(address, read(address, 0x3E));
+		tone.updateParameters(message);
+		write(address, tone.getData());
+	}
+	
+	private void transmit(final Message message) {
+		outbound.transfer(message, new Runnable() {
+			@Override
+			public void run() {
+				sentCount++;
+				for (MidiReceiver receiver : receivers)
+					receiver.receive(message);
+			}
+		});
+	}
+	
+	/**
+	 * Returns the number of messages that arrived at the emulator.
+	 * @return The number of received messages.
+	 */
+	public long getReceivedCount() {
+		return receivedCount;
+	}
+	
+	/**
+	 * Returns the number of messages that the emulator delivered to its receivers.
+	 * @return The number of sent messages.
+	 */
+	public long getSentCount() {
+		return sentCount;
+	}
+	
+	/**
+	 * Returns the number of messages that were lost in either direction.
+	 * @return The number of lost messages.
+	 */
+	public long getLostCount() {
+		return lostCount;
+	}
+	
+	/**
+	 * A one-way link, which transfers one message at a time.
+	 * Its methods are called with the emulator locked.
+	 */
+	private class Link {
+		
+		private long busyUntil = 0;
+		private long lastDelivery = 0;
+		
+		public void transfer(Message message, Runnable delivery) {
+			if (lossRate > 0 && random.nextDouble() < lossRate) {
+				lostCount++;
+				return;
+			}
+			
+			long now = java.lang.System.nanoTime();
+			long start = Math.max(now, busyUntil);
+			long duration = byteRate > 0 ? TimeUnit.SECONDS.toNanos(message.getDataSize() + 1) / byteRate : 0;
+			busyUntil = start + duration;
+			long arrival = busyUntil + latency + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+			lastDelivery = Math.max(arrival, lastDelivery);
+			
+			if (!scheduler.isShutdown())
+				scheduler.schedule(delivery, lastDelivery - now, TimeUnit.NANOSECONDS);
+		}
+		
+	}
+	
+	private static class DaemonThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Virtual GAIA");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+}
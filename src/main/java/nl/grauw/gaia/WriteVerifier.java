@@ -0,0 +1,257 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import nl.grauw.gaia.midi.messages.DataSet1;
+
+/**
+ * Verifies that data sent to the GAIA was applied, by reading it back.
+ * 
+ * The written data is coalesced into ranges of consecutive addresses, and a data
+ * request is issued for each range. All requests are issued at once, so they are
+ * pipelined by the outbound queue rather than sent one at a time. Each reply is
+ * compared byte for byte with the written data, and only the mismatching parts are
+ * sent again and read back, up to the maximum number of rounds.
+ * 
+ * Replies update the model like any other received data, so after verification the
+ * model reflects what the GAIA holds, also if it still differs.
+ */
+public class WriteVerifier {
+	
+	public static final int DEFAULT_MAXIMUM_ROUNDS = 3;
+	
+	/**
+	 * Mismatches separated by fewer bytes than this are resent as one message,
+	 * because a separate message costs more than its header.
+	 */
+	final static int MERGE_GAP = 8;
+	
+	private Gaia gaia;
+	private volatile int maximumRounds = DEFAULT_MAXIMUM_ROUNDS;
+	private volatile long verifiedCount = 0;
+	private volatile long mismatchCount = 0;
+	private volatile long failedCount = 0;
+	
+	public WriteVerifier(Gaia gaia) {
+		this.gaia = gaia;
+	}
+	
+	/**
+	 * Reads back the written data, and resends the parts that were not applied.
+	 * Must be called after the data was sent.
+	 * @param writes The data set messages that were sent.
+	 * @return A future that completes with true if all data was verified, or false if
+	 *         some data still differed after the last round or could not be read.
+	 */
+	public CompletableFuture<Boolean> verify(List<DataSet1> writes) {
+		List<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+		for (Range range : coalesce(writes))
+			results.add(verify(range, 1));
+		return allTrue(results);
+	}
+	
+	private CompletableFuture<Boolean> verify(final Range range, final int round) {
+		CompletableFuture<byte[]> reply;
+		try {
+			reply = gaia.requestData(new Address(range.address), range.data.length);
+		} catch (RuntimeException e) {
+			failedCount++;
+			return CompletableFuture.completedFuture(false);
+		}
+		
+		return reply.handle(new BiFunction<byte[], Throwable, CompletableFuture<Boolean>>() {
+			public CompletableFuture<Boolean> apply(byte[] actual, Throwable error) {
+				if (error != null) {
+					failedCount++;
+					gaia.getLog().log("Verification failed, no reply: " + new Address(range.address));
+					return CompletableFuture.completedFuture(false);
+				}
+				
+				List<Range> mismatches = findMismatches(range, actual);
+				if (mismatches.isEmpty()) {
+					verifiedCount++;
+					return CompletableFuture.completedFuture(true);
+				}
+				
+				mismatchCount++;
+				if (round >= maximumRounds) {
+					failedCount++;
+					gaia.getLog().log("Verification failed, data differs: " + new Address(range.address));
+					return CompletableFuture.completedFuture(false);
+				}
+				
+				List<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+				for (Range mismatch : mismatches) {
+					gaia.getLog().log("Data was not applied, resending: " + new Address(mismatch.address));
+					try {
+						gaia.send(new DataSet1(gaia.getTargetDeviceID(), new Address(mismatch.address), mismatch.data));
+					} catch (RuntimeException e) {
+						failedCount++;
+						results.add(CompletableFuture.completedFuture(false));
+						continue;
+					}
+					results.add(verify(mismatch, round + 1));
+				}
+				return allTrue(results);
+			}
+		}).thenCompose(new Function<CompletableFuture<Boolean>, CompletableFuture<Boolean>>() {
+			public CompletableFuture<Boolean> apply(CompletableFuture<Boolean> result) {
+				return result;
+			}
+		});
+	}
+	
+	private static CompletableFuture<Boolean> allTrue(final List<CompletableFuture<Boolean>> results) {
+		return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()])).thenApply(new Function<Void, Boolean>() {
+			public Boolean apply(Void ignored) {
+				for (CompletableFuture<Boolean> result : results) {
+					if (!result.join())
+						return false;
+				}
+				return true;
+			}
+		});
+	}
+	
+	/**
+	 * Coalesces written data into ranges of consecutive addresses.
+	 * Where writes overlap, the later write wins.
+	 * @param writes The data set messages, in the order they were sent.
+	 * @return The ranges, in address order.
+	 */
+	static List<Range> coalesce(List<DataSet1> writes) {
+		List<Range> sorted = new ArrayList<Range>();
+		for (DataSet1 write : writes)
+			sorted.add(new Range(write.getAddressValue(), write.getDataSet()));
+		Collections.sort(sorted, new Comparator<Range>() {
+			public int compare(Range a, Range b) {
+				return Integer.compare(a.address, b.address);
+			}
+		});
+		
+		List<Range> ranges = new ArrayList<Range>();
+		for (Range range : sorted) {
+			Range last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+			if (last == null || range.address > last.getEnd()) {
+				ranges.add(range);
+				continue;
+			}
+			int end = Math.max(last.getEnd(), range.getEnd());
+			byte[] data = Arrays.copyOf(last.data, end - last.address);
+			ranges.set(ranges.size() - 1, new Range(last.address, data));
+		}
+		
+		// apply the writes again in the order they were sent, so that the later write wins
+		for (DataSet1 write : writes) {
+			for (Range range : ranges) {
+				int offset = write.getAddressValue() - range.address;
+				if (offset >= 0 && offset < range.data.length) {
+					for (int i = 0; i < write.getSize(); i++)
+						range.data[offset + i] = (byte) write.getDataSet(i);
+					break;
+				}
+			}
+		}
+		return ranges;
+	}
+	
+	/**
+	 * Finds the parts of a range that differ from the data read back.
+	 * @return The mismatching parts, holding the expected data.
+	 */
+	static List<Range> findMismatches(Range range, byte[] actual) {
+		List<Range> mismatches = new ArrayList<Range>();
+		int start = -1;
+		int end = -1;
+		for (int i = 0; i < range.data.length; i++) {
+			if (i < actual.length && range.data[i] == actual[i])
+				continue;
+			if (start != -1 && i - end >= MERGE_GAP) {
+				mismatches.add(new Range(range.address + start, Arrays.copyOfRange(range.data, start, end)));
+				start = -1;
+			}
+			if (start == -1)
+				start = i;
+			end = i + 1;
+		}
+		if (start != -1)
+			mismatches.add(new Range(range.address + start, Arrays.copyOfRange(range.data, start, end)));
+		return mismatches;
+	}
+	
+	public void setMaximumRounds(int rounds) {
+		if (rounds < 1)
+			throw new IllegalArgumentException("At least one round is needed.");
+		maximumRounds = rounds;
+	}
+	
+	public int getMaximumRounds() {
+		return maximumRounds;
+	}
+	
+	/**
+	 * Returns the number of ranges whose data was read back as written.
+	 * @return The verified range count.
+	 */
+	public long getVerifiedCount() {
+		return verifiedCount;
+	}
+	
+	/**
+	 * Returns the number of times data was read back that differed from what was written.
+	 * @return The mismatch count.
+	 */
+	public long getMismatchCount() {
+		return mismatchCount;
+	}
+	
+	/**
+	 * Returns the number of ranges that could not be verified.
+	 * @return The failed range count.
+	 */
+	public long getFailedCount() {
+		return failedCount;
+	}
+	
+	/**
+	 * Written data at a range of consecutive addresses.
+	 */
+	static class Range {
+		
+		final int address;
+		final byte[] data;
+		
+		Range(int address, byte[] data) {
+			this.address = address;
+			this.data = data;
+		}
+		
+		int getEnd() {
+			return address + data.length;
+		}
+		
+	}
+	
+}
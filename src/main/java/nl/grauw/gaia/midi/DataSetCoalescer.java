@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.grauw.gaia.Address;
+import nl.grauw.gaia.midi.messages.DataSet1;
+
+/**
+ * Merges data set messages whose address ranges touch or overlap into a single message.
+ * 
+ * When ranges overlap, the bytes of the message that was added last win.
+ * Only messages for the system and patch parameter areas are merged, command addresses
+ * (such as init patch) must be sent as-is and in order.
+ */
+public class DataSetCoalescer {
+	
+	private int deviceId = -1;
+	private List<Range> ranges = new ArrayList<Range>();
+	private int messageCount = 0;
+	
+	/**
+	 * Returns whether a data set message can be merged with other data set messages.
+	 * @param message The message to test.
+	 * @return True if the message addresses parameter memory.
+	 */
+	public static boolean isCoalescable(DataSet1 message) {
+		int byte1 = message.getAddress().getByte1();
+		return byte1 == 0x01 || byte1 == 0x10 || byte1 == 0x20;
+	}
+	
+	/**
+	 * Returns whether the coalescer holds no data.
+	 */
+	public boolean isEmpty() {
+		return ranges.isEmpty();
+	}
+	
+	/**
+	 * Returns whether the given message can be added to the currently held data.
+	 * @param message The message to test.
+	 * @return True if the message can be added.
+	 */
+	public boolean accepts(DataSet1 message) {
+		return isCoalescable(message) && (deviceId == -1 || deviceId == message.getDeviceId());
+	}
+	
+	/**
+	 * Adds a data set message.
+	 * @param message The message to add.
+	 */
+	public void add(DataSet1 message) {
+		if (!accepts(message))
+			throw new IllegalArgumentException("Data set can not be coalesced.");
+		
+		deviceId = message.getDeviceId();
+		messageCount++;
+		
+		Range merged = new Range(message);
+		for (int i = 0; i < ranges.size(); i++) {
+			Range range = ranges.get(i);
+			if (range.touches(merged)) {
+				merged = range.mergeWith(merged);
+				ranges.remove(i--);
+			}
+		}
+		
+		int position = 0;
+		while (position < ranges.size() && ranges.get(position).start < merged.start)
+			position++;
+		ranges.add(position, merged);
+	}
+	
+	/**
+	 * Returns the number of messages that were added since the last drain.
+	 * @return The number of added messages.
+	 */
+	public int getMessageCount() {
+		return messageCount;
+	}
+	
+	/**
+	 * Returns the merged messages in address order, and clears the coalescer.
+	 * @return The merged data set messages.
+	 */
+	public List<DataSet1> drain() {
+		List<DataSet1> messages = new ArrayList<DataSet1>(ranges.size());
+		for (Range range : ranges)
+			messages.add(range.original != null ? range.original : new DataSet1(deviceId, new Address(range.start), range.data));
+		ranges.clear();
+		deviceId = -1;
+		messageCount = 0;
+		return messages;
+	}
+	
+	private static class Range {
+		
+		private int start;
+		private byte[] data;
+		private DataSet1 original;
+		
+		public Range(DataSet1 original) {
+			this(original.getAddress().getValue(), original.getDataSet());
+			this.original = original;
+		}
+		
+		public Range(int start, byte[] data) {
+			this.start = start;
+			this.data = data;
+		}
+		
+		public int getEnd() {
+			return start + data.length;
+		}
+		
+		public boolean touches(Range other) {
+			return start <= other.getEnd() && other.start <= getEnd();
+		}
+		
+		/**
+		 * Merges with a later range, whose bytes take precedence.
+		 */
+		public Range mergeWith(Range later) {
+			int mergedStart = Math.min(start, later.start);
+			int mergedEnd = Math.max(getEnd(), later.getEnd());
+			byte[] mergedData = new byte[mergedEnd - mergedStart];
+			System.arraycopy(data, 0, mergedData, start - mergedStart, data.length);
+			System.arraycopy(later.data, 0, mergedData, later.start - mergedStart, later.data.length);
+			return new Range(mergedStart, mergedData);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.midi.messages.Message;
+
+/**
+ * Transmitter that limits the update rate of data set messages per address.
+ * 
+ * When a parameter is changed continuously (e.g. by dragging a spinner), only the latest
+ * value is kept while the address is within its minimum update interval, superseded values
+ * are dropped. The latest value is always sent once the interval has passed.
+ * A held value is discarded when a newer data set at another address covers it, or sent
+ * ahead of a newer data set that partially overlaps it, so that it never overwrites newer data.
+ * 
+ * Other messages are forwarded directly, after flushing any held data sets to preserve order.
+ */
+public class DebouncingMidiTransmitter implements MidiTransmitter {
+	
+	public static final int DEFAULT_MAXIMUM_RATE = 20;
+	
+	private MidiTransmitter target;
+	private long minimumInterval;
+	
+	private Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+	private ScheduledExecutorService scheduler;
+	private long supersededCount = 0;
+	
+	public DebouncingMidiTransmitter(MidiTransmitter target) {
+		this.target = target;
+		setMaximumRate(DEFAULT_MAXIMUM_RATE);
+	}
+	
+	/**
+	 * Sets the maximum number of updates per second that are sent for a single address.
+	 * @param updatesPerSecond The maximum rate, or 0 to disable debouncing.
+	 */
+	public synchronized void setMaximumRate(int updatesPerSecond) {
+		if (updatesPerSecond < 0)
+			throw new IllegalArgumentException("Rate must not be negative.");
+		minimumInterval = updatesPerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / updatesPerSecond;
+	}
+	
+	/**
+	 * Returns the maximum number of updates per second that are sent for a single address.
+	 * @return The maximum rate, or 0 if debouncing is disabled.
+	 */
+	public synchronized int getMaximumRate() {
+		return minimumInterval == 0 ? 0 : (int) (TimeUnit.SECONDS.toNanos(1) / minimumInterval);
+	}
+	
+	/**
+	 * Returns the number of data set messages that were dropped because a newer value superseded them.
+	 * @return The number of superseded messages.
+	 */
+	public synchronized long getSupersededCount() {
+		return supersededCount;
+	}
+	
+	@Override
+	public synchronized void send(Message message) {
+		if (message instanceof DataSet1 && minimumInterval > 0 && DataSetCoalescer.isCoalescable((DataSet1) message)) {
+			debounce((DataSet1) message);
+		} else {
+			flush();
+			target.send(message);
+		}
+	}
+	
+	@Override
+	public synchronized void send(List<Message> messages) {
+		flush();
+		target.send(messages);
+	}
+	
+	/**
+	 * Sends all held data set messages immediately.
+	 */
+	public synchronized void flush() {
+		for (Entry entry : entries.values()) {
+			if (entry.pending != null)
+				sendPending(entry);
+		}
+	}
+	
+	/**
+	 * Sends all held data set messages, and stops the thread that sends them later.
+	 * The transmitter can still be used afterwards, the thread is started again when needed.
+	 */
+	public synchronized void close() {
+		flush();
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+	
+	/**
+	 * Discards all held data set messages.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+	
+	private void debounce(DataSet1 message) {
+		long now = System.nanoTime();
+		int address = message.getAddress().getValue();
+		resolveOverlaps(address, message.getSize());
+		Entry entry = entries.get(address);
+		if (entry == null) {
+			purge(now);
+			entry = new Entry();
+			entries.put(address, entry);
+		} else if (entry.pending != null && entry.pending.getSize() != message.getSize()) {
+			sendPending(entry);
+		}
+		
+		if (entry.pending == null && now - entry.lastSent >= minimumInterval) {
+			entry.lastSent = now;
+			target.send(message);
+		} else {
+			if (entry.pending != null) {
+				supersededCount++;
+			} else {
+				schedule(address, entry.lastSent + minimumInterval - now);
+			}
+			entry.pending = message;
+		}
+	}
+	
+	/**
+	 * Handles the held data sets at other addresses that overlap a new data set, so that
+	 * they are not sent after it. Held data sets that it covers entirely are discarded,
+	 * those that it covers partially are sent ahead of it.
+	 */
+	private void resolveOverlaps(int address, int size) {
+		for (Map.Entry<Integer, Entry> held : entries.entrySet()) {
+			Entry entry = held.getValue();
+			int heldAddress = held.getKey();
+			if (entry.pending == null || heldAddress == address)
+				continue;
+			int heldEnd = heldAddress + entry.pending.getSize();
+			if (heldAddress < address + size && heldEnd > address) {
+				if (heldAddress >= address && heldEnd <= address + size) {
+					entry.pending = null;
+					supersededCount++;
+				} else {
+					sendPending(entry);
+				}
+			}
+		}
+	}
+	
+	private void sendPending(Entry entry) {
+		DataSet1 message = entry.pending;
+		entry.pending = null;
+		entry.lastSent = System.nanoTime();
+		target.send(message);
+	}
+	
+	private synchronized void sendPending(int address) {
+		Entry entry = entries.get(address);
+		if (entry != null && entry.pending != null)
+			sendPending(entry);
+	}
+	
+	/**
+	 * Removes entries that are idle and past their interval.
+	 */
+	private void purge(long now) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.pending == null && now - entry.lastSent >= minimumInterval)
+				iterator.remove();
+		}
+	}
+	
+	private void schedule(final int address, long delay) {
+		if (scheduler == null)
+			scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				sendPending(address);
+			}
+		}, delay, TimeUnit.NANOSECONDS);
+	}
+	
+	private static class Entry {
+		long lastSent = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+		DataSet1 pending;
+	}
+	
+	private static class DaemonThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "MIDI debouncer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+}
@@ -16,56 +16,65 @@
 package nl.grauw.gaia.midi;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiMessage;
-import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Receiver;
 import javax.sound.midi.Sequencer;
 import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Synthesizer;
-import javax.sound.midi.SysexMessage;
 import javax.sound.midi.Transmitter;
 
 import nl.grauw.gaia.Log;
+import nl.grauw.gaia.midi.MidiInputBuffer.MessageHandler;
 import nl.grauw.gaia.midi.messages.ActiveSensingMessage;
-import nl.grauw.gaia.midi.messages.ControlChangeMessage;
-import nl.grauw.gaia.midi.messages.DataSet1;
-import nl.grauw.gaia.midi.messages.IdentityReply;
 import nl.grauw.gaia.midi.messages.Message;
-import nl.grauw.gaia.midi.messages.NoteOffMessage;
-import nl.grauw.gaia.midi.messages.NoteOnMessage;
-import nl.grauw.gaia.midi.messages.PitchBendChangeMessage;
-import nl.grauw.gaia.midi.messages.ProgramChangeMessage;
-import nl.grauw.gaia.midi.messages.Sysex;
 
 public class JavaMidiConnection implements MidiConnection, MidiTransmitter {
 	
-	final static int UNIVERSAL_NONREALTIME_SYSEX = 0x7E;
-	final static int GENERAL_INFORMATION = 0x06;
-	final static int IDENTITY_REPLY = 0x02;
-	
-	final static int ROLAND_ID = 0x41;
-	final static int MODEL_SH01 = 0x41;
-	final static int COMMAND_DT1 = 0x12;
-	
 	private boolean opened = false;
 	
+	private MidiDevice input;
+	private MidiDevice output;
 	private Receiver receiver;
 	private Transmitter transmitter;
 	private ResponseReceiver responseReceiver = new ResponseReceiver();
+	private OutputReceiver outputReceiver = new OutputReceiver();
+	private volatile Receiver[] thru = new Receiver[0];
+	private MidiInputBuffer inputBuffer = new MidiInputBuffer();
+	private MidiMessageEncoder encoder = new MidiMessageEncoder();
+	private MessageDecoder decoder = MessageDecoder.createDefault();
+	private Dispatcher dispatchTask = new Dispatcher();
+	private SysexReassembler reassembler = new SysexReassembler(dispatchTask);
+	private Thread dispatcher;
+	private MidiInputBuffer mergeBuffer = new MidiInputBuffer();
+	private byte[] mergeScratch = new byte[3];
+	private MergeDispatcher mergeTask = new MergeDispatcher();
+	private SysexReassembler mergeReassembler = new SysexReassembler(mergeTask);
+	private Thread mergeDispatcher;
+	private MidiDeviceInventory inventory;
+	private MidiDevice.Info lastInput;
+	private MidiDevice.Info lastOutput;
 	
-	private List<MidiReceiver> midiReceivers = new ArrayList<MidiReceiver>();
+	private List<MidiReceiver> midiReceivers = new CopyOnWriteArrayList<MidiReceiver>();
+	private List<MidiReceiver> mergeReceivers = new CopyOnWriteArrayList<MidiReceiver>();
 	
 	private Log log;
 	private Properties settings;
 	
 	public JavaMidiConnection(Log log, Properties settings) {
+		this(log, settings, new MidiDeviceInventory());
+	}
+	
+	public JavaMidiConnection(Log log, Properties settings, MidiDeviceInventory inventory) {
 		this.log = log;
 		this.settings = settings;
+		this.inventory = inventory;
 	}
 	
 	public void addMidiReceiver(MidiReceiver receiver) {
@@ -80,6 +89,45 @@ public class JavaMidiConnection implements MidiConnection, MidiTransmitter {
 		return this;
 	}
 	
+	/**
+	 * Adds a receiver that is passed the raw messages from the GAIA, on the thread of
+	 * the MIDI driver, before they are buffered and decoded.
+	 * @param receiver The receiver, which must not block.
+	 */
+	public synchronized void addThru(Receiver receiver) {
+		Receiver[] receivers = Arrays.copyOf(thru, thru.length + 1);
+		receivers[thru.length] = receiver;
+		thru = receivers;
+	}
+	
+	public synchronized void removeThru(Receiver receiver) {
+		List<Receiver> receivers = new ArrayList<Receiver>(Arrays.asList(thru));
+		if (receivers.remove(receiver))
+			thru = receivers.toArray(new Receiver[receivers.size()]);
+	}
+	
+	/**
+	 * Returns a receiver that sends raw messages to the GAIA, in between the messages
+	 * sent by this connection. Messages are dropped while the connection is closed.
+	 * @return The receiver.
+	 */
+	public Receiver getOutputReceiver() {
+		return outputReceiver;
+	}
+	
+	/**
+	 * Adds a receiver that is passed the messages sent through the output receiver,
+	 * decoded, so that it can account for the GAIA state that they change.
+	 * @param receiver The receiver, which is called on a dispatcher thread.
+	 */
+	public void addMergeReceiver(MidiReceiver receiver) {
+		mergeReceivers.add(receiver);
+	}
+	
+	public void removeMergeReceiver(MidiReceiver receiver) {
+		mergeReceivers.remove(receiver);
+	}
+	
 	/**
 	 * Initialises the system.
 	 * @throws GaiaNotFoundException 
@@ -91,22 +139,66 @@ public class JavaMidiConnection implements MidiConnection, MidiTransmitter {
 		MidiDevice input = getMidiInput();
 		MidiDevice output = getMidiOutput();
 		
+		if ((input == null || output == null) && getDefaultMidiInput() == null && getDefaultMidiOutput() == null) {
+			log.log("Searching all MIDI ports for the GAIA.");
+			MidiDeviceDiscovery.Result result = discover();
+			if (result != null) {
+				input = result.getInput();
+				output = result.getOutput();
+			}
+		}
+		
 		if (input == null || output == null)
 			throw new GaiaNotFoundException();
 		
+		open(input, output);
+	}
+	
+	/**
+	 * Opens the given MIDI ports.
+	 * @param input The MIDI input device that receives messages from the GAIA.
+	 * @param output The MIDI output device that sends messages to the GAIA.
+	 */
+	public void open(MidiDevice input, MidiDevice output) throws MidiUnavailableException {
+		if (opened)
+			throw new RuntimeException("MIDI device is already opened.");
+		
 		log.log("Midi IN: " + input.getDeviceInfo());
 		log.log("Midi OUT: " + output.getDeviceInfo());
 		log.log("");
 		
 		input.open();
 		output.open();
+		this.input = input;
+		this.output = output;
+		lastInput = input.getDeviceInfo();
+		lastOutput = output.getDeviceInfo();
 		transmitter = input.getTransmitter();
 		transmitter.setReceiver(responseReceiver);
 		receiver = output.getReceiver();
+		synchronized (encoder) {
+			encoder.setReuse(isPort(output));
+		}
+		
+		dispatcher = new Thread(dispatchTask, "MIDI receiver");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+		mergeDispatcher = new Thread(mergeTask, "MIDI merge receiver");
+		mergeDispatcher.setDaemon(true);
+		mergeDispatcher.start();
 		
 		opened = true;
 	}
 	
+	private MidiDeviceDiscovery.Result discover() {
+		try {
+			return new MidiDeviceDiscovery(inventory).discover();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
 	/**
 	 * Cleans up the system.
 	 */
@@ -114,18 +206,36 @@ public class JavaMidiConnection implements MidiConnection, MidiTransmitter {
 		if (!opened)
 			throw new RuntimeException("MIDI device is already closed.");
 		
-		MidiDevice input = getMidiInput();
-		MidiDevice output = getMidiOutput();
 		if (input != null)
 			input.close();
 		if (output != null)
 			output.close();
+		input = null;
+		output = null;
 		if (receiver != null)
 			receiver.close();
 		if (transmitter != null)
 			transmitter.close();
 		if (responseReceiver != null)
 			responseReceiver.close();
+		if (dispatcher != null) {
+			dispatcher.interrupt();
+			try {
+				dispatcher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			dispatcher = null;
+		}
+		if (mergeDispatcher != null) {
+			mergeDispatcher.interrupt();
+			try {
+				mergeDispatcher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			mergeDispatcher = null;
+		}
 		
 		opened = false;
 	}
@@ -134,6 +244,54 @@ public class JavaMidiConnection implements MidiConnection, MidiTransmitter {
 		return opened;
 	}
 	
+	/**
+	 * Returns whether the GAIA’s MIDI ports are present in the system.
+	 * When not opened, these are the ports that were last opened, or else the
+	 * configured or detected ports.
+	 * @return True if the input and output ports are present.
+	 */
+	public boolean isDevicePresent() {
+		MidiDevice input = this.input;
+		MidiDevice output = this.output;
+		if (input != null && output != null)
+			return inventory.contains(input.getDeviceInfo()) && inventory.contains(output.getDeviceInfo());
+		if (lastInput != null && lastOutput != null)
+			return inventory.contains(lastInput) && inventory.contains(lastOutput);
+		return getMidiInput() != null && getMidiOutput() != null;
+	}
+	
+	/**
+	 * Returns the cached list of MIDI devices.
+	 * @return The device inventory.
+	 */
+	public MidiDeviceInventory getInventory() {
+		return inventory;
+	}
+	
+	/**
+	 * Returns the decoder for incoming messages, to which message types can be added.
+	 * @return The message decoder.
+	 */
+	public MessageDecoder getDecoder() {
+		return decoder;
+	}
+	
+	/**
+	 * Returns the reassembler for fragmented system exclusive messages.
+	 * @return The reassembler, which provides the truncated and malformed message counts.
+	 */
+	public SysexReassembler getReassembler() {
+		return reassembler;
+	}
+	
+	/**
+	 * Returns the buffer that holds incoming messages until they are dispatched.
+	 * @return The input buffer, which provides the queue depth and dropped message count.
+	 */
+	public MidiInputBuffer getInputBuffer() {
+		return inputBuffer;
+	}
+	
 	public String getDefaultMidiInput() {
 		return settings.getProperty("midi.input");
 	}
@@ -160,80 +318,60 @@ public class JavaMidiConnection implements MidiConnection, MidiTransmitter {
 	
 	/**
 	 * Get the MIDI input port that receives messages from the GAIA.
-	 * @return A MIDI input device, or null.
+	 * @return The opened MIDI input device, or the configured or detected one, or null.
 	 */
 	public MidiDevice getMidiInput() {
-		String name = settings.getProperty("midi.input");
-		if (name == null) {
-			return autoDetectMidiInput();
-		}
+		if (input != null)
+			return input;
 		
-		for (MidiDevice.Info mdi : MidiSystem.getMidiDeviceInfo()) {
-			if (mdi.getName().contains(name)) {
-				try {
-					MidiDevice md = MidiSystem.getMidiDevice(mdi);
-					if (md.getMaxTransmitters() != 0 && !(md instanceof Sequencer) && !(md instanceof Synthesizer))
-						return md;
-				} catch (MidiUnavailableException e) {
-				}
-			}
-		}
-		return null;
-	}
-	
-	private MidiDevice autoDetectMidiInput() {
-		for (MidiDevice.Info mdi : MidiSystem.getMidiDeviceInfo()) {
-			if (mdi.getName().contains("SH-01")) {
-				try {
-					MidiDevice md = MidiSystem.getMidiDevice(mdi);
-					if (md.getMaxTransmitters() != 0 && !(md instanceof Sequencer) && !(md instanceof Synthesizer))
-						return md;
-				} catch (MidiUnavailableException e) {
-				}
-			}
-		}
-		return null;
+		String name = settings.getProperty("midi.input");
+		return findMidiDevice(name != null ? name : "SH-01", true);
 	}
 	
 	/**
 	 * Get the MIDI output port that sends messages to the GAIA.
-	 * @return A MIDI output device, or null.
+	 * @return The opened MIDI output device, or the configured or detected one, or null.
 	 */
 	public MidiDevice getMidiOutput() {
-		String name = settings.getProperty("midi.output");
-		if (name == null) {
-			return autoDetectMidiOutput();
-		}
+		if (output != null)
+			return output;
 		
-		for (MidiDevice.Info mdi : MidiSystem.getMidiDeviceInfo()) {
-			if (mdi.getName().contains(name)) {
-				try {
-					MidiDevice md = MidiSystem.getMidiDevice(mdi);
-					if (md.getMaxReceivers() != 0 && !(md instanceof Sequencer) && !(md instanceof Synthesizer)) {
-						return md;
-					}
-				} catch (MidiUnavailableException e) {
-				}
-			}
-		}
-		return null;
+		String name = settings.getProperty("midi.output");
+		return findMidiDevice(name != null ? name : "SH-01", false);
 	}
 	
 	public MidiDevice autoDetectMidiOutput() {
-		for (MidiDevice.Info mdi : MidiSystem.getMidiDeviceInfo()) {
-			if (mdi.getName().contains("SH-01")) {
-				try {
-					MidiDevice md = MidiSystem.getMidiDevice(mdi);
-					if (md.getMaxReceivers() != 0 && !(md instanceof Sequencer) && !(md instanceof Synthesizer)) {
-						return md;
-					}
-				} catch (MidiUnavailableException e) {
-				}
+		return findMidiDevice("SH-01", false);
+	}
+	
+	/**
+	 * Finds a MIDI port whose name contains the given name.
+	 * @param name The name to look for.
+	 * @param input True to find an input port, false for an output port.
+	 * @return The MIDI device, or null.
+	 */
+	private MidiDevice findMidiDevice(String name, boolean input) {
+		MidiDeviceInventory.Entry entry = inventory.find(name, input);
+		if (entry != null) {
+			try {
+				return entry.getDevice();
+			} catch (MidiUnavailableException e) {
+			} catch (IllegalArgumentException e) {
+				// removed in the meantime
 			}
 		}
 		return null;
 	}
 	
+	/**
+	 * Returns whether a device is a MIDI port, whose receiver passes messages on to the
+	 * driver before returning, so that the encoder can reuse its message objects.
+	 * Synthesizers and sequencers may hold on to the messages.
+	 */
+	private static boolean isPort(MidiDevice device) {
+		return !(device instanceof Synthesizer) && !(device instanceof Sequencer);
+	}
+	
 	/**
 	 * Sends a MidiMessage to the GAIA.
 	 * @param message
@@ -242,78 +380,44 @@ public class JavaMidiConnection implements MidiConnection, MidiTransmitter {
 		if (!opened)
 			throw new RuntimeException("MIDI connection not open.");
 		
-		if (message instanceof Sysex) {
-			receiver.send(new SysexMessageWrapper(message.getMessage()), -1);
-		} else {
-			receiver.send(new ShortMessageWrapper(message.getMessage()), -1);
+		synchronized (encoder) {
+			receiver.send(encoder.encode(message), -1);
 		}
 		
 		log.log("Sent: " + message);
 	}
 	
-	private static class SysexMessageWrapper extends SysexMessage {
-		public SysexMessageWrapper(byte[] message) {
-			super(message);
-		}
-	}
-	
-	private static class ShortMessageWrapper extends ShortMessage {
-		public ShortMessageWrapper(byte[] message) {
-			super(message);
-		}
+	/**
+	 * Sends a list of MidiMessages to the GAIA.
+	 * @param messages
+	 */
+	public void send(List<Message> messages) {
+		for (Message message : messages)
+			send(message);
 	}
 	
-	private void receive(MidiMessage midiMessage, long timeStamp) {
-		Message message = processMidiMessage(midiMessage);
+	private void receive(byte[] data, long timeStamp) {
+		Message message = processMidiMessage(data);
 		
 		if (!(message instanceof ActiveSensingMessage)) {
 			log.log("Received: " + message);
 		}
 		
-		for (MidiReceiver receiver : new ArrayList<MidiReceiver>(midiReceivers))
+		for (MidiReceiver receiver : midiReceivers)
 			receiver.receive(message);
 	}
 	
 	public Message processMidiMessage(MidiMessage message) {
-		if (message instanceof SysexMessage) {
-			return processMidiMessage((SysexMessage) message);
-		} else if (message instanceof ShortMessage) {
-			return processMidiMessage((ShortMessage) message);
-		}
-		return new Message(message.getMessage());
+		return decoder.decode(message.getMessage());
 	}
 	
-	public Message processMidiMessage(SysexMessage message) {
-		if (message.getStatus() == SysexMessage.SYSTEM_EXCLUSIVE) {
-			byte[] data = message.getData();
-			if (data.length > 0 && data[0] == UNIVERSAL_NONREALTIME_SYSEX) {
-				if (data.length > 3 && data[2] == GENERAL_INFORMATION && data[3] == IDENTITY_REPLY) {
-					return new IdentityReply(message.getMessage());
-				}
-			} else if (data.length > 4 && data[0] == ROLAND_ID && data[2] == 0 && data[3] == 0 && data[4] == MODEL_SH01) {
-				if (data.length > 5 && data[5] == COMMAND_DT1) {
-					return new DataSet1(message.getMessage());
-				}
-			}
-		}
-		return new Message(message.getMessage());
-	}
-	
-	public Message processMidiMessage(ShortMessage message) {
-		if (message.getCommand() == ShortMessage.NOTE_ON) {
-			return new NoteOnMessage(message.getMessage());
-		} else if (message.getCommand() == ShortMessage.NOTE_OFF) {
-			return new NoteOffMessage(message.getMessage());
-		} else if (message.getCommand() == ShortMessage.PROGRAM_CHANGE) {
-			return new ProgramChangeMessage(message.getMessage());
-		} else if (message.getCommand() == ShortMessage.CONTROL_CHANGE) {
-			return new ControlChangeMessage(message.getMessage());
-		} else if (message.getCommand() == ShortMessage.PITCH_BEND) {
-			return new PitchBendChangeMessage(message.getMessage());
-		} else if (message.getStatus() == ShortMessage.ACTIVE_SENSING) {
-			return new ActiveSensingMessage(message.getMessage());
-		}
-		return new Message(message.getMessage());
+	/**
+	 * Decodes a complete MIDI message from its raw bytes.
+	 * @param data The message bytes, including the status byte.
+	 * @return The decoded message.
+	 */
+	public Message processMidiMessage(byte[] data) {
+		return decoder.decode(data);
 	}
 	
 	public static class GaiaNotFoundException extends Exception {
@@ -324,11 +428,17 @@ public class JavaMidiConnection implements MidiConnection, MidiTransmitter {
 		}
 	}
 	
+	/**
+	 * Receives messages on the MIDI driver thread, and only copies them into the input buffer.
+	 */
 	private class ResponseReceiver implements Receiver {
 		
 		@Override
 		public void send(MidiMessage message, long timeStamp) {
-			receive(message, timeStamp);
+			Receiver[] receivers = thru;
+			for (int i = 0; i < receivers.length; i++)
+				receivers[i].send(message, timeStamp);
+			inputBuffer.offer(message.getMessage(), message.getLength(), timeStamp);
 		}
 		
 		@Override
@@ -337,4 +447,96 @@ public class JavaMidiConnection implements MidiConnection, MidiTransmitter {
 		
 	}
 	
+	/**
+	 * Sends raw messages to the GAIA output, sharing the lock of the encoder.
+	 * If there are merge receivers, the messages are copied into the merge buffer,
+	 * and decoded and passed to them on the merge dispatcher thread. Short messages
+	 * are copied through a scratch array, so that the sender does not allocate.
+	 */
+	private class OutputReceiver implements Receiver {
+		
+		@Override
+		public void send(MidiMessage message, long timeStamp) {
+			synchronized (encoder) {
+				if (!opened)
+					return;
+				receiver.send(message, timeStamp);
+				if (!mergeReceivers.isEmpty()) {
+					if (message instanceof ShortMessage) {
+						ShortMessage shortMessage = (ShortMessage) message;
+						mergeScratch[0] = (byte) shortMessage.getStatus();
+						mergeScratch[1] = (byte) shortMessage.getData1();
+						mergeScratch[2] = (byte) shortMessage.getData2();
+						mergeBuffer.offer(mergeScratch, shortMessage.getLength(), timeStamp);
+					} else {
+						mergeBuffer.offer(message.getMessage(), message.getLength(), timeStamp);
+					}
+				}
+			}
+		}
+		
+		@Override
+		public void close() {
+		}
+		
+	}
+	
+	/**
+	 * Decodes the buffered messages and dispatches them to the MIDI receivers.
+	 */
+	private class Dispatcher implements Runnable, MessageHandler {
+		
+		@Override
+		public void run() {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					if (inputBuffer.await(1000))
+						inputBuffer.drain(reassembler);
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			}
+		}
+		
+		@Override
+		public void handle(byte[] data, int length, long timeStamp) {
+			try {
+				receive(Arrays.copyOf(data, length), timeStamp);
+			} catch (RuntimeException e) {
+				log.log("Receiving failed: " + e.getMessage());
+			}
+		}
+		
+	}
+	
+	/**
+	 * Decodes the buffered merged messages and dispatches them to the merge receivers.
+	 */
+	private class MergeDispatcher implements Runnable, MessageHandler {
+		
+		@Override
+		public void run() {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					if (mergeBuffer.await(1000))
+						mergeBuffer.drain(mergeReassembler);
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			}
+		}
+		
+		@Override
+		public void handle(byte[] data, int length, long timeStamp) {
+			try {
+				Message message = decoder.decode(Arrays.copyOf(data, length));
+				for (MidiReceiver mergeReceiver : mergeReceivers)
+					mergeReceiver.receive(message);
+			} catch (RuntimeException e) {
+				log.log("Merging failed: " + e.getMessage());
+			}
+		}
+		
+	}
+	
 }
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the performance of the link to the device, and derives the pacing of
+ * system exclusive messages from it.
+ * 
+ * The round-trip time and throughput are measured on data requests (RQ1) and the
+ * data set messages (DT1) that answer them, and smoothed over several requests.
+ * The interval between system exclusive messages follows a fraction of the measured
+ * round-trip time, so that a fast USB link is not slowed down while a DIN link does
+ * not overrun the device. The window of outstanding requests grows by one for every
+ * answered request and is halved when a reply goes missing, at which point the
+ * interval is also doubled.
+ * 
+ * All methods are thread-safe; requests are reported by the transmitter thread and
+ * replies by the receiver thread. Window listeners are informed when replies or a
+ * reset free up room in the window, so that the transmitter need not poll it.
+ */
+public class LinkProfile {
+	
+	public static final int DEFAULT_MINIMUM_INTERVAL = 2;
+	public static final int DEFAULT_MAXIMUM_INTERVAL = 200;
+	public static final int DEFAULT_REPLY_TIMEOUT = 1000;
+	public static final int INITIAL_INTERVAL = 20;
+	public static final int INITIAL_WINDOW = 2;
+	public static final int MAXIMUM_WINDOW = 16;
+	
+	/**
+	 * Nominal throughput of a 31.25 kbaud MIDI cable, used until it has been measured.
+	 */
+	public static final double NOMINAL_THROUGHPUT = 3125;
+	
+	final static int DATA_SET_OVERHEAD = 13;
+	final static int DATA_REQUEST_SIZE = 17;
+	
+	private List<Request> requests = new ArrayList<Request>();
+	private List<WindowListener> windowListeners = new CopyOnWriteArrayList<WindowListener>();
+	private long minimumInterval = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MINIMUM_INTERVAL);
+	private long maximumInterval = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAXIMUM_INTERVAL);
+	private long replyTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_REPLY_TIMEOUT);
+	
+	private long interval;
+	private int window;
+	private double roundTripTime;
+	private double throughput;
+	private long answeredCount;
+	private long missedCount;
+	
+	public LinkProfile() {
+		reset();
+	}
+	
+	public void addWindowListener(WindowListener listener) {
+		windowListeners.add(listener);
+	}
+	
+	public void removeWindowListener(WindowListener listener) {
+		windowListeners.remove(listener);
+	}
+	
+	/**
+	 * Forgets all measurements and outstanding requests.
+	 */
+	public void reset() {
+		clear();
+		fireWindowChange();
+	}
+	
+	private synchronized void clear() {
+		requests.clear();
+		interval = TimeUnit.MILLISECONDS.toNanos(INITIAL_INTERVAL);
+		window = INITIAL_WINDOW;
+		roundTripTime = 0;
+		throughput = 0;
+		answeredCount = 0;
+		missedCount = 0;
+	}
+	
+	/**
+	 * Reports that a data request was transmitted.
+	 * @param address The start address of the request, as returned by Address.getValue().
+	 * @param size The size of the requested data.
+	 */
+	public synchronized void requestSent(int address, int size) {
+		expire(System.nanoTime());
+		requests.add(new Request(address, size, System.nanoTime()));
+	}
+	
+	/**
+	 * Reports that data was received.
+	 * @param address The start address of the data, as returned by Address.getValue().
+	 * @param size The size of the data.
+	 */
+	public void dataReceived(int address, int size) {
+		if (receive(address, size))
+			fireWindowChange();
+	}
+	
+	/**
+	 * Accounts received data to the outstanding requests.
+	 * @return True if a request was answered completely.
+	 */
+	private synchronized boolean receive(int address, int size) {
+		long now = System.nanoTime();
+		expire(now);
+		for (Iterator<Request> i = requests.iterator(); i.hasNext();) {
+			Request request = i.next();
+			int overlap = Math.min(request.address + request.size, address + size) - Math.max(request.address, address);
+			if (overlap > 0) {
+				request.received += overlap;
+				request.messages++;
+				if (request.received >= request.size) {
+					i.remove();
+					answered(request, now);
+					return true;
+				}
+				return false;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Informs the window listeners, outside the lock of the profile.
+	 */
+	private void fireWindowChange() {
+		for (WindowListener listener : windowListeners)
+			listener.onWindowChange(this);
+	}
+	
+	private void answered(Request request, long now) {
+		long sample = Math.max(1, now - request.sentTime);
+		int bytes = DATA_REQUEST_SIZE + request.size + request.messages * DATA_SET_OVERHEAD;
+		double sampleThroughput = bytes * 1e9 / sample;
+		if (answeredCount == 0) {
+			roundTripTime = sample;
+			throughput = sampleThroughput;
+		} else {
+			roundTripTime += (sample - roundTripTime) / 8;
+			throughput += (sampleThroughput - throughput) / 8;
+		}
+		answeredCount++;
+		
+		long target = Math.min(maximumInterval, Math.max(minimumInterval, (long) (roundTripTime / 4)));
+		interval += (target - interval) / 4;
+		window = Math.min(MAXIMUM_WINDOW, window + 1);
+	}
+	
+	/**
+	 * Backs off for requests that were not answered within the reply timeout.
+	 */
+	private void expire(long now) {
+		for (Iterator<Request> i = requests.iterator(); i.hasNext();) {
+			if (now - i.next().sentTime > replyTimeout) {
+				i.remove();
+				missedCount++;
+				interval = Math.min(maximumInterval, interval * 2);
+				window = Math.max(1, window / 2);
+			}
+		}
+	}
+	
+	/**
+	 * Returns whether another data request may be sent without exceeding the window.
+	 * @return True if fewer requests are outstanding than the window allows.
+	 */
+	public synchronized boolean isWindowOpen() {
+		expire(System.nanoTime());
+		return requests.size() < window;
+	}
+	
+	/**
+	 * Returns the time until the oldest outstanding request counts as missing,
+	 * which opens the window if no reply arrives before.
+	 * @return The time in nanoseconds, or 0 if no requests are outstanding.
+	 */
+	synchronized long getExpiryDelayNanos() {
+		long now = System.nanoTime();
+		expire(now);
+		return requests.isEmpty() ? 0 : requests.get(0).sentTime + replyTimeout - now;
+	}
+	
+	/**
+	 * Returns the number of requests that have not been answered yet.
+	 * @return The number of outstanding requests.
+	 */
+	public synchronized int getOutstandingCount() {
+		expire(System.nanoTime());
+		return requests.size();
+	}
+	
+	/**
+	 * Returns the maximum number of outstanding data requests.
+	 * @return The window size.
+	 */
+	public synchronized int getWindow() {
+		return window;
+	}
+	
+	/**
+	 * Returns the interval to keep between system exclusive messages.
+	 * @return The interval in milliseconds.
+	 */
+	public synchronized double getSysexInterval() {
+		return interval / 1e6;
+	}
+	
+	synchronized long getSysexIntervalNanos() {
+		return interval;
+	}
+	
+	/**
+	 * Sets the range that the system exclusive interval is kept within.
+	 * @param minimum The minimum interval in milliseconds.
+	 * @param maximum The maximum interval in milliseconds.
+	 */
+	public synchronized void setSysexIntervalRange(long minimum, long maximum) {
+		if (minimum < 0 || maximum < minimum)
+			throw new IllegalArgumentException("Invalid interval range.");
+		minimumInterval = TimeUnit.MILLISECONDS.toNanos(minimum);
+		maximumInterval = TimeUnit.MILLISECONDS.toNanos(maximum);
+		interval = Math.min(maximumInterval, Math.max(minimumInterval, interval));
+	}
+	
+	/**
+	 * Sets the time after which a data request counts as missing.
+	 * @param milliseconds The timeout in milliseconds.
+	 */
+	public synchronized void setReplyTimeout(long milliseconds) {
+		if (milliseconds <= 0)
+			throw new IllegalArgumentException("Timeout must be positive.");
+		replyTimeout = TimeUnit.MILLISECONDS.toNanos(milliseconds);
+	}
+	
+	/**
+	 * Returns the smoothed round-trip time of data requests.
+	 * @return The round-trip time in milliseconds, or 0 if not measured yet.
+	 */
+	public synchronized double getRoundTripTime() {
+		return roundTripTime / 1e6;
+	}
+	
+	/**
+	 * Returns the smoothed throughput of data requests and their replies.
+	 * @return The throughput in bytes per second, or the nominal MIDI throughput if not measured yet.
+	 */
+	public synchronized double getThroughput() {
+		return answeredCount == 0 ? NOMINAL_THROUGHPUT : throughput;
+	}
+	
+	/**
+	 * Estimates how long it takes to transfer an amount of data.
+	 * @param messages The number of data set or data request messages.
+	 * @param size The total size of the data.
+	 * @return The estimated time in milliseconds.
+	 */
+	public synchronized long estimateTransferTime(int messages, int size) {
+		double bytes = size + messages * DATA_SET_OVERHEAD;
+		double wireTime = bytes * 1000 / getThroughput();
+		double pacingTime = messages * interval / 1e6;
+		return (long) Math.max(wireTime, pacingTime);
+	}
+	
+	/**
+	 * Returns the number of data requests that were answered completely.
+	 * @return The number of answered requests.
+	 */
+	public synchronized long getAnsweredCount() {
+		return answeredCount;
+	}
+	
+	/**
+	 * Returns the number of data requests that were not answered within the reply timeout.
+	 * @return The number of missed requests.
+	 */
+	public synchronized long getMissedCount() {
+		return missedCount;
+	}
+	
+	/**
+	 * Listener that is informed when room may have come free in the request window.
+	 */
+	public interface WindowListener {
+		
+		public void onWindowChange(LinkProfile source);
+		
+	}
+	
+	private static class Request {
+		
+		private int address;
+		private int size;
+		private long sentTime;
+		private int received = 0;
+		private int messages = 0;
+		
+		public Request(int address, int size, long sentTime) {
+			this.address = address;
+			this.size = size;
+			this.sentTime = sentTime;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.grauw.gaia.midi.messages.ActiveSensingMessage;
+import nl.grauw.gaia.midi.messages.ChannelMessage;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage;
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.midi.messages.IdentityReply;
+import nl.grauw.gaia.midi.messages.Message;
+import nl.grauw.gaia.midi.messages.NoteOffMessage;
+import nl.grauw.gaia.midi.messages.NoteOnMessage;
+import nl.grauw.gaia.midi.messages.PitchBendChangeMessage;
+import nl.grauw.gaia.midi.messages.ProgramChangeMessage;
+import nl.grauw.gaia.midi.messages.Sysex;
+
+/**
+ * Table-driven decoder that creates typed messages from raw MIDI bytes.
+ * 
+ * Channel and system messages are looked up by their status byte. System exclusive
+ * messages are looked up by manufacturer ID, and then by the header bytes that follow
+ * the device ID (model ID and command, or the sub IDs for universal messages). The
+ * number of header bytes is fixed per manufacturer, so each lookup is a table index
+ * followed by a single hash lookup.
+ * 
+ * Messages without a registered factory are decoded as a generic Message.
+ */
+public class MessageDecoder {
+	
+	final static int ROLAND_ID = 0x41;
+	final static int UNIVERSAL_NONREALTIME_SYSEX = 0x7E;
+	
+	private Factory[] statusFactories = new Factory[0x80];
+	private Manufacturer[] manufacturers = new Manufacturer[0x80];
+	
+	public interface Factory {
+		
+		/**
+		 * Creates a message object.
+		 * @param message The complete message bytes, which the message may keep.
+		 * @return The message.
+		 */
+		public Message create(byte[] message);
+		
+	}
+	
+	/**
+	 * Creates a decoder for the messages that the GAIA sends.
+	 * @return A new decoder.
+	 */
+	public static MessageDecoder createDefault() {
+		MessageDecoder decoder = new MessageDecoder();
+		decoder.register(ChannelMessage.NOTE_OFF, new Factory() {
+			public Message create(byte[] message) {
+				return new NoteOffMessage(message);
+			}
+		});
+		decoder.register(ChannelMessage.NOTE_ON, new Factory() {
+			public Message create(byte[] message) {
+				return new NoteOnMessage(message);
+			}
+		});
+		decoder.register(ChannelMessage.CONTROL_CHANGE, new Factory() {
+			public Message create(byte[] message) {
+				return new ControlChangeMessage(message);
+			}
+		});
+		decoder.register(ChannelMessage.PROGRAM_CHANGE, new Factory() {
+			public Message create(byte[] message) {
+				return new ProgramChangeMessage(message);
+			}
+		});
+		decoder.register(ChannelMessage.PITCH_BEND, new Factory() {
+			public Message create(byte[] message) {
+				return new PitchBendChangeMessage(message);
+			}
+		});
+		decoder.register(0xFE, new Factory() {
+			public Message create(byte[] message) {
+				return new ActiveSensingMessage(message);
+			}
+		});
+		decoder.registerSysex(UNIVERSAL_NONREALTIME_SYSEX, new byte[] { 0x06, 0x02 }, new Factory() {
+			public Message create(byte[] message) {
+				return new IdentityReply(message);
+			}
+		});
+		decoder.registerSysex(ROLAND_ID, new byte[] { 0x00, 0x00, 0x41, 0x12 }, new Factory() {
+			public Message create(byte[] message) {
+				return new DataSet1(message);
+			}
+		});
+		return decoder;
+	}
+	
+	/**
+	 * Registers a factory for a channel or system common / realtime message.
+	 * @param status The status byte. For channel messages, the channel bits must be 0,
+	 *               the factory is used for all channels.
+	 * @param factory The factory that creates the message.
+	 */
+	public void register(int status, Factory factory) {
+		if (status < 0x80 || status > 0xFF || status == Sysex.SYSTEM_EXCLUSIVE)
+			throw new IllegalArgumentException("Invalid status.");
+		if (status < 0xF0 && (status & 0x0F) != 0)
+			throw new IllegalArgumentException("Channel message status must not include a channel.");
+		
+		if (status < 0xF0) {
+			for (int channel = 0; channel < 16; channel++)
+				statusFactories[status - 0x80 + channel] = factory;
+		} else {
+			statusFactories[status - 0x80] = factory;
+		}
+	}
+	
+	/**
+	 * Registers a factory for a system exclusive message.
+	 * @param manufacturerId The manufacturer ID, the first byte after the status.
+	 * @param header The bytes following the device ID that identify the message, at most
+	 *               4 bytes. All headers of a manufacturer must have the same length.
+	 * @param factory The factory that creates the message.
+	 */
+	public void registerSysex(int manufacturerId, byte[] header, Factory factory) {
+		if (manufacturerId < 0 || manufacturerId > 0x7F)
+			throw new IllegalArgumentException("Invalid manufacturer ID.");
+		if (header.length > 4)
+			throw new IllegalArgumentException("Header too long.");
+		
+		Manufacturer manufacturer = manufacturers[manufacturerId];
+		if (manufacturer == null) {
+			manufacturer = new Manufacturer(header.length);
+			manufacturers[manufacturerId] = manufacturer;
+		} else if (manufacturer.headerLength != header.length) {
+			throw new IllegalArgumentException("Header length differs from earlier registrations.");
+		}
+		manufacturer.factories.put(pack(header, 0, header.length), factory);
+	}
+	
+	/**
+	 * Decodes a complete MIDI message.
+	 * @param message The message bytes, including the status byte. The returned message may keep them.
+	 * @return The decoded message, a generic Message if the type is not registered.
+	 */
+	public Message decode(byte[] message) {
+		Factory factory = findFactory(message);
+		return factory != null ? factory.create(message) : new Message(message);
+	}
+	
+	private Factory findFactory(byte[] message) {
+		if (message.length == 0)
+			return null;
+		
+		int status = message[0] & 0xFF;
+		if (status < 0x80)
+			return null;
+		if (status != Sysex.SYSTEM_EXCLUSIVE)
+			return statusFactories[status - 0x80];
+		
+		if (message.length < 3)
+			return null;
+		int manufacturerId = message[1];
+		Manufacturer manufacturer = manufacturerId >= 0 ? manufacturers[manufacturerId] : null;
+		if (manufacturer == null || message.length < 3 + manufacturer.headerLength)
+			return null;
+		return manufacturer.factories.get(pack(message, 3, manufacturer.headerLength));
+	}
+	
+	private static int pack(byte[] bytes, int offset, int length) {
+		int key = 0;
+		for (int i = offset; i < offset + length; i++)
+			key = key << 8 | bytes[i] & 0xFF;
+		return key;
+	}
+	
+	private static class Manufacturer {
+		
+		private int headerLength;
+		private Map<Integer, Factory> factories = new HashMap<Integer, Factory>();
+		
+		public Manufacturer(int headerLength) {
+			this.headerLength = headerLength;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import nl.grauw.gaia.midi.messages.Message;
+
+/**
+ * Dispatches messages to the handlers registered for their exact type.
+ * Messages for which no handler is registered are ignored.
+ */
+public class MessageDispatcher implements MidiReceiver {
+	
+	private Map<Class<?>, List<Handler<?>>> handlers = new ConcurrentHashMap<Class<?>, List<Handler<?>>>();
+	
+	public interface Handler<T extends Message> {
+		
+		/**
+		 * Handles a message.
+		 * @param message The message.
+		 */
+		public void handle(T message);
+		
+	}
+	
+	/**
+	 * Registers a handler for a message type.
+	 * @param type The class of the messages to handle. Subclasses are not matched.
+	 * @param handler The handler.
+	 */
+	public synchronized <T extends Message> void addHandler(Class<T> type, Handler<? super T> handler) {
+		List<Handler<?>> list = handlers.get(type);
+		if (list == null) {
+			list = new CopyOnWriteArrayList<Handler<?>>();
+			handlers.put(type, list);
+		}
+		list.add(handler);
+	}
+	
+	public <T extends Message> void removeHandler(Class<T> type, Handler<? super T> handler) {
+		List<Handler<?>> list = handlers.get(type);
+		if (list != null)
+			list.remove(handler);
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public void receive(Message message) {
+		List<Handler<?>> list = handlers.get(message.getClass());
+		if (list != null) {
+			for (Handler<?> handler : list)
+				((Handler<Message>) handler).handle(message);
+		}
+	}
+	
+}
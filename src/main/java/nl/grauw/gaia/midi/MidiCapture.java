@@ -0,0 +1,259 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import nl.grauw.gaia.Log;
+import nl.grauw.gaia.midi.messages.Message;
+
+/**
+ * Connection that records all traffic of another connection to a capture file.
+ * 
+ * The file starts with a header holding a magic number, the format version and the
+ * wall clock time of the start of the capture in milliseconds. It is followed by a
+ * record per message: the time since the start in nanoseconds (8 bytes), the
+ * direction (1 byte), the message length (4 bytes) and the message bytes. All
+ * numbers are big-endian.
+ * 
+ * Records are collected in a buffer, which is handed to a background thread for
+ * writing when it is full, every FLUSH_INTERVAL milliseconds, and when the capture is
+ * closed. This keeps file access off the MIDI threads, and limits the records lost
+ * when the process ends abruptly. If writing fails, capturing stops and the traffic
+ * continues to pass through.
+ */
+public class MidiCapture implements MidiConnection, MidiTransmitter, MidiReceiver {
+	
+	public static final int MAGIC = 0x47434150;	// "GCAP"
+	public static final int VERSION = 1;
+	public static final int INBOUND = 0;
+	public static final int OUTBOUND = 1;
+	
+	final static int HEADER_SIZE = 14;
+	final static int RECORD_HEADER_SIZE = 13;
+	final static int BUFFER_SIZE = 0x10000;
+	final static int FLUSH_INTERVAL = 1000;
+	
+	private MidiConnection connection;
+	private Log log;
+	private List<MidiReceiver> receivers = new CopyOnWriteArrayList<MidiReceiver>();
+	
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private Queue<ByteBuffer> spareBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private ScheduledExecutorService writer;
+	private long startTime;
+	private boolean closed = false;
+	private volatile boolean failed = false;
+	private volatile long recordCount = 0;
+	
+	/**
+	 * Starts capturing the traffic of a connection.
+	 * @param connection The connection to capture.
+	 * @param file The capture file, which is overwritten.
+	 * @param log The log to report failures to.
+	 * @throws IOException If the file could not be created.
+	 */
+	public MidiCapture(MidiConnection connection, File file, Log log) throws IOException {
+		this.connection = connection;
+		this.log = log;
+		
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		startTime = java.lang.System.nanoTime();
+		buffer.putInt(MAGIC).putShort((short) VERSION).putLong(java.lang.System.currentTimeMillis());
+		
+		writer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+		writer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+		
+		connection.addMidiReceiver(this);
+	}
+	
+	/**
+	 * Stops capturing, and waits until the remaining records are written to the file.
+	 * The traffic continues to pass through.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			flush();
+		}
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				closeChannel();
+			}
+		});
+		writer.shutdown();
+		try {
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	@Override
+	public void addMidiReceiver(MidiReceiver receiver) {
+		receivers.add(receiver);
+	}
+	
+	@Override
+	public void removeMidiReceiver(MidiReceiver receiver) {
+		receivers.remove(receiver);
+	}
+	
+	@Override
+	public MidiTransmitter getMidiTransmitter() {
+		return this;
+	}
+	
+	/**
+	 * Records and passes on a message from the connection.
+	 */
+	@Override
+	public void receive(Message message) {
+		record(INBOUND, message);
+		for (MidiReceiver receiver : receivers)
+			receiver.receive(message);
+	}
+	
+	/**
+	 * Records and sends a message over the connection.
+	 */
+	@Override
+	public void send(Message message) {
+		record(OUTBOUND, message);
+		connection.getMidiTransmitter().send(message);
+	}
+	
+	@Override
+	public void send(List<Message> messages) {
+		for (Message message : messages)
+			record(OUTBOUND, message);
+		connection.getMidiTransmitter().send(messages);
+	}
+	
+	private synchronized void record(int direction, Message message) {
+		if (closed || failed)
+			return;
+		
+		int size = message.getDataSize() + 1;
+		if (buffer.remaining() < RECORD_HEADER_SIZE + size)
+			flush();
+		if (buffer.remaining() < RECORD_HEADER_SIZE + size) {
+			ByteBuffer large = ByteBuffer.allocate(RECORD_HEADER_SIZE + size);
+			put(large, direction, message);
+			write(large);
+		} else {
+			put(buffer, direction, message);
+		}
+		recordCount++;
+	}
+	
+	private void put(ByteBuffer buffer, int direction, Message message) {
+		int size = message.getDataSize() + 1;
+		buffer.putLong(java.lang.System.nanoTime() - startTime).put((byte) direction).putInt(size);
+		for (int i = 0; i < size; i++)
+			buffer.put((byte) message.getMessage(i));
+	}
+	
+	/**
+	 * Hands the collected records to the writer thread, and continues in a spare buffer.
+	 */
+	private synchronized void flush() {
+		if (buffer.position() == 0)
+			return;
+		write(buffer);
+		buffer = spareBuffers.poll();
+		if (buffer == null)
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+	
+	/**
+	 * Writes a buffer of records to the file on the writer thread.
+	 */
+	private void write(final ByteBuffer data) {
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (channel == null)
+					return;
+				try {
+					((Buffer) data).flip();
+					while (data.hasRemaining())
+						channel.write(data);
+				} catch (IOException e) {
+					log.log("Writing MIDI capture failed, capture stopped: " + e.getMessage());
+					failed = true;
+					closeChannel();
+				}
+				if (data.isDirect()) {
+					((Buffer) data).clear();
+					spareBuffers.add(data);
+				}
+			}
+		});
+	}
+	
+	private void closeChannel() {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.log("Writing MIDI capture failed: " + e.getMessage());
+		}
+		channel = null;
+	}
+	
+	/**
+	 * Returns the number of messages that were recorded.
+	 * @return The number of records.
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+	
+	private static class DaemonThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "MIDI capture writer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+}
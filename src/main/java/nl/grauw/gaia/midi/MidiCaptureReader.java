@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import nl.grauw.gaia.midi.messages.Message;
+
+/**
+ * Reads the records of a capture file written by MidiCapture.
+ * The messages are decoded into their typed message classes.
+ */
+public class MidiCaptureReader implements Closeable {
+	
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(MidiCapture.BUFFER_SIZE);
+	private MessageDecoder decoder = MessageDecoder.createDefault();
+	private long startTime;
+	
+	/**
+	 * Opens a capture file.
+	 * @param file The capture file.
+	 * @throws IOException If the file could not be read, or is not a capture file.
+	 */
+	public MidiCaptureReader(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		((Buffer) buffer).limit(0);
+		try {
+			if (!fill(MidiCapture.HEADER_SIZE) || buffer.getInt() != MidiCapture.MAGIC)
+				throw new IOException("Not a MIDI capture file.");
+			if (buffer.getShort() != MidiCapture.VERSION)
+				throw new IOException("Unsupported MIDI capture version.");
+			startTime = buffer.getLong();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	/**
+	 * Returns the wall clock time at which the capture started.
+	 * @return The start time in milliseconds since the epoch.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+	
+	/**
+	 * Reads the next record.
+	 * @return The record, or null at the end of the capture.
+	 * @throws IOException If the file could not be read, or ends in the middle of a record.
+	 */
+	public Record read() throws IOException {
+		if (!fill(MidiCapture.RECORD_HEADER_SIZE))
+			return null;
+		long timeStamp = buffer.getLong();
+		int direction = buffer.get();
+		int size = buffer.getInt();
+		if (size < 1 || (direction != MidiCapture.INBOUND && direction != MidiCapture.OUTBOUND))
+			throw new IOException("Corrupt MIDI capture record.");
+		
+		byte[] message = new byte[size];
+		for (int offset = 0; offset < size;) {
+			if (!fill(1))
+				throw new EOFException("MIDI capture ends in the middle of a record.");
+			int length = Math.min(buffer.remaining(), size - offset);
+			buffer.get(message, offset, length);
+			offset += length;
+		}
+		try {
+			return new Record(timeStamp, direction, decoder.decode(message));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Corrupt MIDI capture message: " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Makes sure that the buffer holds at least the given number of bytes.
+	 * @return False if the file ended before any byte was read.
+	 */
+	private boolean fill(int size) throws IOException {
+		if (buffer.remaining() >= size)
+			return true;
+		buffer.compact();
+		try {
+			while (buffer.position() < size) {
+				if (channel.read(buffer) == -1) {
+					if (buffer.position() == 0)
+						return false;
+					throw new EOFException("MIDI capture ends in the middle of a record.");
+				}
+			}
+		} finally {
+			((Buffer) buffer).flip();
+		}
+		return true;
+	}
+	
+	public static class Record {
+		
+		private final long timeStamp;
+		private final int direction;
+		private final Message message;
+		
+		public Record(long timeStamp, int direction, Message message) {
+			this.timeStamp = timeStamp;
+			this.direction = direction;
+			this.message = message;
+		}
+		
+		/**
+		 * Returns the time of the record.
+		 * @return The time since the start of the capture in nanoseconds.
+		 */
+		public long getTimeStamp() {
+			return timeStamp;
+		}
+		
+		/**
+		 * Returns the direction of the message.
+		 * @return MidiCapture.INBOUND or MidiCapture.OUTBOUND.
+		 */
+		public int getDirection() {
+			return direction;
+		}
+		
+		public Message getMessage() {
+			return message;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Transmitter;
+
+import nl.grauw.gaia.midi.messages.IdentityReply;
+import nl.grauw.gaia.midi.messages.IdentityRequest;
+import nl.grauw.gaia.midi.messages.Message;
+
+/**
+ * Finds the GAIA on any MIDI port by its identity, regardless of the port names.
+ * 
+ * All candidate input and output ports are opened concurrently, and an identity request
+ * is broadcast on every output at once. The input that an identity reply of the GAIA
+ * arrives on is the GAIA’s input. If there are several outputs, the one with the same
+ * name as the input is taken; only if there is none, the outputs are probed one by one
+ * in the remaining time. All ports are closed again before the result is returned.
+ * 
+ * discoverAll() collects the replies of all GAIAs until the timeout, to find several
+ * units in one round trip.
+ */
+public class MidiDeviceDiscovery {
+	
+	public static final int DEFAULT_TIMEOUT = 500;
+	
+	private MidiDeviceInventory inventory;
+	private long timeout = DEFAULT_TIMEOUT;
+	private MessageDecoder decoder = MessageDecoder.createDefault();
+	
+	/**
+	 * Constructs a new discovery.
+	 * @param inventory The inventory that provides the candidate ports.
+	 */
+	public MidiDeviceDiscovery(MidiDeviceInventory inventory) {
+		this.inventory = inventory;
+	}
+	
+	/**
+	 * Returns the time to wait for the identity reply.
+	 * @return The timeout in milliseconds.
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * Sets the time to wait for the identity reply, including the time to open the ports.
+	 * @param milliseconds The timeout in milliseconds.
+	 */
+	public void setTimeout(long milliseconds) {
+		if (milliseconds <= 0)
+			throw new IllegalArgumentException("Timeout must be positive.");
+		timeout = milliseconds;
+	}
+	
+	/**
+	 * Searches all MIDI ports for the GAIA.
+	 * @return The ports the GAIA is connected to, or null if it was not found.
+	 * @throws InterruptedException
+	 */
+	public Result discover() throws InterruptedException {
+		List<Result> results = search(false);
+		return results.isEmpty() ? null : results.get(0);
+	}
+	
+	/**
+	 * Searches all MIDI ports for all GAIAs that reply within the timeout.
+	 * Several GAIAs on the same port are told apart by their device ID.
+	 * @return The ports and identities of the GAIAs that were found.
+	 * @throws InterruptedException
+	 */
+	public List<Result> discoverAll() throws InterruptedException {
+		return search(true);
+	}
+	
+	private List<Result> search(boolean all) throws InterruptedException {
+		List<Result> results = new ArrayList<Result>();
+		List<MidiDevice> inputs = getDevices(inventory.getInputs());
+		List<MidiDevice> outputs = getDevices(inventory.getOutputs());
+		if (inputs.isEmpty() || outputs.isEmpty())
+			return results;
+		
+		// devices are shared instances; ones that are already open belong to a connection
+		Set<MidiDevice> wasOpen = new HashSet<MidiDevice>();
+		for (MidiDevice device : inputs)
+			if (device.isOpen())
+				wasOpen.add(device);
+		for (MidiDevice device : outputs)
+			if (device.isOpen())
+				wasOpen.add(device);
+		
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory());
+		BlockingQueue<Reply> replies = new LinkedBlockingQueue<Reply>();
+		List<Transmitter> transmitters = new ArrayList<Transmitter>();
+		List<Receiver> receivers = new ArrayList<Receiver>();
+		AtomicBoolean finished = new AtomicBoolean();
+		try {
+			for (MidiDevice input : openAll(executor, inputs, wasOpen, deadline, finished)) {
+				try {
+					Transmitter transmitter = input.getTransmitter();
+					transmitter.setReceiver(new ReplyReceiver(input, replies));
+					transmitters.add(transmitter);
+				} catch (MidiUnavailableException e) {
+				}
+			}
+			List<MidiDevice> openedOutputs = new ArrayList<MidiDevice>();
+			for (MidiDevice output : openAll(executor, outputs, wasOpen, deadline, finished)) {
+				try {
+					receivers.add(output.getReceiver());
+					openedOutputs.add(output);
+				} catch (MidiUnavailableException e) {
+				}
+			}
+			
+			for (Receiver receiver : receivers)
+				sendIdentityRequest(receiver);
+			List<Reply> found = new ArrayList<Reply>();
+			Reply reply;
+			while ((reply = replies.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null) {
+				found.add(reply);
+				if (!all)
+					break;
+			}
+			
+			long pairingDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+			for (Reply candidate : found) {
+				if (contains(results, candidate))
+					continue;
+				MidiDevice output = findOutput(candidate.input, openedOutputs, receivers, replies, pairingDeadline);
+				if (output != null)
+					results.add(new Result(candidate.input, output, candidate.message));
+			}
+			return results;
+		} finally {
+			finished.set(true);
+			for (Transmitter transmitter : transmitters)
+				transmitter.close();
+			for (Receiver receiver : receivers)
+				receiver.close();
+			executor.shutdownNow();
+			for (MidiDevice device : inputs)
+				if (!wasOpen.contains(device))
+					device.close();
+			for (MidiDevice device : outputs)
+				if (!wasOpen.contains(device))
+					device.close();
+		}
+	}
+	
+	private static boolean contains(List<Result> results, Reply reply) {
+		for (Result result : results) {
+			if (result.input == reply.input && result.identity.getDeviceId() == reply.message.getDeviceId())
+				return true;
+		}
+		return false;
+	}
+	
+	private static List<MidiDevice> getDevices(List<MidiDeviceInventory.Entry> entries) {
+		List<MidiDevice> devices = new ArrayList<MidiDevice>();
+		for (MidiDeviceInventory.Entry entry : entries) {
+			try {
+				devices.add(entry.getDevice());
+			} catch (MidiUnavailableException e) {
+			} catch (IllegalArgumentException e) {
+				// removed in the meantime
+			}
+		}
+		return devices;
+	}
+	
+	/**
+	 * Opens the devices concurrently, and returns the ones that opened before the deadline.
+	 * Devices that open after the discovery has finished are closed right away, unless
+	 * they were already open.
+	 */
+	private List<MidiDevice> openAll(ExecutorService executor, List<MidiDevice> devices, final Set<MidiDevice> wasOpen,
+			long deadline, final AtomicBoolean finished) throws InterruptedException {
+		List<Future<MidiDevice>> futures = new ArrayList<Future<MidiDevice>>();
+		for (final MidiDevice device : devices) {
+			futures.add(executor.submit(new Callable<MidiDevice>() {
+				public MidiDevice call() throws MidiUnavailableException {
+					device.open();
+					if (finished.get() && !wasOpen.contains(device))
+						device.close();
+					return device;
+				}
+			}));
+		}
+		
+		List<MidiDevice> opened = new ArrayList<MidiDevice>();
+		for (Future<MidiDevice> future : futures) {
+			try {
+				opened.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+			} catch (ExecutionException e) {
+				// not available
+			} catch (TimeoutException e) {
+				future.cancel(true);
+			}
+		}
+		return opened;
+	}
+	
+	/**
+	 * Finds the output that belongs to the input the reply arrived on.
+	 */
+	private MidiDevice findOutput(MidiDevice input, List<MidiDevice> outputs, List<Receiver> receivers,
+			BlockingQueue<Reply> replies, long deadline) throws InterruptedException {
+		if (outputs.size() == 1)
+			return outputs.get(0);
+		
+		String name = input.getDeviceInfo().getName();
+		for (MidiDevice output : outputs) {
+			if (output.getDeviceInfo().getName().equals(name))
+				return output;
+		}
+		
+		long probeTimeout = (deadline - System.nanoTime()) / outputs.size();
+		for (int i = 0; i < outputs.size(); i++) {
+			replies.clear();
+			sendIdentityRequest(receivers.get(i));
+			long probeDeadline = System.nanoTime() + probeTimeout;
+			Reply reply;
+			while ((reply = replies.poll(probeDeadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null) {
+				if (reply.input == input)
+					return outputs.get(i);
+			}
+		}
+		return null;
+	}
+	
+	private void sendIdentityRequest(Receiver receiver) {
+		try {
+			receiver.send(new MidiMessageEncoder().encode(new IdentityRequest()), -1);
+		} catch (RuntimeException e) {
+			// port not usable
+		}
+	}
+	
+	/**
+	 * The ports that the GAIA was found on.
+	 */
+	public static class Result {
+		
+		private MidiDevice input;
+		private MidiDevice output;
+		private IdentityReply identity;
+		
+		public Result(MidiDevice input, MidiDevice output, IdentityReply identity) {
+			this.input = input;
+			this.output = output;
+			this.identity = identity;
+		}
+		
+		public MidiDevice getInput() {
+			return input;
+		}
+		
+		public MidiDevice getOutput() {
+			return output;
+		}
+		
+		public IdentityReply getIdentity() {
+			return identity;
+		}
+		
+	}
+	
+	private static class Reply {
+		
+		private MidiDevice input;
+		private IdentityReply message;
+		
+		public Reply(MidiDevice input, IdentityReply message) {
+			this.input = input;
+			this.message = message;
+		}
+		
+	}
+	
+	/**
+	 * Collects the GAIA identity replies that arrive on an input.
+	 */
+	private class ReplyReceiver implements Receiver {
+		
+		private MidiDevice input;
+		private BlockingQueue<Reply> replies;
+		
+		public ReplyReceiver(MidiDevice input, BlockingQueue<Reply> replies) {
+			this.input = input;
+			this.replies = replies;
+		}
+		
+		@Override
+		public void send(MidiMessage midiMessage, long timeStamp) {
+			try {
+				Message message = decoder.decode(midiMessage.getMessage());
+				if (message instanceof IdentityReply && ((IdentityReply) message).isGaia())
+					replies.offer(new Reply(input, (IdentityReply) message));
+			} catch (RuntimeException e) {
+				// not a valid message
+			}
+		}
+		
+		@Override
+		public void close() {
+		}
+		
+	}
+	
+	private static class DaemonThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "MIDI discovery");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.Synthesizer;
+
+import nl.grauw.gaia.tool.mvc.Observable;
+
+/**
+ * Cached list of the MIDI devices in the system, with their capabilities.
+ * 
+ * Enumerating the MIDI devices is slow with some drivers, so the list is built once and
+ * then refreshed on a background thread by start(). Observers are notified with the
+ * detail "devices" when a device was added or removed.
+ * 
+ * Note that some Java Sound implementations only enumerate the devices once per process,
+ * in which case devices that are plugged in later do not appear.
+ */
+public class MidiDeviceInventory extends Observable {
+	
+	public static final int DEFAULT_REFRESH_INTERVAL = 2000;
+	
+	private volatile List<Entry> entries;
+	private ScheduledExecutorService scheduler;
+	
+	/**
+	 * Returns all MIDI devices, enumerating them first if that was not done yet.
+	 * @return An unmodifiable list of the devices.
+	 */
+	public List<Entry> getEntries() {
+		List<Entry> entries = this.entries;
+		if (entries == null) {
+			refresh();
+			entries = this.entries;
+		}
+		return entries;
+	}
+	
+	/**
+	 * Returns the MIDI ports that can receive messages from a device.
+	 * Sequencers and synthesizers are excluded.
+	 * @return The input ports.
+	 */
+	public List<Entry> getInputs() {
+		List<Entry> inputs = new ArrayList<Entry>();
+		for (Entry entry : getEntries()) {
+			if (entry.isInput())
+				inputs.add(entry);
+		}
+		return inputs;
+	}
+	
+	/**
+	 * Returns the MIDI ports that can send messages to a device.
+	 * Sequencers and synthesizers are excluded.
+	 * @return The output ports.
+	 */
+	public List<Entry> getOutputs() {
+		List<Entry> outputs = new ArrayList<Entry>();
+		for (Entry entry : getEntries()) {
+			if (entry.isOutput())
+				outputs.add(entry);
+		}
+		return outputs;
+	}
+	
+	/**
+	 * Finds a MIDI port whose name contains the given name.
+	 * @param name The name to look for.
+	 * @param input True to find an input port, false for an output port.
+	 * @return The port, or null.
+	 */
+	public Entry find(String name, boolean input) {
+		for (Entry entry : getEntries()) {
+			if ((input ? entry.isInput() : entry.isOutput()) && entry.getName().contains(name))
+				return entry;
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns whether a device is currently present.
+	 * @param info The device info.
+	 * @return True if the device is in the list.
+	 */
+	public boolean contains(MidiDevice.Info info) {
+		for (Entry entry : getEntries()) {
+			if (entry.matches(info))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Enumerates the MIDI devices, and notifies the observers if the list changed.
+	 */
+	public void refresh() {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (MidiDevice.Info mdi : MidiSystem.getMidiDeviceInfo()) {
+			try {
+				entries.add(new Entry(mdi, MidiSystem.getMidiDevice(mdi)));
+			} catch (MidiUnavailableException e) {
+			} catch (IllegalArgumentException e) {
+				// removed in the meantime
+			}
+		}
+		update(entries);
+	}
+	
+	void update(List<Entry> newEntries) {
+		boolean changed;
+		synchronized (this) {
+			List<Entry> oldEntries = entries;
+			changed = oldEntries != null && !isSame(oldEntries, newEntries);
+			entries = Collections.unmodifiableList(newEntries);
+		}
+		if (changed)
+			notifyObservers("devices");
+	}
+	
+	private static boolean isSame(List<Entry> entries1, List<Entry> entries2) {
+		if (entries1.size() != entries2.size())
+			return false;
+		for (int i = 0; i < entries1.size(); i++) {
+			if (!entries1.get(i).matches(entries2.get(i).getInfo()))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Starts refreshing the list periodically on a background thread.
+	 * @param interval The refresh interval in milliseconds.
+	 */
+	public synchronized void start(long interval) {
+		if (scheduler != null)
+			throw new RuntimeException("Inventory is already started.");
+		
+		scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops refreshing the list.
+	 */
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+	
+	/**
+	 * A MIDI device and its capabilities.
+	 */
+	public static class Entry {
+		
+		private MidiDevice.Info info;
+		private MidiDevice device;
+		private int maxTransmitters;
+		private int maxReceivers;
+		private boolean sequencerOrSynthesizer;
+		
+		public Entry(MidiDevice.Info info, MidiDevice device) {
+			this(info, device.getMaxTransmitters(), device.getMaxReceivers(),
+					device instanceof Sequencer || device instanceof Synthesizer);
+			this.device = device;
+		}
+		
+		public Entry(MidiDevice.Info info, int maxTransmitters, int maxReceivers, boolean sequencerOrSynthesizer) {
+			this.info = info;
+			this.maxTransmitters = maxTransmitters;
+			this.maxReceivers = maxReceivers;
+			this.sequencerOrSynthesizer = sequencerOrSynthesizer;
+		}
+		
+		public MidiDevice.Info getInfo() {
+			return info;
+		}
+		
+		public String getName() {
+			return info.getName();
+		}
+		
+		public int getMaxTransmitters() {
+			return maxTransmitters;
+		}
+		
+		public int getMaxReceivers() {
+			return maxReceivers;
+		}
+		
+		public boolean isSequencerOrSynthesizer() {
+			return sequencerOrSynthesizer;
+		}
+		
+		/**
+		 * Returns whether this is a MIDI port that receives messages from a device.
+		 */
+		public boolean isInput() {
+			return maxTransmitters != 0 && !sequencerOrSynthesizer;
+		}
+		
+		/**
+		 * Returns whether this is a MIDI port that sends messages to a device.
+		 */
+		public boolean isOutput() {
+			return maxReceivers != 0 && !sequencerOrSynthesizer;
+		}
+		
+		/**
+		 * Obtains the device.
+		 * @return The MIDI device.
+		 * @throws MidiUnavailableException
+		 */
+		public MidiDevice getDevice() throws MidiUnavailableException {
+			return device != null ? device : MidiSystem.getMidiDevice(info);
+		}
+		
+		/**
+		 * Returns whether this entry describes the given device.
+		 * Compares the name, vendor, description and version, because drivers
+		 * may create new info objects for the same device.
+		 */
+		public boolean matches(MidiDevice.Info other) {
+			return info == other || info.getName().equals(other.getName()) &&
+					info.getVendor().equals(other.getVendor()) &&
+					info.getDescription().equals(other.getDescription()) &&
+					info.getVersion().equals(other.getVersion());
+		}
+		
+		@Override
+		public String toString() {
+			return info.toString();
+		}
+		
+	}
+	
+	private static class DaemonThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "MIDI device inventory");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+}
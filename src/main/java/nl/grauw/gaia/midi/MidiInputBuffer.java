@@ -0,0 +1,180 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer single-consumer ring buffer for raw incoming MIDI messages.
+ * 
+ * The slots are allocated up front and reused, so that the producer (the MIDI
+ * driver thread) only copies bytes and never blocks or allocates, unless a message
+ * is larger than any message previously held in its slot. When the buffer is full,
+ * incoming messages are dropped and counted.
+ * 
+ * Only one thread may call offer(), and only one other thread may call drain() and await().
+ */
+public class MidiInputBuffer {
+	
+	public static final int DEFAULT_CAPACITY = 512;
+	public static final int DEFAULT_SLOT_SIZE = 256;
+	
+	private byte[][] slots;
+	private int[] lengths;
+	private long[] timeStamps;
+	private int mask;
+	
+	private AtomicLong head = new AtomicLong();
+	private AtomicLong tail = new AtomicLong();
+	private volatile Thread waiter;
+	private volatile long droppedCount = 0;
+	
+	public MidiInputBuffer() {
+		this(DEFAULT_CAPACITY, DEFAULT_SLOT_SIZE);
+	}
+	
+	/**
+	 * Constructs a new input buffer.
+	 * @param capacity The number of messages the buffer holds, must be a power of two.
+	 * @param slotSize The initial size of each message slot in bytes.
+	 */
+	public MidiInputBuffer(int capacity, int slotSize) {
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+			throw new IllegalArgumentException("Capacity must be a power of two.");
+		
+		slots = new byte[capacity][slotSize];
+		lengths = new int[capacity];
+		timeStamps = new long[capacity];
+		mask = capacity - 1;
+	}
+	
+	public interface MessageHandler {
+		
+		/**
+		 * Handles a message from the buffer.
+		 * The data array is reused after this method returns.
+		 * @param data The array holding the message bytes.
+		 * @param length The length of the message.
+		 * @param timeStamp The time stamp of the message, or -1.
+		 */
+		public void handle(byte[] data, int length, long timeStamp);
+		
+	}
+	
+	/**
+	 * Adds a message to the buffer. Called by the producer.
+	 * @param data The message bytes.
+	 * @param length The length of the message.
+	 * @param timeStamp The time stamp of the message, or -1.
+	 * @return False if the buffer was full and the message was dropped.
+	 */
+	public boolean offer(byte[] data, int length, long timeStamp) {
+		long position = tail.get();
+		if (position - head.get() > mask) {
+			droppedCount++;
+			return false;
+		}
+		
+		int index = (int) position & mask;
+		if (slots[index].length < length)
+			slots[index] = new byte[length];
+		System.arraycopy(data, 0, slots[index], 0, length);
+		lengths[index] = length;
+		timeStamps[index] = timeStamp;
+		tail.set(position + 1);
+		
+		Thread thread = waiter;
+		if (thread != null)
+			LockSupport.unpark(thread);
+		return true;
+	}
+	
+	/**
+	 * Passes all buffered messages to the handler, in order. Called by the consumer.
+	 * @param handler The handler to pass the messages to.
+	 * @return The number of messages handled.
+	 */
+	public int drain(MessageHandler handler) {
+		long position = head.get();
+		long end = tail.get();
+		int count = 0;
+		while (position < end) {
+			int index = (int) position & mask;
+			try {
+				handler.handle(slots[index], lengths[index], timeStamps[index]);
+			} finally {
+				head.set(++position);
+			}
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Waits until the buffer holds a message. Called by the consumer.
+	 * @param timeout The maximum time to wait in milliseconds.
+	 * @return True if a message is available.
+	 * @throws InterruptedException
+	 */
+	public boolean await(long timeout) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		waiter = Thread.currentThread();
+		try {
+			while (isEmpty()) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return false;
+				LockSupport.parkNanos(this, remaining);
+				if (Thread.interrupted())
+					throw new InterruptedException();
+			}
+			return true;
+		} finally {
+			waiter = null;
+		}
+	}
+	
+	public boolean isEmpty() {
+		return tail.get() == head.get();
+	}
+	
+	/**
+	 * Returns the number of messages waiting to be handled.
+	 * @return The queue depth.
+	 */
+	public int getDepth() {
+		return (int) (tail.get() - head.get());
+	}
+	
+	/**
+	 * Returns the number of messages that were dropped because the buffer was full.
+	 * @return The number of dropped messages.
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+	
+	/**
+	 * Returns the maximum number of messages the buffer holds.
+	 * @return The capacity.
+	 */
+	public int getCapacity() {
+		return slots.length;
+	}
+	
+}
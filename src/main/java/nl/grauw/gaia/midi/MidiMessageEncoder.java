@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+import nl.grauw.gaia.midi.messages.Message;
+import nl.grauw.gaia.midi.messages.Sysex;
+
+/**
+ * Encodes messages into Java Sound message objects.
+ * 
+ * By default every call returns a new message object. With reuse enabled, the returned
+ * SysexMessage and ShortMessage instances are reused for every call, so once they have
+ * grown to the largest message size, encoding does not allocate. The returned message
+ * is then only valid until the next call, so reuse must only be enabled for receivers
+ * that send synchronously (like a hardware MIDI output), and not for ones that queue
+ * the messages.
+ * 
+ * An encoder is not thread-safe.
+ */
+public class MidiMessageEncoder {
+	
+	private byte[] buffer = new byte[256];
+	private SysexMessage sysexMessage = new SysexMessage();
+	private ShortMessage shortMessage = new ShortMessage();
+	private boolean reuse = false;
+	
+	/**
+	 * Sets whether the returned message objects are reused.
+	 * @param reuse True to reuse the message objects, false to create new ones.
+	 */
+	public void setReuse(boolean reuse) {
+		this.reuse = reuse;
+	}
+	
+	public boolean isReuse() {
+		return reuse;
+	}
+	
+	/**
+	 * Encodes a message.
+	 * @param message The message to encode.
+	 * @return The encoded message, with reuse valid until the next call.
+	 */
+	public MidiMessage encode(Message message) {
+		int size = message.getDataSize() + 1;
+		if (message instanceof Sysex) {
+			ensureCapacity(size);
+			for (int i = 0; i < size; i++)
+				buffer[i] = (byte) message.getMessage(i);
+			return setSysex(size);
+		} else {
+			int status = message.getMessage(0);
+			int data1 = size > 1 ? message.getMessage(1) : 0;
+			int data2 = size > 2 ? message.getMessage(2) : 0;
+			return encodeShortMessage(status, data1, data2);
+		}
+	}
+	
+	/**
+	 * Encodes a short message.
+	 * @param status The status byte, including the channel.
+	 * @param data1 The first data byte.
+	 * @param data2 The second data byte.
+	 * @return The encoded message, with reuse valid until the next call.
+	 */
+	public ShortMessage encodeShortMessage(int status, int data1, int data2) {
+		try {
+			ShortMessage message = reuse ? shortMessage : new ShortMessage();
+			message.setMessage(status, data1, data2);
+			return message;
+		} catch (InvalidMidiDataException e) {
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
+	}
+	
+	private SysexMessage setSysex(int size) {
+		try {
+			SysexMessage message = reuse ? sysexMessage : new SysexMessage();
+			message.setMessage(buffer, size);
+			return message;
+		} catch (InvalidMidiDataException e) {
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
+	}
+	
+	private void ensureCapacity(int size) {
+		if (buffer.length < size)
+			buffer = new byte[Math.max(size, buffer.length * 2)];
+	}
+	
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import nl.grauw.gaia.midi.MidiCaptureReader.Record;
+
+/**
+ * Feeds the inbound messages of a capture file to a receiver, such as a Gaia.
+ * 
+ * The messages are replayed at their original speed, at a multiple of it, or as fast
+ * as possible. Replays of the same capture deliver the same messages in the same
+ * order, so the model and views can be profiled against recorded traffic, and their
+ * throughput can be regression tested offline.
+ */
+public class MidiReplay {
+	
+	private MidiReceiver target;
+	private volatile double speed = 1;
+	
+	private volatile long replayedCount = 0;
+	private volatile long elapsedTime = 0;
+	
+	/**
+	 * Constructs a new replay driver.
+	 * @param target The receiver to feed the messages to.
+	 */
+	public MidiReplay(MidiReceiver target) {
+		this.target = target;
+	}
+	
+	/**
+	 * Sets the replay speed.
+	 * @param speed The factor relative to the original speed, e.g. 1 for the original
+	 *              speed or 2 for twice as fast, or 0 for as fast as possible.
+	 */
+	public void setSpeed(double speed) {
+		if (speed < 0 || Double.isNaN(speed))
+			throw new IllegalArgumentException("Speed must not be negative.");
+		this.speed = speed;
+	}
+	
+	public double getSpeed() {
+		return speed;
+	}
+	
+	/**
+	 * Replays a capture file on the calling thread.
+	 * @param file The capture file.
+	 * @return The number of replayed messages.
+	 * @throws IOException If the file could not be read.
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 */
+	public long replay(File file) throws IOException, InterruptedException {
+		MidiCaptureReader reader = new MidiCaptureReader(file);
+		try {
+			return replay(reader);
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Replays the remaining records of a capture on the calling thread.
+	 * @param reader The capture reader.
+	 * @return The number of replayed messages.
+	 * @throws IOException If the capture could not be read.
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 */
+	public long replay(MidiCaptureReader reader) throws IOException, InterruptedException {
+		double speed = this.speed;
+		long count = 0;
+		long start = java.lang.System.nanoTime();
+		long first = -1;
+		for (Record record = reader.read(); record != null; record = reader.read()) {
+			if (record.getDirection() != MidiCapture.INBOUND)
+				continue;
+			if (first == -1)
+				first = record.getTimeStamp();
+			if (speed > 0) {
+				long delay = start + (long) ((record.getTimeStamp() - first) / speed) - java.lang.System.nanoTime();
+				if (delay > 0)
+					TimeUnit.NANOSECONDS.sleep(delay);
+			}
+			target.receive(record.getMessage());
+			count++;
+		}
+		replayedCount = count;
+		elapsedTime = java.lang.System.nanoTime() - start;
+		return count;
+	}
+	
+	/**
+	 * Returns the number of messages fed to the receiver in the last replay.
+	 * @return The number of replayed messages.
+	 */
+	public long getReplayedCount() {
+		return replayedCount;
+	}
+	
+	/**
+	 * Returns the duration of the last replay, to compute its throughput.
+	 * @return The elapsed time in nanoseconds.
+	 */
+	public long getElapsedTime() {
+		return elapsedTime;
+	}
+	
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Transmitter;
+
+import nl.grauw.gaia.midi.messages.ChannelMessage;
+
+/**
+ * Routes MIDI traffic between the GAIA and other MIDI ports.
+ * 
+ * Messages from the GAIA can be passed thru to other outputs, and the inputs of other
+ * devices can be merged into the GAIA output. Each route has its own filter. Messages
+ * are forwarded as the Java Sound message objects they arrive as, on the thread of the
+ * MIDI driver, so the forwarding path neither decodes, copies nor allocates. Only
+ * thinned messages are copied, to send the last value of a burst later.
+ * 
+ * Merged messages change the state of the GAIA behind the back of the Gaia that uses
+ * the connection, so the connection passes them to its merge receivers. It copies them
+ * into a buffer, and decodes them on a separate thread, so the driver thread is not held up.
+ */
+public class MidiRouter {
+	
+	private JavaMidiConnection connection;
+	private List<Route> routes = new CopyOnWriteArrayList<Route>();
+	private List<MidiDevice> devices = new ArrayList<MidiDevice>();
+	
+	/**
+	 * Constructs a new router.
+	 * @param connection The connection to the GAIA.
+	 */
+	public MidiRouter(JavaMidiConnection connection) {
+		this.connection = connection;
+	}
+	
+	/**
+	 * Passes the messages received from the GAIA thru to another output.
+	 * @param output The MIDI output device.
+	 * @param filter The filter for the route.
+	 * @return The route.
+	 */
+	public synchronized Route addThru(MidiDevice output, Filter filter) throws MidiUnavailableException {
+		Route route = new Route(getReceiver(output), filter);
+		connection.addThru(route);
+		routes.add(route);
+		return route;
+	}
+	
+	/**
+	 * Merges the messages of another input into the GAIA output.
+	 * @param input The MIDI input device.
+	 * @param filter The filter for the route.
+	 * @return The route.
+	 */
+	public synchronized Route addMerge(MidiDevice input, Filter filter) throws MidiUnavailableException {
+		Route route = new Route(connection.getOutputReceiver(), filter);
+		route.transmitter = getTransmitter(input);
+		route.transmitter.setReceiver(route);
+		routes.add(route);
+		return route;
+	}
+	
+	/**
+	 * Routes the messages of one input to another output, bypassing the GAIA.
+	 * @param input The MIDI input device.
+	 * @param output The MIDI output device.
+	 * @param filter The filter for the route.
+	 * @return The route.
+	 */
+	public synchronized Route addRoute(MidiDevice input, MidiDevice output, Filter filter) throws MidiUnavailableException {
+		Route route = new Route(getReceiver(output), filter);
+		route.transmitter = getTransmitter(input);
+		route.transmitter.setReceiver(route);
+		routes.add(route);
+		return route;
+	}
+	
+	public synchronized void removeRoute(Route route) {
+		if (!routes.remove(route))
+			return;
+		connection.removeThru(route);
+		if (route.transmitter != null)
+			route.transmitter.close();
+		route.close();
+		if (route.output != connection.getOutputReceiver())
+			route.output.close();
+	}
+	
+	public List<Route> getRoutes() {
+		return routes;
+	}
+	
+	/**
+	 * Removes all routes and closes the devices that the router opened.
+	 */
+	public synchronized void close() {
+		for (Route route : routes)
+			removeRoute(route);
+		for (MidiDevice device : devices)
+			device.close();
+		devices.clear();
+	}
+	
+	private Receiver getReceiver(MidiDevice output) throws MidiUnavailableException {
+		open(output);
+		return output.getReceiver();
+	}
+	
+	private Transmitter getTransmitter(MidiDevice input) throws MidiUnavailableException {
+		open(input);
+		return input.getTransmitter();
+	}
+	
+	private void open(MidiDevice device) throws MidiUnavailableException {
+		if (!device.isOpen()) {
+			device.open();
+			devices.add(device);
+		}
+	}
+	
+	/**
+	 * Selects the messages that a route forwards.
+	 * By default all messages are forwarded.
+	 */
+	public static class Filter {
+		
+		private volatile int channelMask = 0xFFFF;
+		private volatile int typeMask = 0xFFFFFF;
+		private volatile long thinInterval = 0;
+		
+		/**
+		 * Sets whether channel messages on a channel are forwarded.
+		 * @param channel The channel, 0-15.
+		 * @param enabled True to forward.
+		 */
+		public synchronized void setChannel(int channel, boolean enabled) {
+			if (channel < 0 || channel > 15)
+				throw new IllegalArgumentException("Channel out of range.");
+			channelMask = enabled ? channelMask | 1 << channel : channelMask & ~(1 << channel);
+		}
+		
+		public boolean isChannel(int channel) {
+			return (channelMask & 1 << channel) != 0;
+		}
+		
+		/**
+		 * Sets whether messages of a type are forwarded.
+		 * @param status The status of a channel message without the channel bits,
+		 *               such as ChannelMessage.CONTROL_CHANGE, or of a system message.
+		 * @param enabled True to forward.
+		 */
+		public synchronized void setType(int status, boolean enabled) {
+			if (status < 0x80 || status > 0xFF || status < 0xF0 && (status & 0x0F) != 0)
+				throw new IllegalArgumentException("Invalid status.");
+			int bit = 1 << getTypeIndex(status);
+			typeMask = enabled ? typeMask | bit : typeMask & ~bit;
+		}
+		
+		public boolean isType(int status) {
+			return (typeMask & 1 << getTypeIndex(status)) != 0;
+		}
+		
+		/**
+		 * Sets whether active sensing messages are dropped.
+		 * @param drop True to drop them.
+		 */
+		public void setDropActiveSensing(boolean drop) {
+			setType(0xFE, !drop);
+		}
+		
+		/**
+		 * Sets the minimum time between forwarded pitch bend messages on a channel,
+		 * and between control changes of the same controller. Messages that follow
+		 * sooner are dropped, except for the last one, which is forwarded when the
+		 * interval has passed so that the final value is not lost.
+		 * @param interval The interval in milliseconds, 0 to forward all.
+		 */
+		public void setThinInterval(int interval) {
+			if (interval < 0)
+				throw new IllegalArgumentException("Interval must not be negative.");
+			thinInterval = interval * 1000000L;
+		}
+		
+		public int getThinInterval() {
+			return (int) (thinInterval / 1000000);
+		}
+		
+		/**
+		 * Returns whether a message passes the channel and type filters.
+		 * @param status The status byte, including the channel.
+		 * @return True if the message is forwarded.
+		 */
+		public boolean accepts(int status) {
+			if (!isType(status))
+				return false;
+			return status >= 0xF0 || isChannel(status & 0x0F);
+		}
+		
+		private static int getTypeIndex(int status) {
+			return status < 0xF0 ? (status >> 4) - 8 : 8 + (status & 0x0F);
+		}
+		
+	}
+	
+	/**
+	 * Forwards the messages that pass its filter to an output, and counts them.
+	 * A route receives messages from a single source.
+	 */
+	public static class Route implements Receiver {
+		
+		final static int PITCH_BEND_INDEX = 16 * 128;
+		
+		private Receiver output;
+		private Filter filter;
+		private Transmitter transmitter;
+		
+		private long[] lastForwarded = new long[PITCH_BEND_INDEX + 16];
+		private MidiMessage[] held = new MidiMessage[PITCH_BEND_INDEX + 16];
+		private ScheduledExecutorService scheduler;
+		private long startTime = System.nanoTime();
+		
+		private volatile long receivedCount = 0;
+		private volatile long forwardedCount = 0;
+		private volatile long forwardedBytes = 0;
+		private volatile long failedCount = 0;
+		private volatile long totalLatency = 0;
+		private volatile long maximumLatency = 0;
+		
+		/**
+		 * Constructs a new route.
+		 * @param output The receiver to forward to.
+		 * @param filter The filter.
+		 */
+		public Route(Receiver output, Filter filter) {
+			this.output = output;
+			this.filter = filter;
+		}
+		
+		@Override
+		public void send(MidiMessage message, long timeStamp) {
+			long time = System.nanoTime();
+			receivedCount++;
+			
+			int status = message.getStatus();
+			if (!filter.accepts(status))
+				return;
+			
+			int index = getThinIndex(message, status);
+			if (index == -1) {
+				forward(message, time);
+			} else {
+				synchronized (this) {
+					if (!isThinned(message, index, time))
+						forward(message, time);
+				}
+			}
+		}
+		
+		private void forward(MidiMessage message, long time) {
+			try {
+				output.send(message, -1);
+			} catch (RuntimeException e) {
+				failedCount++;
+				return;
+			}
+			
+			long latency = System.nanoTime() - time;
+			forwardedCount++;
+			forwardedBytes += message.getLength();
+			totalLatency += latency;
+			if (latency > maximumLatency)
+				maximumLatency = latency;
+		}
+		
+		/**
+		 * Returns the index of the thinning state of a message,
+		 * or -1 if the message is not thinned.
+		 */
+		private int getThinIndex(MidiMessage message, int status) {
+			if (filter.thinInterval == 0 || status >= 0xF0)
+				return -1;
+			if ((status & 0xF0) == ChannelMessage.PITCH_BEND)
+				return PITCH_BEND_INDEX + (status & 0x0F);
+			if ((status & 0xF0) == ChannelMessage.CONTROL_CHANGE && message instanceof ShortMessage)
+				return (status & 0x0F) << 7 | ((ShortMessage) message).getData1();
+			return -1;
+		}
+		
+		/**
+		 * Returns whether a message follows the last forwarded one too soon. In that case
+		 * it is held, replacing any held before, and forwarded when the interval ends.
+		 */
+		private boolean isThinned(MidiMessage message, int index, long time) {
+			long interval = filter.thinInterval;
+			long last = lastForwarded[index];
+			if (last != 0 && time - last < interval) {
+				if (held[index] == null)
+					schedule(index, last + interval - time);
+				held[index] = (MidiMessage) message.clone();
+				return true;
+			}
+			lastForwarded[index] = time;
+			held[index] = null;
+			return false;
+		}
+		
+		private void schedule(final int index, long delay) {
+			if (scheduler == null)
+				scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					forwardHeld(index);
+				}
+			}, delay, TimeUnit.NANOSECONDS);
+		}
+		
+		private synchronized void forwardHeld(int index) {
+			MidiMessage message = held[index];
+			if (message == null)
+				return;
+			held[index] = null;
+			lastForwarded[index] = System.nanoTime();
+			forward(message, lastForwarded[index]);
+		}
+		
+		/**
+		 * Stops forwarding held messages.
+		 */
+		@Override
+		public synchronized void close() {
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+				scheduler = null;
+			}
+		}
+		
+		public Filter getFilter() {
+			return filter;
+		}
+		
+		/**
+		 * Returns the number of messages that arrived at the route.
+		 * @return The received message count.
+		 */
+		public long getReceivedCount() {
+			return receivedCount;
+		}
+		
+		/**
+		 * Returns the number of messages that were forwarded.
+		 * @return The forwarded message count.
+		 */
+		public long getForwardedCount() {
+			return forwardedCount;
+		}
+		
+		/**
+		 * Returns the number of messages that the filter dropped.
+		 * @return The filtered message count.
+		 */
+		public long getFilteredCount() {
+			return receivedCount - forwardedCount - failedCount;
+		}
+		
+		/**
+		 * Returns the number of messages that the output refused, for example because it was closed.
+		 * @return The failed message count.
+		 */
+		public long getFailedCount() {
+			return failedCount;
+		}
+		
+		/**
+		 * Returns the average number of forwarded messages per second since the route was created.
+		 * @return The message rate.
+		 */
+		public double getMessageRate() {
+			return forwardedCount / getElapsedTime();
+		}
+		
+		/**
+		 * Returns the average number of forwarded bytes per second since the route was created.
+		 * @return The byte rate.
+		 */
+		public double getByteRate() {
+			return forwardedBytes / getElapsedTime();
+		}
+		
+		/**
+		 * Returns the average time it took to filter and hand a message to the output.
+		 * @return The latency in milliseconds.
+		 */
+		public double getAverageLatency() {
+			long count = forwardedCount;
+			return count == 0 ? 0 : totalLatency / 1e6 / count;
+		}
+		
+		/**
+		 * Returns the longest time it took to filter and hand a message to the output.
+		 * @return The latency in milliseconds.
+		 */
+		public double getMaximumLatency() {
+			return maximumLatency / 1e6;
+		}
+		
+		private double getElapsedTime() {
+			return Math.max(System.nanoTime() - startTime, 1000000) / 1e9;
+		}
+		
+	}
+	
+	private static class DaemonThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "MIDI router");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+}
@@ -15,10 +15,18 @@
  */
 package nl.grauw.gaia.midi;
 
+import java.util.List;
+
 import nl.grauw.gaia.midi.messages.Message;
 
 public interface MidiTransmitter {
 	
 	public void send(Message message);
 	
+	/**
+	 * Sends a batch of messages, in order.
+	 * @param messages The messages to send.
+	 */
+	public void send(List<Message> messages);
+	
 }
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import nl.grauw.gaia.Address;
+import nl.grauw.gaia.Log;
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.midi.messages.Message;
+import nl.grauw.gaia.midi.messages.ParameterControlChangeMessage;
+import nl.grauw.gaia.midi.messages.Sysex;
+
+/**
+ * Transmitter that keeps the parameter writes that could not be sent, so that they
+ * can be sent again once the connection is restored.
+ * 
+ * Data set messages that the target fails to send are added to the queue, and
+ * writes can also be added directly while the connection is closed. For control
+ * changes that are sent in place of a write, the equivalent data set is added. The queue is
+ * compacted: only the latest value of each address is kept, together with the
+ * device ID it was sent to, and the writes are drained in address order as data
+ * sets of consecutive addresses for the same device. Writes to
+ * command addresses (0FH) are not kept. The queue holds at most a fixed number of
+ * addresses; writes to new addresses beyond that are dropped.
+ * 
+ * If a file is set, the queue is stored in it as standard .syx data, so that pending
+ * writes also survive a restart. The file is written on a background thread
+ * STORE_DELAY milliseconds after the queue changes, so that a series of changes is
+ * stored once, and right away when the queue is closed.
+ */
+public class PendingWriteQueue implements MidiTransmitter {
+	
+	public static final int DEFAULT_CAPACITY = 0x4000;
+	
+	final static int COMMAND_ADDRESS = 0x0F;
+	final static int STORE_DELAY = 500;
+	
+	private MidiTransmitter target;
+	private Log log;
+	private int capacity = DEFAULT_CAPACITY;
+	private TreeMap<Integer, Integer> writes = new TreeMap<Integer, Integer>();	// device ID << 8 | value
+	private File file;
+	private ScheduledExecutorService storer;
+	private boolean storeScheduled = false;
+	private final Object storeLock = new Object();
+	private volatile long droppedCount = 0;
+	
+	public PendingWriteQueue(MidiTransmitter target, Log log) {
+		this.target = target;
+		this.log = log;
+	}
+	
+	@Override
+	public void send(Message message) {
+		try {
+			target.send(message);
+		} catch (RuntimeException e) {
+			add(Collections.singletonList(message));
+			throw e;
+		}
+	}
+	
+	/**
+	 * Sends messages one by one, so that the data sets from the first failure on are kept.
+	 * @param messages
+	 */
+	@Override
+	public void send(List<Message> messages) {
+		for (int i = 0; i < messages.size(); i++) {
+			try {
+				target.send(messages.get(i));
+			} catch (RuntimeException e) {
+				add(messages.subList(i, messages.size()));
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Adds a write to the queue.
+	 * @param message The data set message.
+	 */
+	public void add(DataSet1 message) {
+		add(Collections.singletonList(message));
+	}
+	
+	/**
+	 * Adds the data set messages in a list to the queue, and the data sets that parameter
+	 * control changes carry. Other messages are ignored.
+	 * @param messages The messages.
+	 */
+	public synchronized void add(List<? extends Message> messages) {
+		boolean changed = false;
+		for (Message message : messages) {
+			if (message instanceof ParameterControlChangeMessage)
+				message = ((ParameterControlChangeMessage) message).getDataSet();
+			if (!(message instanceof DataSet1))
+				continue;
+			DataSet1 dataSet = (DataSet1) message;
+			if (dataSet.getAddress().getByte1() == COMMAND_ADDRESS)
+				continue;
+			
+			int address = dataSet.getAddressValue();
+			int deviceId = dataSet.getDeviceId();
+			boolean dropped = false;
+			for (int i = 0, size = dataSet.getSize(); i < size; i++) {
+				Integer key = address + i;
+				if (writes.size() >= capacity && !writes.containsKey(key)) {
+					dropped = true;
+				} else {
+					writes.put(key, deviceId << 8 | dataSet.getDataSet(i) & 0xFF);
+				}
+			}
+			changed = true;
+			if (dropped)
+				droppedCount++;
+		}
+		if (changed)
+			scheduleStore();
+	}
+	
+	/**
+	 * Removes all writes from the queue.
+	 * @return The writes as data set messages of consecutive addresses, in address order.
+	 */
+	public synchronized List<DataSet1> drain() {
+		List<DataSet1> messages = toMessages();
+		if (!writes.isEmpty()) {
+			writes.clear();
+			scheduleStore();
+		}
+		return messages;
+	}
+	
+	private List<DataSet1> toMessages() {
+		List<DataSet1> messages = new ArrayList<DataSet1>();
+		ByteArrayOutputStream run = new ByteArrayOutputStream();
+		int start = 0;
+		int previous = 0;
+		int runDeviceId = 0;
+		for (Map.Entry<Integer, Integer> write : writes.entrySet()) {
+			int address = write.getKey();
+			int deviceId = write.getValue() >> 8;
+			if (run.size() > 0 && (address != previous + 1 || deviceId != runDeviceId)) {
+				messages.add(new DataSet1(runDeviceId, new Address(start), run.toByteArray()));
+				run.reset();
+			}
+			if (run.size() == 0) {
+				start = address;
+				runDeviceId = deviceId;
+			}
+			run.write(write.getValue());
+			previous = address;
+		}
+		if (run.size() > 0)
+			messages.add(new DataSet1(runDeviceId, new Address(start), run.toByteArray()));
+		return messages;
+	}
+	
+	public synchronized void clear() {
+		writes.clear();
+		scheduleStore();
+	}
+	
+	public synchronized boolean isEmpty() {
+		return writes.isEmpty();
+	}
+	
+	/**
+	 * Returns the number of addresses with a pending write.
+	 * @return The number of bytes in the queue.
+	 */
+	public synchronized int getSize() {
+		return writes.size();
+	}
+	
+	/**
+	 * Sets the maximum number of addresses that the queue holds.
+	 * @param capacity The capacity in bytes.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive.");
+		this.capacity = capacity;
+	}
+	
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Returns the number of messages of which some writes were dropped because the queue was full.
+	 * @return The number of dropped messages.
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+	
+	/**
+	 * Sets the file to store the queue in, and adds the writes stored in it to the queue.
+	 * @param file The .syx file, or null to only keep the queue in memory.
+	 * @throws IOException If the existing file could not be read.
+	 */
+	public void setFile(File file) throws IOException {
+		List<Message> stored = new ArrayList<Message>();
+		if (file != null && file.exists()) {
+			byte[] data = Files.readAllBytes(file.toPath());
+			for (int start = 0, end = 0; end < data.length; end++) {
+				if ((data[end] & 0xFF) == Sysex.END_OF_EXCLUSIVE) {
+					try {
+						stored.add(new DataSet1(Arrays.copyOfRange(data, start, end + 1)));
+					} catch (RuntimeException e) {
+						log.log("Skipped invalid pending write: " + e.getMessage());
+					}
+					start = end + 1;
+				}
+			}
+		}
+		synchronized (this) {
+			this.file = file;
+		}
+		add(stored);
+	}
+	
+	public synchronized File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Stores the queue in the file right away if it changed, and stops the background
+	 * thread until the queue changes again.
+	 */
+	public void close() {
+		boolean scheduled;
+		synchronized (this) {
+			scheduled = storeScheduled;
+			if (storer != null) {
+				storer.shutdown();
+				storer = null;
+			}
+		}
+		if (scheduled)
+			store();
+	}
+	
+	private void scheduleStore() {
+		if (file == null || storeScheduled)
+			return;
+		if (storer == null)
+			storer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+		storer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				store();
+			}
+		}, STORE_DELAY, TimeUnit.MILLISECONDS);
+		storeScheduled = true;
+	}
+	
+	/**
+	 * Writes the queue to the file, or deletes the file if the queue is empty.
+	 * The file is replaced atomically, so it is never left half written.
+	 */
+	private void store() {
+		synchronized (storeLock) {
+			File file;
+			List<DataSet1> messages;
+			synchronized (this) {
+				if (!storeScheduled || this.file == null)
+					return;
+				storeScheduled = false;
+				file = this.file;
+				messages = toMessages();
+			}
+			try {
+				if (messages.isEmpty()) {
+					Files.deleteIfExists(file.toPath());
+					return;
+				}
+				File temporary = new File(file.getPath() + ".tmp");
+				OutputStream output = new FileOutputStream(temporary);
+				try {
+					for (DataSet1 message : messages)
+						output.write(message.getMessage());
+				} finally {
+					output.close();
+				}
+				Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				log.log("Storing pending writes failed: " + e.getMessage());
+			}
+		}
+	}
+	
+	private static class DaemonThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Pending write storer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+}
@@ -0,0 +1,729 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import nl.grauw.gaia.Log;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage.Controller;
+import nl.grauw.gaia.midi.messages.DataRequest1;
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.midi.messages.Message;
+import nl.grauw.gaia.midi.messages.ProgramChangeMessage;
+import nl.grauw.gaia.midi.messages.Sysex;
+
+/**
+ * Transmitter that queues outbound messages and sends them on a dedicated writer thread.
+ * 
+ * Callers (typically the AWT event thread) only block when the bounded queue is full.
+ * System exclusive messages are paced by a configurable interval, so that the GAIA’s
+ * input buffer is not overrun by large data transmissions.
+ * 
+ * Messages are queued in two lanes. Note, performance controller and realtime messages
+ * go in the priority lane, and are sent ahead of queued system exclusive messages, also
+ * while the writer waits for the system exclusive interval. This keeps playing responsive
+ * during bulk transfers. Program changes and bank selects change the patch that queued
+ * data sets address, so they go in the bulk lane and keep their order. While the bulk
+ * lane holds one, channel messages queue behind it as well, so that a note is not played
+ * with the previous program. Controllers for patch parameters (see
+ * Controller.isPatchParameter) must not overtake a data set for the same parameter, so
+ * while patch data sets are waiting to be sent, those controllers go in the bulk lane.
+ * 
+ * While a data set message waits for its turn, subsequent queued data set messages whose
+ * address ranges touch or overlap are merged into it (see DataSetCoalescer). This reduces
+ * the number of messages and the framing overhead on the link.
+ * 
+ * The writer thread is started by start() and stopped by stop().
+ */
+public class QueuedMidiTransmitter implements MidiTransmitter {
+	
+	public static final int DEFAULT_CAPACITY = 1024;
+	public static final int DEFAULT_SYSEX_INTERVAL = 20;
+	public static final int DEFAULT_COALESCE_WINDOW = 5;
+	public static final int DEFAULT_MAXIMUM_DATA_SET_SIZE = 128;
+	
+	private MidiTransmitter target;
+	private Log log;
+	private Lane priorityLane;
+	private Lane bulkLane;
+	private Object producerLock = new Object();
+	
+	private volatile long sysexInterval = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SYSEX_INTERVAL);
+	private volatile long coalesceWindow = TimeUnit.MILLISECONDS.toNanos(DEFAULT_COALESCE_WINDOW);
+	private long nextSysexTime = 0;
+	private DataSetCoalescer coalescer = new DataSetCoalescer();
+	private volatile long coalescedCount = 0;
+	private volatile int maximumDataSetSize = DEFAULT_MAXIMUM_DATA_SET_SIZE;
+	private volatile long splitCount = 0;
+	private volatile LinkProfile linkProfile;
+	private LinkProfile.WindowListener windowListener = new LinkProfile.WindowListener() {
+		@Override
+		public void onWindowChange(LinkProfile source) {
+			synchronized (QueuedMidiTransmitter.this) {
+				QueuedMidiTransmitter.this.notifyAll();
+			}
+		}
+	};
+	
+	private List<RequestListener> requestListeners = new CopyOnWriteArrayList<RequestListener>();
+	
+	private Thread writer;
+	private int pending = 0;
+	private int bulkProgramChanges = 0;
+	private int bulkPatchControllers = 0;
+	private int pendingPatchWrites = 0;
+	private List<Message> unsent = new ArrayList<Message>();
+	
+	public QueuedMidiTransmitter(MidiTransmitter target, Log log) {
+		this(target, log, DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Constructs a new queued transmitter.
+	 * @param target The transmitter to forward the messages to on the writer thread.
+	 * @param log The log to report send errors to.
+	 * @param capacity The maximum number of queued messages per lane.
+	 */
+	public QueuedMidiTransmitter(MidiTransmitter target, Log log, int capacity) {
+		this.target = target;
+		this.log = log;
+		this.priorityLane = new Lane(capacity);
+		this.bulkLane = new Lane(capacity);
+	}
+	
+	/**
+	 * Returns whether a message may be sent in the priority lane.
+	 * Patch parameter controllers only are while no patch data sets are waiting to be sent.
+	 * @param message The message.
+	 * @return False for system exclusive messages, program changes and bank selects.
+	 */
+	public static boolean isPriority(Message message) {
+		if (message instanceof Sysex || message instanceof ProgramChangeMessage)
+			return false;
+		if (message instanceof ControlChangeMessage) {
+			Controller controller = ((ControlChangeMessage) message).getController();
+			return controller != Controller.BANK_SELECT && controller != Controller.BANK_SELECT_LSB;
+		}
+		return true;
+	}
+	
+	private static boolean isPatchController(Message message) {
+		if (!(message instanceof ControlChangeMessage))
+			return false;
+		Controller controller = ((ControlChangeMessage) message).getController();
+		return controller != null && controller.isPatchParameter();
+	}
+	
+	/**
+	 * Returns whether a message writes the temporary patch or runs a patch command.
+	 */
+	private static boolean isPatchWrite(Message message) {
+		if (!(message instanceof DataSet1))
+			return false;
+		int byte1 = ((DataSet1) message).getAddress().getByte1();
+		return byte1 == 0x0F || byte1 == 0x10;
+	}
+	
+	/**
+	 * Queues a message for transmission.
+	 * Blocks if the queue is full.
+	 */
+	@Override
+	public void send(Message message) {
+		synchronized (producerLock) {
+			enqueue(message);
+		}
+	}
+	
+	/**
+	 * Queues a batch of messages for transmission.
+	 * The messages are queued consecutively, without other messages in between.
+	 */
+	@Override
+	public void send(List<Message> messages) {
+		synchronized (producerLock) {
+			for (Message message : messages)
+				enqueue(message);
+		}
+	}
+	
+	private synchronized void enqueue(Message message) {
+		boolean priority;
+		if (message.getStatus() >= 0xF8)
+			priority = true;
+		else if (isPatchController(message))
+			priority = bulkProgramChanges == 0 && bulkPatchControllers == 0 && pendingPatchWrites == 0;
+		else
+			priority = isPriority(message) && bulkProgramChanges == 0;
+		Lane lane = priority ? priorityLane : bulkLane;
+		try {
+			while (lane.isFull())
+				wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while queueing MIDI message.", e);
+		}
+		lane.add(message, System.nanoTime());
+		if (!priority)
+			countBulk(message, 1);
+		if (isPatchWrite(message))
+			pendingPatchWrites++;
+		pending++;
+		notifyAll();
+	}
+	
+	/**
+	 * Starts the writer thread.
+	 */
+	public synchronized void start() {
+		if (writer != null)
+			throw new RuntimeException("Transmitter is already started.");
+		
+		writer = new Thread(new Writer(), "MIDI transmitter");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Stops the writer thread, discarding any messages that were not sent yet.
+	 * This includes the messages that the writer was merging or waiting to send.
+	 * @return The discarded messages, bulk messages first.
+	 */
+	public List<Message> stop() {
+		List<Message> discarded = new ArrayList<Message>();
+		Thread thread;
+		synchronized (this) {
+			thread = writer;
+			writer = null;
+		}
+		if (thread == null)
+			return discarded;
+		
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		synchronized (this) {
+			pending -= priorityLane.getDepth() + bulkLane.getDepth();
+			discarded.addAll(unsent);
+			unsent.clear();
+			bulkLane.clear(discarded);
+			priorityLane.clear(discarded);
+			bulkProgramChanges = 0;
+			bulkPatchControllers = 0;
+			pendingPatchWrites = 0;
+			notifyAll();
+		}
+		return discarded;
+	}
+	
+	public synchronized boolean isStarted() {
+		return writer != null;
+	}
+	
+	/**
+	 * Waits until all queued messages have been sent.
+	 * @throws InterruptedException
+	 */
+	public synchronized void flush() throws InterruptedException {
+		while (pending > 0 && writer != null)
+			wait();
+	}
+	
+	/**
+	 * Returns the number of messages waiting to be sent.
+	 * @return The queue depth.
+	 */
+	public synchronized int getQueueDepth() {
+		return priorityLane.getDepth() + bulkLane.getDepth();
+	}
+	
+	/**
+	 * Returns the lane for note and realtime messages.
+	 * @return The priority lane, which provides its depth and wait time statistics.
+	 */
+	public Lane getPriorityLane() {
+		return priorityLane;
+	}
+	
+	/**
+	 * Returns the lane for system exclusive messages and other messages that change state.
+	 * @return The bulk lane, which provides its depth and wait time statistics.
+	 */
+	public Lane getBulkLane() {
+		return bulkLane;
+	}
+	
+	/**
+	 * Returns the minimum interval between two system exclusive messages.
+	 * @return The interval in milliseconds.
+	 */
+	public long getSysexInterval() {
+		return TimeUnit.NANOSECONDS.toMillis(sysexInterval);
+	}
+	
+	/**
+	 * Sets the minimum interval between two system exclusive messages.
+	 * When a link profile is set, the interval that it adapts is kept at or above this one.
+	 * @param milliseconds The interval in milliseconds.
+	 */
+	public void setSysexInterval(long milliseconds) {
+		if (milliseconds < 0)
+			throw new IllegalArgumentException("Interval must not be negative.");
+		sysexInterval = TimeUnit.MILLISECONDS.toNanos(milliseconds);
+	}
+	
+	/**
+	 * Returns the time a data set message waits for further messages to merge with.
+	 * @return The window in milliseconds.
+	 */
+	public long getCoalesceWindow() {
+		return TimeUnit.NANOSECONDS.toMillis(coalesceWindow);
+	}
+	
+	/**
+	 * Sets the time a data set message waits for further messages to merge with.
+	 * Messages are also merged while waiting for the system exclusive interval.
+	 * @param milliseconds The window in milliseconds, or 0 to only merge while waiting.
+	 */
+	public void setCoalesceWindow(long milliseconds) {
+		if (milliseconds < 0)
+			throw new IllegalArgumentException("Window must not be negative.");
+		coalesceWindow = TimeUnit.MILLISECONDS.toNanos(milliseconds);
+	}
+	
+	/**
+	 * Returns the number of messages that were saved by merging data set messages.
+	 * @return The number of messages that were merged away.
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount;
+	}
+	
+	/**
+	 * Returns the maximum size of the data in a data set message.
+	 * @return The maximum size in bytes, or 0 if data sets are not split.
+	 */
+	public int getMaximumDataSetSize() {
+		return maximumDataSetSize;
+	}
+	
+	/**
+	 * Sets the maximum size of the data in a data set message.
+	 * Larger data sets are split into several messages.
+	 * @param size The maximum size in bytes, or 0 to not split data sets.
+	 */
+	public void setMaximumDataSetSize(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("Size must not be negative.");
+		maximumDataSetSize = size;
+	}
+	
+	/**
+	 * Returns the number of messages that were added by splitting large data set messages.
+	 * @return The number of additional messages.
+	 */
+	public long getSplitCount() {
+		return splitCount;
+	}
+	
+	/**
+	 * Returns the profile that adapts the pacing to the link.
+	 * @return The link profile, or null if the fixed interval is used.
+	 */
+	public LinkProfile getLinkProfile() {
+		return linkProfile;
+	}
+	
+	/**
+	 * Sets the profile that adapts the pacing to the link.
+	 * The profile is informed of transmitted data requests; the receiving side must
+	 * report the received data to it. The fixed interval remains the minimum, so lower
+	 * it to give the profile the full range.
+	 * @param linkProfile The link profile, or null to use the fixed interval.
+	 */
+	public synchronized void setLinkProfile(LinkProfile linkProfile) {
+		if (this.linkProfile != null)
+			this.linkProfile.removeWindowListener(windowListener);
+		this.linkProfile = linkProfile;
+		if (linkProfile != null)
+			linkProfile.addWindowListener(windowListener);
+		notifyAll();
+	}
+	
+	/**
+	 * Updates the counts of ordering messages in the bulk lane. Guarded by the transmitter.
+	 * @param message The message that was added or taken.
+	 * @param delta 1 if the message was added, -1 if it was taken.
+	 */
+	private void countBulk(Message message, int delta) {
+		if (isPatchController(message))
+			bulkPatchControllers += delta;
+		else if (!(message instanceof Sysex))
+			bulkProgramChanges += delta;
+	}
+	
+	/**
+	 * Adds a listener that is informed when a data request is transmitted.
+	 * @param listener The listener, which is called on the writer thread and must not block.
+	 */
+	public void addRequestListener(RequestListener listener) {
+		requestListeners.add(listener);
+	}
+	
+	public void removeRequestListener(RequestListener listener) {
+		requestListeners.remove(listener);
+	}
+	
+	private synchronized void messagesDone(int count, int patchWrites) {
+		pending -= count;
+		pendingPatchWrites -= patchWrites;
+		if (pending == 0)
+			notifyAll();
+	}
+	
+	/**
+	 * Keeps messages that the writer took, but was stopped before sending.
+	 */
+	private synchronized void addUnsent(List<? extends Message> messages) {
+		unsent.addAll(messages);
+	}
+	
+	private void transmit(Message message) {
+		try {
+			target.send(message);
+		} catch (RuntimeException e) {
+			log.log("Sending failed: " + e.getMessage());
+		}
+		
+		if (message instanceof Sysex) {
+			LinkProfile profile = linkProfile;
+			long interval = sysexInterval;
+			if (profile != null)
+				interval = Math.max(profile.getSysexIntervalNanos(), interval);
+			nextSysexTime = System.nanoTime() + interval;
+			if (message instanceof DataRequest1) {
+				DataRequest1 request = (DataRequest1) message;
+				if (profile != null)
+					profile.requestSent(request.getAddress().getValue(), request.getSize());
+				for (RequestListener listener : requestListeners)
+					listener.onRequestSent(request);
+			}
+		}
+	}
+	
+	/**
+	 * Listener that is informed when a data request is transmitted.
+	 */
+	public interface RequestListener {
+		
+		public void onRequestSent(DataRequest1 request);
+		
+	}
+	
+	/**
+	 * A bounded queue of messages, which records how long messages wait in it
+	 * before the writer takes them. Its state is guarded by the transmitter.
+	 */
+	public static class Lane {
+		
+		private Message[] messages;
+		private long[] times;
+		private int head = 0;
+		private volatile int size = 0;
+		
+		private volatile long messageCount = 0;
+		private volatile long totalWaitTime = 0;
+		private volatile long maximumWaitTime = 0;
+		
+		private Lane(int capacity) {
+			messages = new Message[capacity];
+			times = new long[capacity];
+		}
+		
+		private boolean isEmpty() {
+			return size == 0;
+		}
+		
+		private boolean isFull() {
+			return size == messages.length;
+		}
+		
+		private void add(Message message, long time) {
+			int index = (head + size) % messages.length;
+			messages[index] = message;
+			times[index] = time;
+			size++;
+		}
+		
+		private Message peek() {
+			return size == 0 ? null : messages[head];
+		}
+		
+		private Message poll() {
+			if (size == 0)
+				return null;
+			Message message = messages[head];
+			long waitTime = System.nanoTime() - times[head];
+			messages[head] = null;
+			head = (head + 1) % messages.length;
+			size--;
+			
+			messageCount++;
+			totalWaitTime += waitTime;
+			if (waitTime > maximumWaitTime)
+				maximumWaitTime = waitTime;
+			return message;
+		}
+		
+		private void clear(List<Message> discarded) {
+			while (size > 0) {
+				discarded.add(messages[head]);
+				messages[head] = null;
+				head = (head + 1) % messages.length;
+				size--;
+			}
+		}
+		
+		/**
+		 * Returns the number of messages waiting in this lane.
+		 * @return The lane depth.
+		 */
+		public int getDepth() {
+			return size;
+		}
+		
+		/**
+		 * Returns the number of messages that have left this lane.
+		 * @return The message count.
+		 */
+		public long getMessageCount() {
+			return messageCount;
+		}
+		
+		/**
+		 * Returns the average time that messages waited in this lane.
+		 * @return The average wait time in milliseconds.
+		 */
+		public double getAverageWaitTime() {
+			long count = messageCount;
+			return count == 0 ? 0 : totalWaitTime / (count * 1000000.0);
+		}
+		
+		/**
+		 * Returns the longest time that a message waited in this lane.
+		 * @return The maximum wait time in milliseconds.
+		 */
+		public double getMaximumWaitTime() {
+			return maximumWaitTime / 1000000.0;
+		}
+		
+	}
+	
+	private class Writer implements Runnable {
+		
+		@Override
+		public void run() {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					Message message = take();
+					if (message instanceof DataSet1 && coalescer.accepts((DataSet1) message)) {
+						transmitCoalesced((DataSet1) message);
+					} else {
+						try {
+							if (message instanceof Sysex)
+								transmitSysex((Sysex) message);
+							else
+								transmit(message);
+						} finally {
+							messagesDone(1, isPatchWrite(message) ? 1 : 0);
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			}
+		}
+		
+		/**
+		 * Takes the next message, from the priority lane if it holds any.
+		 */
+		private Message take() throws InterruptedException {
+			synchronized (QueuedMidiTransmitter.this) {
+				while (priorityLane.isEmpty() && bulkLane.isEmpty())
+					QueuedMidiTransmitter.this.wait();
+				Message message;
+				if (priorityLane.isEmpty()) {
+					message = bulkLane.poll();
+					countBulk(message, -1);
+				} else {
+					message = priorityLane.poll();
+				}
+				QueuedMidiTransmitter.this.notifyAll();
+				return message;
+			}
+		}
+		
+		/**
+		 * Waits until the system exclusive interval has passed,
+		 * sending priority messages in the meantime.
+		 */
+		private void awaitSysexInterval() throws InterruptedException {
+			while (true) {
+				Message urgent;
+				synchronized (QueuedMidiTransmitter.this) {
+					long delay;
+					while ((urgent = priorityLane.poll()) == null && (delay = nextSysexTime - System.nanoTime()) > 0)
+						TimeUnit.NANOSECONDS.timedWait(QueuedMidiTransmitter.this, delay);
+					if (urgent == null)
+						return;
+					QueuedMidiTransmitter.this.notifyAll();
+				}
+				transmitUrgent(urgent);
+			}
+		}
+		
+		/**
+		 * Transmits a system exclusive message once the interval has passed,
+		 * splitting it first if it is a data set that is too large.
+		 * When stopped, the parts that were not sent yet are kept as unsent.
+		 */
+		private void transmitSysex(Sysex message) throws InterruptedException {
+			int maximumSize = maximumDataSetSize;
+			if (message instanceof DataSet1 && maximumSize > 0 && ((DataSet1) message).getSize() > maximumSize) {
+				List<DataSet1> parts = ((DataSet1) message).split(maximumSize);
+				splitCount += parts.size() - 1;
+				for (int i = 0; i < parts.size(); i++) {
+					try {
+						awaitSysexInterval();
+					} catch (InterruptedException e) {
+						addUnsent(parts.subList(i, parts.size()));
+						throw e;
+					}
+					transmit(parts.get(i));
+				}
+			} else {
+				try {
+					if (message instanceof DataRequest1)
+						awaitRequestWindow();
+					awaitSysexInterval();
+				} catch (InterruptedException e) {
+					addUnsent(Collections.singletonList(message));
+					throw e;
+				}
+				transmit(message);
+			}
+		}
+		
+		/**
+		 * Waits until the link profile allows another outstanding data request,
+		 * sending priority messages in the meantime. The profile notifies when a reply
+		 * opens the window; otherwise it opens when the oldest request expires.
+		 */
+		private void awaitRequestWindow() throws InterruptedException {
+			while (true) {
+				Message urgent;
+				synchronized (QueuedMidiTransmitter.this) {
+					LinkProfile profile;
+					while ((urgent = priorityLane.poll()) == null && (profile = linkProfile) != null && !profile.isWindowOpen())
+						TimeUnit.NANOSECONDS.timedWait(QueuedMidiTransmitter.this, Math.max(1, profile.getExpiryDelayNanos()));
+					if (urgent == null)
+						return;
+					QueuedMidiTransmitter.this.notifyAll();
+				}
+				transmitUrgent(urgent);
+			}
+		}
+		
+		private void transmitUrgent(Message message) {
+			try {
+				transmit(message);
+			} finally {
+				messagesDone(1, 0);
+			}
+		}
+		
+		/**
+		 * Merges the given data set with the data sets that follow it in the bulk lane,
+		 * until the system exclusive interval and coalesce window have passed, and
+		 * then transmits the result. Stops merging at the first message that can not
+		 * be merged, so that the message order is preserved. Priority messages that
+		 * arrive in the meantime are sent right away.
+		 */
+		private void transmitCoalesced(DataSet1 first) throws InterruptedException {
+			coalescer.add(first);
+			int patchWrites = isPatchWrite(first) ? 1 : 0;
+			long deadline = Math.max(nextSysexTime, System.nanoTime() + coalesceWindow);
+			try {
+				while (true) {
+					Message urgent = null;
+					synchronized (QueuedMidiTransmitter.this) {
+						while (true) {
+							urgent = priorityLane.poll();
+							if (urgent != null)
+								break;
+							Message next = bulkLane.peek();
+							if (next != null) {
+								if (!(next instanceof DataSet1 && coalescer.accepts((DataSet1) next)))
+									break;
+								coalescer.add((DataSet1) bulkLane.poll());
+								if (isPatchWrite(next))
+									patchWrites++;
+								continue;
+							}
+							long timeout = deadline - System.nanoTime();
+							if (timeout <= 0)
+								break;
+							TimeUnit.NANOSECONDS.timedWait(QueuedMidiTransmitter.this, timeout);
+						}
+						QueuedMidiTransmitter.this.notifyAll();
+					}
+					if (urgent == null)
+						break;
+					transmitUrgent(urgent);
+				}
+			} catch (InterruptedException e) {
+				messagesDone(coalescer.getMessageCount(), patchWrites);
+				addUnsent(coalescer.drain());
+				throw e;
+			}
+			
+			int count = coalescer.getMessageCount();
+			List<DataSet1> merged = coalescer.drain();
+			coalescedCount += count - merged.size();
+			int sent = 0;
+			try {
+				for (; sent < merged.size(); sent++)
+					transmitSysex(merged.get(sent));
+			} catch (InterruptedException e) {
+				addUnsent(merged.subList(sent + 1, merged.size()));
+				throw e;
+			} finally {
+				messagesDone(count, patchWrites);
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import nl.grauw.gaia.Address;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage;
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.midi.messages.Message;
+import nl.grauw.gaia.midi.messages.PitchBendChangeMessage;
+import nl.grauw.gaia.midi.messages.ProgramChangeMessage;
+
+/**
+ * Transmitter that drops messages which would not change the state of the device.
+ * 
+ * It remembers the last controller values, program and pitch bend per channel, and
+ * keeps a byte-level shadow of the parameter memory that was written with data set
+ * messages. Controller, pitch bend and program change messages that repeat the known
+ * state are dropped, and data set messages are trimmed to the bytes that differ from
+ * the shadow, or dropped entirely if none do.
+ * 
+ * The filter also receives the device’s messages, so that edits made on the device
+ * itself update the known state. Controllers and program changes modify the temporary
+ * patch, so they make the filter forget its shadow; a program change also forgets the
+ * controllers of its channel. A program change is only dropped if nothing was edited
+ * since the previous one. Call clear() when
+ * the state of the device becomes unknown, e.g. after reconnecting.
+ * 
+ * Controllers with side effects (bank select, data entry, (N)RPN selection and the
+ * channel mode messages) and command addresses are always sent.
+ */
+public class RedundancyFilter implements MidiTransmitter, MidiReceiver {
+	
+	final static int UNKNOWN = -1;
+	final static int PAGE_SIZE = 0x80;
+	final static int TEMPORARY_PATCH = 0x10;
+	final static int COMMAND = 0x0F;
+	final static int SYNTH_CHANNEL = 0;
+	
+	private MidiTransmitter target;
+	
+	private int[][] controllers = new int[16][0x80];
+	private int[] programs = new int[16];
+	private int[] pitchBends = new int[16];
+	private Map<Integer, byte[]> pages = new HashMap<Integer, byte[]>();
+	
+	private volatile long droppedCount = 0;
+	private volatile long savedByteCount = 0;
+	
+	public RedundancyFilter(MidiTransmitter target) {
+		this.target = target;
+		clear();
+	}
+	
+	/**
+	 * Forgets all known device state.
+	 */
+	public synchronized void clear() {
+		for (int[] channelControllers : controllers)
+			Arrays.fill(channelControllers, UNKNOWN);
+		Arrays.fill(programs, UNKNOWN);
+		Arrays.fill(pitchBends, UNKNOWN);
+		pages.clear();
+	}
+	
+	@Override
+	public synchronized void send(Message message) {
+		Message filtered = filter(message);
+		if (filtered != null)
+			target.send(filtered);
+	}
+	
+	@Override
+	public synchronized void send(List<Message> messages) {
+		List<Message> filtered = new ArrayList<Message>(messages.size());
+		for (Message message : messages) {
+			Message result = filter(message);
+			if (result != null)
+				filtered.add(result);
+		}
+		if (!filtered.isEmpty())
+			target.send(filtered);
+	}
+	
+	/**
+	 * Updates the known state with a message received from the device.
+	 */
+	@Override
+	public synchronized void receive(Message message) {
+		if (message instanceof ControlChangeMessage) {
+			update((ControlChangeMessage) message);
+		} else if (message instanceof ProgramChangeMessage) {
+			update((ProgramChangeMessage) message);
+		} else if (message instanceof PitchBendChangeMessage) {
+			PitchBendChangeMessage pitchBend = (PitchBendChangeMessage) message;
+			pitchBends[pitchBend.getChannel()] = pitchBend.getValue();
+		} else if (message instanceof DataSet1) {
+			DataSet1 dataSet = (DataSet1) message;
+			if (DataSetCoalescer.isCoalescable(dataSet)) {
+				write(dataSet.getAddressValue(), dataSet.getDataSetBuffer());
+				written(dataSet.getAddressValue());
+			} else if (dataSet.getAddress().getByte1() == COMMAND) {
+				commanded();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of messages that were dropped because they were redundant.
+	 * @return The number of dropped messages.
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+	
+	/**
+	 * Returns the number of data bytes that were trimmed from or dropped with data set
+	 * messages because the device already held them.
+	 * @return The number of saved bytes.
+	 */
+	public long getSavedByteCount() {
+		return savedByteCount;
+	}
+	
+	/**
+	 * Returns the message to send instead of the given message.
+	 * @return The message, a trimmed data set, or null if the message is redundant.
+	 */
+	private Message filter(Message message) {
+		if (message instanceof ControlChangeMessage) {
+			ControlChangeMessage controlChange = (ControlChangeMessage) message;
+			if (isStateController(controlChange.getControllerNumber()) &&
+					controllers[controlChange.getChannel()][controlChange.getControllerNumber()] == controlChange.getValue())
+				return drop();
+			update(controlChange);
+		} else if (message instanceof ProgramChangeMessage) {
+			ProgramChangeMessage programChange = (ProgramChangeMessage) message;
+			if (programs[programChange.getChannel()] == programChange.getProgram())
+				return drop();
+			update(programChange);
+		} else if (message instanceof PitchBendChangeMessage) {
+			PitchBendChangeMessage pitchBend = (PitchBendChangeMessage) message;
+			if (pitchBends[pitchBend.getChannel()] == pitchBend.getValue())
+				return drop();
+			pitchBends[pitchBend.getChannel()] = pitchBend.getValue();
+		} else if (message instanceof DataSet1 && DataSetCoalescer.isCoalescable((DataSet1) message)) {
+			return filter((DataSet1) message);
+		} else if (message instanceof DataSet1 && ((DataSet1) message).getAddress().getByte1() == COMMAND) {
+			commanded();
+		}
+		return message;
+	}
+	
+	private DataSet1 filter(DataSet1 message) {
+		int address = message.getAddressValue();
+		ByteBuffer data = message.getDataSetBuffer();
+		int size = data.remaining();
+		int first = 0;
+		while (first < size && read(address + first) == data.get(first))
+			first++;
+		if (first == size) {
+			savedByteCount += size;
+			return drop();
+		}
+		int last = size - 1;
+		while (read(address + last) == data.get(last))
+			last--;
+		
+		write(address, data);
+		written(address);
+		
+		if (first == 0 && last == size - 1)
+			return message;
+		savedByteCount += size - (last - first + 1);
+		((Buffer) data).position(first);
+		((Buffer) data).limit(last + 1);
+		return new DataSet1(message.getDeviceId(), new Address(address + first), data);
+	}
+	
+	private <T> T drop() {
+		droppedCount++;
+		return null;
+	}
+	
+	private void update(ControlChangeMessage message) {
+		int channel = message.getChannel();
+		int controller = message.getControllerNumber();
+		if (isStateController(controller)) {
+			controllers[channel][controller] = message.getValue();
+		} else if (controller == 0x00 || controller == 0x20 || controller >= 0x78) {
+			// bank select or channel mode message
+			Arrays.fill(controllers[channel], UNKNOWN);
+		}
+		programs[channel] = UNKNOWN;
+		forgetTemporaryPatch();
+	}
+	
+	private void update(ProgramChangeMessage message) {
+		int channel = message.getChannel();
+		programs[channel] = message.getProgram();
+		Arrays.fill(controllers[channel], UNKNOWN);
+		forgetTemporaryPatch();
+	}
+	
+	/**
+	 * Updates the known state after parameters were written. Writes to the temporary
+	 * patch change the parameters that the controllers of the synth channel set.
+	 */
+	private void written(int address) {
+		Arrays.fill(programs, UNKNOWN);
+		if (address >> 21 == TEMPORARY_PATCH)
+			Arrays.fill(controllers[SYNTH_CHANNEL], UNKNOWN);
+	}
+	
+	/**
+	 * Updates the known state after a command, such as initialising the patch or
+	 * copying a tone, which changes the temporary patch.
+	 */
+	private void commanded() {
+		Arrays.fill(programs, UNKNOWN);
+		Arrays.fill(controllers[SYNTH_CHANNEL], UNKNOWN);
+		forgetTemporaryPatch();
+	}
+	
+	/**
+	 * Forgets the shadow of the temporary patch, whose parameters controllers
+	 * and program changes modify.
+	 */
+	private void forgetTemporaryPatch() {
+		for (Iterator<Integer> i = pages.keySet().iterator(); i.hasNext();) {
+			if (i.next() >> 14 == TEMPORARY_PATCH)
+				i.remove();
+		}
+	}
+	
+	/**
+	 * Returns whether a controller only sets a value, without further side effects.
+	 */
+	private static boolean isStateController(int controller) {
+		return controller < 0x78 && controller != 0x00 && controller != 0x20 &&
+				controller != 0x06 && controller != 0x26 && !(controller >= 0x60 && controller <= 0x65);
+	}
+	
+	private int read(int address) {
+		byte[] page = pages.get(address >> 7);
+		return page != null ? page[address & 0x7F] : UNKNOWN;
+	}
+	
+	private void write(int address, ByteBuffer data) {
+		for (int i = 0, size = data.remaining(); i < size; i++) {
+			int pageAddress = address + i >> 7;
+			byte[] page = pages.get(pageAddress);
+			if (page == null) {
+				page = new byte[PAGE_SIZE];
+				Arrays.fill(page, (byte) UNKNOWN);
+				pages.put(pageAddress, page);
+			}
+			page[address + i & 0x7F] = data.get(data.position() + i);
+		}
+	}
+	
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import nl.grauw.gaia.Log;
+import nl.grauw.gaia.midi.messages.ActiveSensingMessage;
+import nl.grauw.gaia.midi.messages.Message;
+
+/**
+ * MIDI connection over a TCP socket, to a GAIA that is attached to another process or host.
+ * 
+ * Each message is sent as a frame of a 4-byte big-endian length followed by the message
+ * bytes. The socket is opened with TCP_NODELAY, and messages that are sent while the
+ * previous write is in progress are gathered in a buffer and written together, so that
+ * bursts of small messages do not each cost a packet. The read and write buffers are
+ * reused, and only grow when a message does not fit. Each received message is copied
+ * out of the read buffer into its own array, since the decoded message keeps it.
+ * 
+ * The other end is typically a SocketMidiServer that bridges to the MIDI ports.
+ */
+public class SocketMidiConnection implements MidiConnection, MidiTransmitter {
+	
+	public static final int DEFAULT_PORT = 7401;
+	public static final int MAXIMUM_MESSAGE_SIZE = SysexReassembler.DEFAULT_MAXIMUM_SIZE;
+	
+	final static int HEADER_SIZE = 4;
+	final static int INITIAL_BUFFER_SIZE = 4096;
+	
+	private volatile boolean opened = false;
+	private volatile boolean connected = false;
+	
+	private SocketChannel channel;
+	private Thread reader;
+	private Thread writer;
+	private Object writeLock = new Object();
+	private ByteBuffer pendingBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+	private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+	private MessageDecoder decoder = MessageDecoder.createDefault();
+	private Traffic sent = new Traffic();
+	private Traffic received = new Traffic();
+	private volatile long writeCount = 0;
+	
+	private List<MidiReceiver> midiReceivers = new CopyOnWriteArrayList<MidiReceiver>();
+	
+	private Log log;
+	
+	public SocketMidiConnection(Log log) {
+		this.log = log;
+	}
+	
+	public void addMidiReceiver(MidiReceiver receiver) {
+		midiReceivers.add(receiver);
+	}
+	
+	public void removeMidiReceiver(MidiReceiver receiver) {
+		midiReceivers.remove(receiver);
+	}
+	
+	public MidiTransmitter getMidiTransmitter() {
+		return this;
+	}
+	
+	/**
+	 * Connects to a MIDI bridge.
+	 * @param host The host name or address.
+	 * @param port The TCP port.
+	 */
+	public void open(String host, int port) throws IOException {
+		if (opened)
+			throw new RuntimeException("MIDI connection is already opened.");
+		
+		log.log("Connecting to " + host + ":" + port);
+		open(SocketChannel.open(new InetSocketAddress(host, port)));
+	}
+	
+	/**
+	 * Starts exchanging messages over a connected socket.
+	 * @param channel The connected socket channel, which is closed when the connection closes.
+	 */
+	public void open(SocketChannel channel) throws IOException {
+		if (opened)
+			throw new RuntimeException("MIDI connection is already opened.");
+		
+		try {
+			channel.configureBlocking(true);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		this.channel = channel;
+		((Buffer) pendingBuffer).clear();
+		((Buffer) readBuffer).clear();
+		sent.reset();
+		received.reset();
+		writeCount = 0;
+		opened = true;
+		connected = true;
+		
+		reader = new Thread(new Reader(), "MIDI socket receiver");
+		reader.setDaemon(true);
+		reader.start();
+		writer = new Thread(new Writer(), "MIDI socket transmitter");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Closes the connection, after writing the messages that were already sent.
+	 */
+	public void close() {
+		if (!opened)
+			throw new RuntimeException("MIDI connection is already closed.");
+		
+		synchronized (writeLock) {
+			opened = false;
+			writeLock.notifyAll();
+		}
+		try {
+			writer.join();
+			channel.close();
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			log.log("Closing socket failed: " + e.getMessage());
+		}
+		connected = false;
+		writer = null;
+		reader = null;
+		channel = null;
+	}
+	
+	public boolean isOpened() {
+		return opened;
+	}
+	
+	/**
+	 * Returns whether the socket is still connected.
+	 * @return False if the connection is closed, or was closed by the other end.
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+	
+	/**
+	 * Returns the decoder for incoming messages, to which message types can be added.
+	 * @return The message decoder.
+	 */
+	public MessageDecoder getDecoder() {
+		return decoder;
+	}
+	
+	/**
+	 * Returns the outgoing traffic.
+	 * @return The sent message and byte counts and rates.
+	 */
+	public Traffic getSent() {
+		return sent;
+	}
+	
+	/**
+	 * Returns the incoming traffic.
+	 * @return The received message and byte counts and rates.
+	 */
+	public Traffic getReceived() {
+		return received;
+	}
+	
+	/**
+	 * Returns the number of socket writes. Compared to the number of sent messages,
+	 * this shows how well messages are batched.
+	 * @return The number of writes.
+	 */
+	public long getWriteCount() {
+		return writeCount;
+	}
+	
+	public void send(Message message) {
+		synchronized (writeLock) {
+			if (!connected)
+				throw new RuntimeException("MIDI connection not open.");
+			
+			append(message);
+			writeLock.notifyAll();
+		}
+		
+		log.log("Sent: " + message);
+	}
+	
+	/**
+	 * Sends a list of messages, which are written in one go.
+	 * @param messages
+	 */
+	public void send(List<Message> messages) {
+		synchronized (writeLock) {
+			if (!connected)
+				throw new RuntimeException("MIDI connection not open.");
+			
+			for (Message message : messages)
+				append(message);
+			writeLock.notifyAll();
+		}
+		
+		for (Message message : messages)
+			log.log("Sent: " + message);
+	}
+	
+	private void append(Message message) {
+		int size = message.getSize();
+		if (size > MAXIMUM_MESSAGE_SIZE)
+			throw new IllegalArgumentException("Message too large.");
+		pendingBuffer = ensureRemaining(pendingBuffer, HEADER_SIZE + size);
+		pendingBuffer.putInt(size);
+		for (int i = 0; i < size; i++)
+			pendingBuffer.put((byte) message.getMessage(i));
+		sent.add(HEADER_SIZE + size);
+	}
+	
+	/**
+	 * Returns a buffer with at least the given space remaining, replacing it by a larger
+	 * copy if necessary. The buffer must be in write mode.
+	 */
+	private static ByteBuffer ensureRemaining(ByteBuffer buffer, int remaining) {
+		if (buffer.remaining() >= remaining)
+			return buffer;
+		int capacity = buffer.capacity();
+		while (capacity - buffer.position() < remaining)
+			capacity *= 2;
+		ByteBuffer larger = ByteBuffer.allocateDirect(capacity);
+		((Buffer) buffer).flip();
+		larger.put(buffer);
+		return larger;
+	}
+	
+	private void receive(byte[] data) {
+		Message message = decoder.decode(data);
+		
+		if (!(message instanceof ActiveSensingMessage)) {
+			log.log("Received: " + message);
+		}
+		
+		for (MidiReceiver receiver : midiReceivers)
+			receiver.receive(message);
+	}
+	
+	/**
+	 * Transfer statistics of one direction of the connection.
+	 */
+	public static class Traffic {
+		
+		private volatile long messageCount;
+		private volatile long byteCount;
+		private volatile long startTime;
+		
+		private Traffic() {
+			reset();
+		}
+		
+		private void reset() {
+			messageCount = 0;
+			byteCount = 0;
+			startTime = System.nanoTime();
+		}
+		
+		private void add(int bytes) {
+			messageCount++;
+			byteCount += bytes;
+		}
+		
+		/**
+		 * Returns the number of messages.
+		 * @return The message count.
+		 */
+		public long getMessageCount() {
+			return messageCount;
+		}
+		
+		/**
+		 * Returns the number of bytes, including the framing.
+		 * @return The byte count.
+		 */
+		public long getByteCount() {
+			return byteCount;
+		}
+		
+		/**
+		 * Returns the average number of messages per second since the connection was opened.
+		 * @return The message rate.
+		 */
+		public double getMessageRate() {
+			return messageCount / getElapsedTime();
+		}
+		
+		/**
+		 * Returns the average number of bytes per second since the connection was opened.
+		 * @return The byte rate.
+		 */
+		public double getByteRate() {
+			return byteCount / getElapsedTime();
+		}
+		
+		private double getElapsedTime() {
+			return Math.max(System.nanoTime() - startTime, 1000000) / 1e9;
+		}
+		
+	}
+	
+	/**
+	 * Writes the pending messages. While a write is in progress, new messages gather in
+	 * the pending buffer, after which the two buffers are swapped.
+	 */
+	private class Writer implements Runnable {
+		
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					synchronized (writeLock) {
+						while (opened && connected && pendingBuffer.position() == 0)
+							writeLock.wait();
+						if (!connected || pendingBuffer.position() == 0)
+							return;
+						ByteBuffer buffer = pendingBuffer;
+						pendingBuffer = writeBuffer;
+						writeBuffer = buffer;
+					}
+					((Buffer) writeBuffer).flip();
+					while (writeBuffer.hasRemaining())
+						channel.write(writeBuffer);
+					((Buffer) writeBuffer).clear();
+					writeCount++;
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			} catch (IOException e) {
+				disconnect("Sending failed: " + e.getMessage());
+			}
+		}
+		
+	}
+	
+	/**
+	 * Reads frames from the socket, and dispatches the messages to the MIDI receivers.
+	 */
+	private class Reader implements Runnable {
+		
+		@Override
+		public void run() {
+			try {
+				while (channel.read(readBuffer) >= 0) {
+					((Buffer) readBuffer).flip();
+					while (readBuffer.remaining() >= HEADER_SIZE) {
+						int size = readBuffer.getInt(readBuffer.position());
+						if (size <= 0 || size > MAXIMUM_MESSAGE_SIZE)
+							throw new IOException("Invalid frame size: " + size);
+						if (readBuffer.remaining() < HEADER_SIZE + size)
+							break;
+						
+						// the decoded message holds on to its bytes, so they need their own array
+						byte[] data = new byte[size];
+						readBuffer.getInt();
+						readBuffer.get(data);
+						received.add(HEADER_SIZE + size);
+						try {
+							receive(data);
+						} catch (RuntimeException e) {
+							log.log("Receiving failed: " + e.getMessage());
+						}
+					}
+					readBuffer.compact();
+					if (!readBuffer.hasRemaining())
+						readBuffer = ensureRemaining(readBuffer, readBuffer.capacity());
+				}
+				disconnect("Connection closed by the other end.");
+			} catch (ClosedChannelException e) {
+				// closed
+			} catch (IOException e) {
+				disconnect("Receiving failed: " + e.getMessage());
+			}
+		}
+		
+	}
+	
+	private void disconnect(String reason) {
+		synchronized (writeLock) {
+			if (!connected)
+				return;
+			connected = false;
+			writeLock.notifyAll();
+		}
+		log.log(reason);
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+	
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Properties;
+
+import nl.grauw.gaia.Log;
+import nl.grauw.gaia.Log.LogMessageListener;
+import nl.grauw.gaia.midi.messages.Message;
+
+/**
+ * Bridges a MIDI connection to a TCP port, so that an editor on another host can
+ * drive the GAIA through a SocketMidiConnection.
+ * 
+ * One client is served at a time; a new client replaces the current one.
+ * Run headless with: java nl.grauw.gaia.midi.SocketMidiServer [port]
+ */
+public class SocketMidiServer {
+	
+	private Log log;
+	private MidiConnection target;
+	private ServerSocketChannel server;
+	private Thread acceptor;
+	private volatile SocketMidiConnection client;
+	
+	private MidiReceiver toClient = new MidiReceiver() {
+		@Override
+		public void receive(Message message) {
+			SocketMidiConnection client = SocketMidiServer.this.client;
+			if (client != null && client.isConnected())
+				client.send(message);
+		}
+	};
+	
+	private MidiReceiver toTarget = new MidiReceiver() {
+		@Override
+		public void receive(Message message) {
+			target.getMidiTransmitter().send(message);
+		}
+	};
+	
+	/**
+	 * Constructs a new bridge.
+	 * @param log The log.
+	 * @param target The connection to the GAIA.
+	 */
+	public SocketMidiServer(Log log, MidiConnection target) {
+		this.log = log;
+		this.target = target;
+	}
+	
+	/**
+	 * Starts accepting clients.
+	 * @param address The address to listen on.
+	 */
+	public void start(InetSocketAddress address) throws IOException {
+		if (server != null)
+			throw new RuntimeException("Server is already started.");
+		
+		server = ServerSocketChannel.open();
+		server.bind(address);
+		target.addMidiReceiver(toClient);
+		
+		acceptor = new Thread(new Acceptor(), "MIDI socket server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		log.log("Listening on " + server.getLocalAddress());
+	}
+	
+	/**
+	 * Stops accepting clients and closes the current client connection.
+	 */
+	public void stop() {
+		if (server == null)
+			throw new RuntimeException("Server is already stopped.");
+		
+		target.removeMidiReceiver(toClient);
+		try {
+			server.close();
+			acceptor.join();
+		} catch (IOException e) {
+			log.log("Closing server failed: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		closeClient();
+		server = null;
+		acceptor = null;
+	}
+	
+	/**
+	 * Returns the port the server listens on.
+	 * @return The local port, or -1 if the server is not started.
+	 */
+	public int getPort() {
+		return server != null ? server.socket().getLocalPort() : -1;
+	}
+	
+	/**
+	 * Returns the current client connection.
+	 * @return The connection, which provides the traffic statistics, or null.
+	 */
+	public SocketMidiConnection getClient() {
+		return client;
+	}
+	
+	private synchronized void closeClient() {
+		SocketMidiConnection client = this.client;
+		this.client = null;
+		if (client != null)
+			client.close();
+	}
+	
+	private synchronized void accept(SocketChannel channel) throws IOException {
+		closeClient();
+		log.log("Client connected: " + channel.getRemoteAddress());
+		SocketMidiConnection client = new SocketMidiConnection(log);
+		client.addMidiReceiver(toTarget);
+		client.open(channel);
+		this.client = client;
+	}
+	
+	private class Acceptor implements Runnable {
+		
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					SocketChannel channel = server.accept();
+					try {
+						accept(channel);
+					} catch (IOException e) {
+						log.log("Accepting client failed: " + e.getMessage());
+					}
+				}
+			} catch (ClosedChannelException e) {
+				// stopped
+			} catch (IOException e) {
+				log.log("Server failed: " + e.getMessage());
+			}
+		}
+		
+	}
+	
+	public static void main(String[] args) throws Exception {
+		Log log = new Log(false);
+		log.addMessageListener(new LogMessageListener() {
+			@Override
+			public void onLogMessage(Log source, String message) {
+				System.out.println(message);
+			}
+		});
+		
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : SocketMidiConnection.DEFAULT_PORT;
+		JavaMidiConnection connection = new JavaMidiConnection(log, new Properties());
+		connection.open();
+		new SocketMidiServer(log, connection).start(new InetSocketAddress(port));
+		Thread.currentThread().join();
+	}
+	
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import java.util.Arrays;
+
+import nl.grauw.gaia.midi.MidiInputBuffer.MessageHandler;
+
+/**
+ * Reassembles system exclusive messages that arrive in several fragments.
+ * 
+ * Some drivers deliver a long system exclusive message as a first fragment starting
+ * with F0, followed by continuation fragments starting with F7; the last fragment
+ * ends with F7. The fragments are stitched together into a complete message before
+ * it is passed on. Realtime messages (F8-FF) are passed on immediately, also when
+ * they occur in the middle of a system exclusive message.
+ * 
+ * A system exclusive message that is interrupted by another status byte is discarded
+ * and counted as truncated. Continuations without a start, and messages that exceed
+ * the maximum size, are discarded and counted as malformed.
+ * 
+ * Complete messages that arrive in one piece are passed on without copying.
+ * A continuation fragment that only holds F7 ends the pending message.
+ */
+public class SysexReassembler implements MessageHandler {
+	
+	public static final int DEFAULT_MAXIMUM_SIZE = 0x10000;
+	
+	final static int SYSTEM_EXCLUSIVE = 0xF0;
+	final static int END_OF_EXCLUSIVE = 0xF7;
+	final static int TIMING_CLOCK = 0xF8;
+	
+	private MessageHandler target;
+	private int maximumSize;
+	
+	private byte[] buffer = new byte[512];
+	private int size = 0;
+	private boolean pending = false;
+	private boolean overflow = false;
+	private long timeStamp;
+	private byte[] scratch = new byte[3];
+	
+	private volatile long truncatedCount = 0;
+	private volatile long malformedCount = 0;
+	
+	public SysexReassembler(MessageHandler target) {
+		this(target, DEFAULT_MAXIMUM_SIZE);
+	}
+	
+	/**
+	 * Constructs a new reassembler.
+	 * @param target The handler to pass complete messages to.
+	 * @param maximumSize The maximum size of a system exclusive message in bytes.
+	 */
+	public SysexReassembler(MessageHandler target, int maximumSize) {
+		if (maximumSize < 2)
+			throw new IllegalArgumentException("Maximum size too small.");
+		this.target = target;
+		this.maximumSize = maximumSize;
+	}
+	
+	@Override
+	public void handle(byte[] data, int length, long timeStamp) {
+		process(data, 0, length, timeStamp);
+	}
+	
+	private void process(byte[] data, int offset, int length, long timeStamp) {
+		if (length <= 0)
+			return;
+		
+		int status = data[offset] & 0xFF;
+		if (status == SYSTEM_EXCLUSIVE) {
+			if (pending)
+				truncate();
+			if (offset == 0 && isComplete(data, length)) {
+				target.handle(data, length, timeStamp);
+			} else {
+				pending = true;
+				this.timeStamp = timeStamp;
+				append(data, offset, length);
+			}
+		} else if (status == END_OF_EXCLUSIVE) {
+			if (!pending) {
+				malformedCount++;
+			} else if (length == 1) {
+				add(data[offset]);
+				complete();
+			} else {
+				append(data, offset + 1, length - 1);
+			}
+		} else if (status < 0x80) {
+			malformedCount++;
+		} else if (status >= TIMING_CLOCK || !pending) {
+			pass(data, offset, length, timeStamp);
+		} else {
+			truncate();
+			pass(data, offset, length, timeStamp);
+		}
+	}
+	
+	/**
+	 * Returns whether the data is a single complete system exclusive message.
+	 */
+	private boolean isComplete(byte[] data, int length) {
+		if (length < 2 || (data[length - 1] & 0xFF) != END_OF_EXCLUSIVE)
+			return false;
+		for (int i = 1; i < length - 1; i++) {
+			if ((data[i] & 0x80) != 0)
+				return false;
+		}
+		return length <= maximumSize;
+	}
+	
+	/**
+	 * Appends the bytes of a fragment to the pending message.
+	 */
+	private void append(byte[] data, int offset, int length) {
+		for (int i = offset, end = offset + length; i < end; i++) {
+			int value = data[i] & 0xFF;
+			if (value >= TIMING_CLOCK) {
+				scratch[0] = data[i];
+				target.handle(scratch, 1, timeStamp);
+			} else if (value == END_OF_EXCLUSIVE) {
+				add(data[i]);
+				complete();
+				process(data, i + 1, end - i - 1, timeStamp);
+				return;
+			} else if ((value & 0x80) != 0 && !(value == SYSTEM_EXCLUSIVE && i == offset && size == 0)) {
+				truncate();
+				process(data, i, end - i, timeStamp);
+				return;
+			} else {
+				add(data[i]);
+			}
+		}
+	}
+	
+	private void add(byte value) {
+		if (overflow)
+			return;
+		if (size == maximumSize) {
+			overflow = true;
+			return;
+		}
+		if (size == buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.min(maximumSize, buffer.length * 2));
+		buffer[size++] = value;
+	}
+	
+	private void complete() {
+		if (overflow) {
+			malformedCount++;
+		} else {
+			target.handle(buffer, size, timeStamp);
+		}
+		reset();
+	}
+	
+	private void truncate() {
+		truncatedCount++;
+		reset();
+	}
+	
+	private void reset() {
+		pending = false;
+		overflow = false;
+		size = 0;
+	}
+	
+	private void pass(byte[] data, int offset, int length, long timeStamp) {
+		if (offset == 0) {
+			target.handle(data, length, timeStamp);
+		} else {
+			if (scratch.length < length)
+				scratch = new byte[length];
+			System.arraycopy(data, offset, scratch, 0, length);
+			target.handle(scratch, length, timeStamp);
+		}
+	}
+	
+	/**
+	 * Returns whether a system exclusive message is partially received.
+	 * @return True if fragments are waiting for their continuation.
+	 */
+	public boolean isPending() {
+		return pending;
+	}
+	
+	/**
+	 * Returns the number of system exclusive messages that were interrupted by another message.
+	 * @return The number of truncated messages.
+	 */
+	public long getTruncatedCount() {
+		return truncatedCount;
+	}
+	
+	/**
+	 * Returns the number of messages that were discarded because they were too large,
+	 * or because they continued a system exclusive message that was not started.
+	 * @return The number of malformed messages.
+	 */
+	public long getMalformedCount() {
+		return malformedCount;
+	}
+	
+}
@@ -56,6 +56,16 @@ public class ControlChangeMessage extends ChannelMessage {
 			return code;
 		}
 		
+		/**
+		 * Returns whether the controller changes a parameter of the temporary patch,
+		 * which is also addressed by data set messages.
+		 * @return True for the effect and tone controls.
+		 */
+		public boolean isPatchParameter() {
+			return code >= 12 && code <= 30 || code >= 70 && code <= 87 || code >= 91 && code <= 94 ||
+					code >= 102 && code <= 116;
+		}
+		
 		static Controller[] controllers = new Controller[128];
 		
 		static {
@@ -15,6 +15,11 @@
  */
 package nl.grauw.gaia.midi.messages;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import nl.grauw.gaia.Address;
 
 /**
@@ -26,13 +31,14 @@ public class DataSet1 extends Sysex {
 	final static int ROLAND_ID = 0x41;
 	final static int MODEL_SH01 = 0x41;
 	final static int COMMAND_DT1 = 0x12;
+	final static int DATA_SET_OFFSET = 11;
 	
 	public DataSet1(byte[] message) {
 		super(message);
 		
 		if (getData(0) != ROLAND_ID || getData(2) != 0 || getData(3) != 0 || getData(4) != MODEL_SH01 || getData(5) != COMMAND_DT1)
 			throw new IllegalArgumentException("Not a SH-01 DT1 MIDI message.");
-		if (calculateChecksum(getMessage()) != getData(getDataSize() - 2))
+		if (calculateChecksum(message) != getData(getDataSize() - 2))
 			throw new IllegalArgumentException("Checksum mismatch.");
 	}
 	
@@ -40,15 +46,30 @@ public class DataSet1 extends Sysex {
 		this(BROADCAST_DEVICE, address, data);
 	}
 	
+	public DataSet1(Address address, ByteBuffer data) {
+		this(BROADCAST_DEVICE, address, data);
+	}
+	
 	public DataSet1(int device_id, Address address, byte[] data) {
+		this(device_id, address, ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * Constructs a data set message, copying the data straight from a buffer.
+	 * @param device_id The device ID.
+	 * @param address The start address.
+	 * @param data The buffer whose remaining bytes are the data. Its position is not modified.
+	 */
+	public DataSet1(int device_id, Address address, ByteBuffer data) {
 		super(createMessage(device_id, address, data));
 		
 		if (device_id != 0x7F && (device_id < 0x10 || device_id > 0x1F))
 			throw new IllegalArgumentException("Invalid device ID.");
 	}
 	
-	private static byte[] createMessage(int device_id, Address address, byte[] data) {
-		byte[] message = new byte[data.length + 13];
+	private static byte[] createMessage(int device_id, Address address, ByteBuffer data) {
+		int length = data.remaining();
+		byte[] message = new byte[length + 13];
 		message[0] = (byte)SYSTEM_EXCLUSIVE;
 		message[1] = ROLAND_ID;
 		message[2] = (byte)device_id;
@@ -60,9 +81,9 @@ public class DataSet1 extends Sysex {
 		message[8] = address.getByte2();
 		message[9] = address.getByte3();
 		message[10] = address.getByte4();
-		System.arraycopy(data, 0, message, 11, data.length);
-		message[data.length + 11] = calculateChecksum(message);
-		message[data.length + 12] = (byte)END_OF_EXCLUSIVE;
+		data.duplicate().get(message, 11, length);
+		message[length + 11] = calculateChecksum(message);
+		message[length + 12] = (byte)END_OF_EXCLUSIVE;
 		return message;
 	}
 	
@@ -74,21 +95,77 @@ public class DataSet1 extends Sysex {
 		return (byte) (0x80 - sum & 0x7F);
 	}
 	
+	public int getDeviceId() {
+		return getData(1);
+	}
+	
 	public Address getAddress() {
-		return new Address(getData(6), getData(7), getData(8), getData(9));
+		return new Address(getAddressValue());
+	}
+	
+	/**
+	 * Returns the address as an integer, without creating an Address object.
+	 * @return The address value, as returned by Address.getValue().
+	 */
+	public int getAddressValue() {
+		return message[7] << 21 | message[8] << 14 | message[9] << 7 | message[10];
 	}
 	
 	public int getSize() {
-		return getData().length - 12;
+		return message.length - DATA_SET_OFFSET - 2;
 	}
 	
+	/**
+	 * Returns a copy of the data set.
+	 * Use getDataSet(int) or getDataSetBuffer() to read it without copying.
+	 * @return The data set bytes.
+	 */
 	public byte[] getDataSet() {
-		byte[] data = getData();
-		byte[] dataSet = new byte[data.length - 12];
-		for (int i = 0; i < dataSet.length; i++) {
-			dataSet[i] = data[i + 10];
+		return Arrays.copyOfRange(message, DATA_SET_OFFSET, DATA_SET_OFFSET + getSize());
+	}
+	
+	/**
+	 * Returns a byte of the data set.
+	 * @param i The position in the data set.
+	 * @return The data byte.
+	 */
+	public int getDataSet(int i) {
+		if (i < 0 || i >= getSize())
+			throw new IllegalArgumentException("Data set position out of range.");
+		return message[DATA_SET_OFFSET + i];
+	}
+	
+	/**
+	 * Returns a read-only view of the data set, backed by the message bytes.
+	 * @return A buffer whose remaining bytes are the data set.
+	 */
+	public ByteBuffer getDataSetBuffer() {
+		return ByteBuffer.wrap(message, DATA_SET_OFFSET, getSize()).slice().asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Splits the data set into several messages with consecutive addresses.
+	 * @param maximumSize The maximum data set size of each message.
+	 * @return The messages, or a list holding only this message if it is not too large.
+	 */
+	public List<DataSet1> split(int maximumSize) {
+		if (maximumSize <= 0)
+			throw new IllegalArgumentException("Maximum size must be positive.");
+		
+		int size = getSize();
+		List<DataSet1> messages = new ArrayList<DataSet1>((size + maximumSize - 1) / maximumSize);
+		if (size <= maximumSize) {
+			messages.add(this);
+			return messages;
+		}
+		
+		int address = getAddressValue();
+		int deviceId = getDeviceId();
+		for (int offset = 0; offset < size; offset += maximumSize) {
+			ByteBuffer data = ByteBuffer.wrap(message, DATA_SET_OFFSET + offset, Math.min(maximumSize, size - offset));
+			messages.add(new DataSet1(deviceId, new Address(address + offset), data));
 		}
-		return dataSet;
+		return messages;
 	}
 	
 	public String toString() {
@@ -25,24 +25,34 @@ public class IdentityReply extends UniversalSysex {
 	}
 	
 	public int getIdNumber() {
-		return getData()[4];
+		return getData(4);
 	}
 	
 	public int[] getDeviceFamilyCode() {
-		int[] rv = {getData()[5], getData()[6]};
+		int[] rv = {getData(5), getData(6)};
 		return rv;
 	}
 	
 	public int[] getDeviceFamilyNumberCode() {
-		int[] rv = {getData()[7], getData()[8]};
+		int[] rv = {getData(7), getData(8)};
 		return rv;
 	}
 	
 	public int[] getSoftwareRevisionLevel() {
-		int[] rv = {getData()[9], getData()[10], getData()[11], getData()[12]};
+		int[] rv = {getData(9), getData(10), getData(11), getData(12)};
 		return rv;
 	}
 	
+	/**
+	 * Returns whether the reply identifies a Roland SH-01 GAIA.
+	 * @return True if the ID number and device family match the GAIA.
+	 */
+	public boolean isGaia() {
+		return getIdNumber() == 0x41 &&	// Roland ID
+				getData(5) == 0x41 && getData(6) == 0x02 &&
+				getData(7) == 0x00 && getData(8) == 0x00;
+	}
+	
 	public String toString() {
 		int[] dfc = getDeviceFamilyCode();
 		int[] dfnc = getDeviceFamilyNumberCode();
@@ -35,6 +35,17 @@ public class Message {
 		return message.clone();
 	}
 	
+	/**
+	 * Returns a byte of the message, without copying the message.
+	 * @param i The position in the message, 0 being the status byte.
+	 * @return The message byte.
+	 */
+	public int getMessage(int i) {
+		if (i < 0 || i >= message.length)
+			throw new IllegalArgumentException("Message position out of range.");
+		return message[i] & 0xFF;
+	}
+	
 	public int getStatus() {
 		return message[0] & 0xFF;
 	}
@@ -65,8 +76,7 @@ public class Message {
 	
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
-		byte[] message_bytes = getMessage();
-		for (byte message_byte : message_bytes) {
+		for (byte message_byte : message) {
 			builder.append(toHex(message_byte & 0xFF));
 			builder.append(" ");
 		}
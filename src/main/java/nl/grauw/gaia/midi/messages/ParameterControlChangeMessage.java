@@ -0,0 +1,40 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi.messages;
+
+/**
+ * Control change message that is sent in place of a parameter write.
+ * It carries the equivalent data set message, so that the write can be kept
+ * as a pending write if the control change can not be sent.
+ */
+public class ParameterControlChangeMessage extends ControlChangeMessage {
+	
+	private DataSet1 dataSet;
+	
+	public ParameterControlChangeMessage(ControlChangeMessage message, DataSet1 dataSet) {
+		super(message.getMessage());
+		this.dataSet = dataSet;
+	}
+	
+	/**
+	 * Returns the data set message that writes the same parameter value.
+	 * @return The data set message.
+	 */
+	public DataSet1 getDataSet() {
+		return dataSet;
+	}
+	
+}
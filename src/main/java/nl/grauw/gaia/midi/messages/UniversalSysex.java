@@ -55,7 +55,7 @@ public class UniversalSysex extends Sysex {
 	}
 	
 	public int getDeviceId() {
-		return getData()[1];
+		return getData(1);
 	}
 	
 }
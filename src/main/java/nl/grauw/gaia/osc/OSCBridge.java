@@ -0,0 +1,506 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.osc;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import nl.grauw.gaia.IntValue;
+import nl.grauw.gaia.Log;
+import nl.grauw.gaia.Parameters;
+import nl.grauw.gaia.Patch;
+import nl.grauw.gaia.parameters.Delay;
+import nl.grauw.gaia.parameters.Distortion;
+import nl.grauw.gaia.parameters.Flanger;
+import nl.grauw.gaia.parameters.PatchCommon;
+import nl.grauw.gaia.parameters.Reverb;
+import nl.grauw.gaia.parameters.Tone;
+
+/**
+ * Open Sound Control server that sets patch parameters.
+ * 
+ * Messages are received over UDP, and their address is mapped to a parameter of the
+ * patch, for example /gaia/temp/tone/1/filter/cutoff. The addresses are derived from
+ * the IntValue getters of the parameter classes. An integer argument is taken as the
+ * parameter value, a floating point argument in the range 0.0-1.0 is scaled to the
+ * range of the parameter.
+ * 
+ * Received values are held per parameter, and only the latest value is applied at
+ * each update interval. Setting a parameter of the temporary patch sends it to the GAIA.
+ */
+public class OSCBridge {
+	
+	public static final int DEFAULT_PORT = 8000;
+	public static final int DEFAULT_UPDATE_INTERVAL = 50;
+	public static final String PREFIX = "/gaia/temp/";
+	
+	final static int MAXIMUM_PACKET_SIZE = 0x10000;
+	
+	private Log log;
+	private Patch patch;
+	private Target[] targets;
+	private AddressTable addresses;
+	private OSCParser parser = new OSCParser();
+	private int updateInterval = DEFAULT_UPDATE_INTERVAL;
+	
+	private DatagramChannel channel;
+	private Thread receiver;
+	private ScheduledExecutorService scheduler;
+	
+	private Object flushLock = new Object();
+	private int[] pending;
+	private int pendingCount = 0;
+	private int[] applying;
+	private int[] intValues;
+	private float[] floatValues;
+	private boolean[] isFloat;
+	private boolean[] isPending;
+	
+	private volatile long receivedCount = 0;
+	private volatile long unmatchedCount = 0;
+	private volatile long malformedCount = 0;
+	private volatile long coalescedCount = 0;
+	private volatile long appliedCount = 0;
+	
+	/**
+	 * Constructs a new bridge.
+	 * @param log The log.
+	 * @param patch The patch whose parameters are set, typically the temporary patch.
+	 */
+	public OSCBridge(Log log, Patch patch) {
+		this.log = log;
+		this.patch = patch;
+		
+		List<Target> targets = new ArrayList<Target>();
+		addTargets(targets, new Section("common", PatchCommon.class) {
+			Parameters get(Patch patch) {
+				return patch.getCommon();
+			}
+		});
+		for (int i = 1; i <= 3; i++) {
+			final int number = i;
+			addTargets(targets, new Section("tone/" + number, Tone.class) {
+				Parameters get(Patch patch) {
+					return patch.getTone(number);
+				}
+			});
+		}
+		addTargets(targets, new Section("distortion", Distortion.class) {
+			Parameters get(Patch patch) {
+				return patch.getDistortion();
+			}
+		});
+		addTargets(targets, new Section("flanger", Flanger.class) {
+			Parameters get(Patch patch) {
+				return patch.getFlanger();
+			}
+		});
+		addTargets(targets, new Section("delay", Delay.class) {
+			Parameters get(Patch patch) {
+				return patch.getDelay();
+			}
+		});
+		addTargets(targets, new Section("reverb", Reverb.class) {
+			Parameters get(Patch patch) {
+				return patch.getReverb();
+			}
+		});
+		this.targets = targets.toArray(new Target[targets.size()]);
+		
+		addresses = new AddressTable(this.targets.length);
+		for (int i = 0; i < this.targets.length; i++)
+			addresses.put(this.targets[i].address, i);
+		
+		pending = new int[this.targets.length];
+		applying = new int[this.targets.length];
+		intValues = new int[this.targets.length];
+		floatValues = new float[this.targets.length];
+		isFloat = new boolean[this.targets.length];
+		isPending = new boolean[this.targets.length];
+	}
+	
+	private static void addTargets(List<Target> targets, Section section) {
+		List<Method> getters = new ArrayList<Method>();
+		for (Method method : section.type.getMethods()) {
+			if (method.getName().startsWith("get") && !method.getName().startsWith("getReserved") &&
+					method.getParameterTypes().length == 0 && IntValue.class.isAssignableFrom(method.getReturnType()))
+				getters.add(method);
+		}
+		Collections.sort(getters, new Comparator<Method>() {
+			public int compare(Method a, Method b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		for (Method getter : getters)
+			targets.add(new Target(PREFIX + section.path + "/" + toPath(getter.getName().substring(3)), section, getter));
+	}
+	
+	/**
+	 * Converts a camel case name to a path, e.g. LFOPitchDepth to lfo/pitch/depth.
+	 */
+	static String toPath(String name) {
+		return name.replaceAll("(?<=[a-z0-9])(?=[A-Z])|(?<=[A-Z])(?=[A-Z][a-z])", "/").toLowerCase();
+	}
+	
+	/**
+	 * Returns the addresses of all parameters that can be set.
+	 * @return The addresses.
+	 */
+	public List<String> getAddresses() {
+		List<String> list = new ArrayList<String>();
+		for (Target target : targets)
+			list.add(target.address);
+		return list;
+	}
+	
+	/**
+	 * Sets the interval at which received values are applied. Takes effect when the bridge is started.
+	 * @param interval The interval in milliseconds.
+	 */
+	public void setUpdateInterval(int interval) {
+		if (interval <= 0)
+			throw new IllegalArgumentException("Interval must be positive.");
+		updateInterval = interval;
+	}
+	
+	public int getUpdateInterval() {
+		return updateInterval;
+	}
+	
+	/**
+	 * Starts receiving messages.
+	 * @param address The address to listen on.
+	 */
+	public void start(InetSocketAddress address) throws IOException {
+		if (channel != null)
+			throw new RuntimeException("OSC bridge is already started.");
+		
+		channel = DatagramChannel.open();
+		channel.bind(address);
+		receiver = new Thread(new Receiver(), "OSC receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "OSC updater");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, updateInterval, updateInterval, TimeUnit.MILLISECONDS);
+		log.log("OSC bridge listening on " + channel.getLocalAddress());
+	}
+	
+	/**
+	 * Stops receiving messages. Values that were not applied yet are dropped.
+	 */
+	public void stop() {
+		if (channel == null)
+			throw new RuntimeException("OSC bridge is already stopped.");
+		
+		scheduler.shutdownNow();
+		try {
+			channel.close();
+			receiver.join();
+		} catch (IOException e) {
+			log.log("Closing OSC bridge failed: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel = null;
+		receiver = null;
+		scheduler = null;
+		synchronized (this) {
+			Arrays.fill(isPending, false);
+			pendingCount = 0;
+		}
+	}
+	
+	/**
+	 * Returns the port the bridge listens on.
+	 * @return The local port, or -1 if the bridge is not started.
+	 */
+	public int getPort() {
+		return channel != null ? channel.socket().getLocalPort() : -1;
+	}
+	
+	/**
+	 * Applies the latest received value of each parameter.
+	 * Called at the update interval, on the updater thread.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			apply();
+		}
+	}
+	
+	private void apply() {
+		int count;
+		synchronized (this) {
+			count = pendingCount;
+			System.arraycopy(pending, 0, applying, 0, count);
+			pendingCount = 0;
+		}
+		for (int i = 0; i < count; i++) {
+			int index = applying[i];
+			boolean floating;
+			int intValue;
+			float floatValue;
+			synchronized (this) {
+				floating = isFloat[index];
+				intValue = intValues[index];
+				floatValue = floatValues[index];
+				isPending[index] = false;
+			}
+			try {
+				if (targets[index].apply(patch, floating, intValue, floatValue))
+					appliedCount++;
+			} catch (RuntimeException e) {
+				log.log("OSC update failed: " + e.getMessage());
+			}
+		}
+	}
+	
+	private void receive(byte[] data, int offset, int length, boolean floating, int intValue, float floatValue) {
+		receivedCount++;
+		int index = addresses.get(data, offset, length);
+		if (index < 0) {
+			unmatchedCount++;
+			return;
+		}
+		synchronized (this) {
+			if (isPending[index]) {
+				coalescedCount++;
+			} else {
+				isPending[index] = true;
+				pending[pendingCount++] = index;
+			}
+			isFloat[index] = floating;
+			intValues[index] = intValue;
+			floatValues[index] = floatValue;
+		}
+	}
+	
+	/**
+	 * Returns the number of messages received.
+	 * @return The received message count.
+	 */
+	public long getReceivedCount() {
+		return receivedCount;
+	}
+	
+	/**
+	 * Returns the number of messages whose address did not match a parameter.
+	 * @return The unmatched message count.
+	 */
+	public long getUnmatchedCount() {
+		return unmatchedCount;
+	}
+	
+	/**
+	 * Returns the number of packets that could not be parsed.
+	 * @return The malformed packet count.
+	 */
+	public long getMalformedCount() {
+		return malformedCount;
+	}
+	
+	/**
+	 * Returns the number of values that were superseded by a later value before they were applied.
+	 * @return The coalesced value count.
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount;
+	}
+	
+	/**
+	 * Returns the number of values that were applied to the patch.
+	 * Values for parameters that are not loaded or that are unchanged are not counted.
+	 * @return The applied value count.
+	 */
+	public long getAppliedCount() {
+		return appliedCount;
+	}
+	
+	/**
+	 * Receives packets and passes them to the parser, reusing the packet buffer.
+	 */
+	private class Receiver implements Runnable, OSCParser.Handler {
+		
+		private ByteBuffer buffer = ByteBuffer.allocate(MAXIMUM_PACKET_SIZE);
+		
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					((Buffer) buffer).clear();
+					channel.receive(buffer);
+					if (!parser.parse(buffer.array(), 0, buffer.position(), this))
+						malformedCount++;
+				}
+			} catch (ClosedChannelException e) {
+				// stopped
+			} catch (IOException e) {
+				log.log("OSC bridge failed: " + e.getMessage());
+			}
+		}
+		
+		@Override
+		public void handle(byte[] data, int addressOffset, int addressLength, boolean isFloat, int intValue, float floatValue) {
+			receive(data, addressOffset, addressLength, isFloat, intValue, floatValue);
+		}
+		
+	}
+	
+	private static abstract class Section {
+		
+		private String path;
+		private Class<? extends Parameters> type;
+		
+		public Section(String path, Class<? extends Parameters> type) {
+			this.path = path;
+			this.type = type;
+		}
+		
+		abstract Parameters get(Patch patch);
+		
+	}
+	
+	/**
+	 * A parameter that an address maps to. The value object is cached for as long as the
+	 * patch holds the same parameters object. Only used by the updater thread.
+	 */
+	private static class Target {
+		
+		private String address;
+		private Section section;
+		private Method getter;
+		private Parameters parameters;
+		private IntValue value;
+		
+		public Target(String address, Section section, Method getter) {
+			this.address = address;
+			this.section = section;
+			this.getter = getter;
+		}
+		
+		/**
+		 * Sets the parameter value.
+		 * @return True if the value was changed.
+		 */
+		public boolean apply(Patch patch, boolean isFloat, int intValue, float floatValue) {
+			Parameters current = section.get(patch);
+			if (current == null)
+				return false;
+			if (current != parameters) {
+				try {
+					value = (IntValue) getter.invoke(current);
+				} catch (IllegalAccessException e) {
+					throw new RuntimeException(e);
+				} catch (InvocationTargetException e) {
+					throw new RuntimeException(e.getCause());
+				}
+				parameters = current;
+			}
+			
+			int minimum = value.getMinimum();
+			int maximum = value.getMaximum();
+			int newValue = isFloat ? minimum + Math.round(floatValue * (maximum - minimum)) : intValue;
+			newValue = Math.max(minimum, Math.min(maximum, newValue));
+			if (newValue == value.getValue())
+				return false;
+			value.setValue(newValue);
+			return true;
+		}
+		
+	}
+	
+	/**
+	 * Open addressing hash table from address bytes to target index, so that incoming
+	 * addresses can be looked up without creating strings.
+	 */
+	private static class AddressTable {
+		
+		private byte[][] keys;
+		private int[] values;
+		private int mask;
+		
+		public AddressTable(int size) {
+			int capacity = Integer.highestOneBit(Math.max(size, 1) * 4 - 1) << 1;
+			keys = new byte[capacity][];
+			values = new int[capacity];
+			mask = capacity - 1;
+		}
+		
+		public void put(String address, int value) {
+			byte[] key = address.getBytes(StandardCharsets.US_ASCII);
+			int slot = hash(key, 0, key.length) & mask;
+			while (keys[slot] != null)
+				slot = slot + 1 & mask;
+			keys[slot] = key;
+			values[slot] = value;
+		}
+		
+		public int get(byte[] data, int offset, int length) {
+			int slot = hash(data, offset, length) & mask;
+			while (keys[slot] != null) {
+				if (equals(keys[slot], data, offset, length))
+					return values[slot];
+				slot = slot + 1 & mask;
+			}
+			return -1;
+		}
+		
+		private static boolean equals(byte[] key, byte[] data, int offset, int length) {
+			if (key.length != length)
+				return false;
+			for (int i = 0; i < length; i++) {
+				if (key[i] != data[offset + i])
+					return false;
+			}
+			return true;
+		}
+		
+		private static int hash(byte[] data, int offset, int length) {
+			int hash = 0x811C9DC5;
+			for (int i = offset, end = offset + length; i < end; i++)
+				hash = (hash ^ data[i] & 0xFF) * 0x01000193;
+			return hash ^ hash >>> 16;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.osc;
+
+/**
+ * Parses Open Sound Control 1.0 packets in place.
+ * 
+ * The parser does not allocate; the handler is passed the position of the address
+ * pattern in the packet, and the first argument of the message. Supported argument
+ * types are int32 (i), float32 (f), int64 (h), double (d), true (T) and false (F).
+ * Messages without arguments or with another type of first argument are ignored.
+ * Bundles are parsed recursively, their time tags are ignored.
+ */
+public class OSCParser {
+	
+	final static int MAXIMUM_BUNDLE_DEPTH = 8;
+	final static byte[] BUNDLE = { '#', 'b', 'u', 'n', 'd', 'l', 'e', 0 };
+	
+	public interface Handler {
+		
+		/**
+		 * Handles a message. The data array is reused after this method returns.
+		 * @param data The array holding the packet.
+		 * @param addressOffset The start position of the address pattern.
+		 * @param addressLength The length of the address pattern.
+		 * @param isFloat True if the argument is a floating point number.
+		 * @param intValue The argument value if it is an integer.
+		 * @param floatValue The argument value if it is a floating point number.
+		 */
+		public void handle(byte[] data, int addressOffset, int addressLength, boolean isFloat, int intValue, float floatValue);
+		
+	}
+	
+	/**
+	 * Parses a packet.
+	 * @param data The array holding the packet.
+	 * @param offset The start position of the packet.
+	 * @param length The length of the packet.
+	 * @param handler The handler to pass the messages to.
+	 * @return False if the packet is malformed. Messages before the malformed part are handled.
+	 */
+	public boolean parse(byte[] data, int offset, int length, Handler handler) {
+		return parse(data, offset, offset + length, handler, 0);
+	}
+	
+	private boolean parse(byte[] data, int start, int end, Handler handler, int depth) {
+		if (!isBundle(data, start, end))
+			return parseMessage(data, start, end, handler);
+		
+		if (depth >= MAXIMUM_BUNDLE_DEPTH)
+			return false;
+		int position = start + 16;
+		while (position < end) {
+			if (end - position < 4)
+				return false;
+			int size = readInt(data, position);
+			position += 4;
+			if (size < 0 || (size & 3) != 0 || size > end - position)
+				return false;
+			if (!parse(data, position, position + size, handler, depth + 1))
+				return false;
+			position += size;
+		}
+		return true;
+	}
+	
+	private boolean parseMessage(byte[] data, int start, int end, Handler handler) {
+		if (start >= end || data[start] != '/')
+			return false;
+		int addressEnd = indexOfNull(data, start, end);
+		if (addressEnd < 0)
+			return false;
+		
+		int tags = start + pad(addressEnd + 1 - start);
+		if (tags >= end || data[tags] != ',')
+			return false;
+		int tagsEnd = indexOfNull(data, tags, end);
+		if (tagsEnd < 0)
+			return false;
+		
+		int argument = start + pad(tagsEnd + 1 - start);
+		int addressLength = addressEnd - start;
+		switch (tags + 1 < tagsEnd ? data[tags + 1] : 0) {
+		case 'i':
+			if (end - argument < 4)
+				return false;
+			handler.handle(data, start, addressLength, false, readInt(data, argument), 0);
+			break;
+		case 'f':
+			if (end - argument < 4)
+				return false;
+			handler.handle(data, start, addressLength, true, 0, Float.intBitsToFloat(readInt(data, argument)));
+			break;
+		case 'h':
+			if (end - argument < 8)
+				return false;
+			long value = readLong(data, argument);
+			handler.handle(data, start, addressLength, false, (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value)), 0);
+			break;
+		case 'd':
+			if (end - argument < 8)
+				return false;
+			handler.handle(data, start, addressLength, true, 0, (float) Double.longBitsToDouble(readLong(data, argument)));
+			break;
+		case 'T':
+			handler.handle(data, start, addressLength, false, 1, 0);
+			break;
+		case 'F':
+			handler.handle(data, start, addressLength, false, 0, 0);
+			break;
+		}
+		return true;
+	}
+	
+	private static boolean isBundle(byte[] data, int start, int end) {
+		if (end - start < 16)
+			return false;
+		for (int i = 0; i < BUNDLE.length; i++) {
+			if (data[start + i] != BUNDLE[i])
+				return false;
+		}
+		return true;
+	}
+	
+	private static int indexOfNull(byte[] data, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (data[i] == 0)
+				return i;
+		}
+		return -1;
+	}
+	
+	private static int pad(int length) {
+		return length + 3 & ~3;
+	}
+	
+	private static int readInt(byte[] data, int position) {
+		return (data[position] & 0xFF) << 24 | (data[position + 1] & 0xFF) << 16 |
+				(data[position + 2] & 0xFF) << 8 | data[position + 3] & 0xFF;
+	}
+	
+	private static long readLong(byte[] data, int position) {
+		return (long) readInt(data, position) << 32 | readInt(data, position + 4) & 0xFFFFFFFFL;
+	}
+	
+}
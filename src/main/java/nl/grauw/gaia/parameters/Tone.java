@@ -15,11 +15,14 @@
  */
 package nl.grauw.gaia.parameters;
 
+import java.util.Arrays;
+
 import nl.grauw.gaia.Address;
 import nl.grauw.gaia.IntValue;
 import nl.grauw.gaia.Parameters;
 import nl.grauw.gaia.SignedIntValue;
 import nl.grauw.gaia.midi.messages.ControlChangeMessage;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage.Controller;
 
 public class Tone extends Parameters {
 	
@@ -85,6 +88,52 @@ public class Tone extends Parameters {
 		 17,  17,  17,  17,  18,  18,  18,  18,  18,  18,  19,  19,  19,  19,  19,  19
 	};
 	
+	// controllers of tone 1 per parameter offset, the controllers of tones 2 and 3 follow them
+	private final static Controller[] parameterControllers = new Controller[0x25];
+	
+	// inverse mappings from parameter values to control change message values, -1 if unreachable
+	private final static int[][] parameterControlValues = new int[0x25][];
+	
+	static {
+		int[] linear = new int[128];
+		int[] depth = new int[128];
+		int[] keyFollow = new int[128];
+		for (int value = 0; value < 128; value++) {
+			linear[value] = value;
+			depth[value] = Math.max(value, 1);
+			keyFollow[value] = (int) (value / 6.1) + 54;
+		}
+		addControlMapping(0x03, Controller.TONE_1_OSC_PITCH, oscPitchControlMapping);
+		addControlMapping(0x04, Controller.TONE_1_OSC_DETUNE, oscDetuneControlMapping);
+		addControlMapping(0x05, Controller.TONE_1_OSC_PULSE_WIDTH_MODULATION, linear);
+		addControlMapping(0x06, Controller.TONE_1_OSC_PULSE_WIDTH, linear);
+		addControlMapping(0x09, Controller.TONE_1_OSC_ENV_DEPTH, depth);
+		addControlMapping(0x0C, Controller.TONE_1_FILTER_CUTOFF, linear);
+		addControlMapping(0x0D, Controller.TONE_1_FILTER_KEY_FOLLOW, keyFollow);
+		addControlMapping(0x0F, Controller.TONE_1_FILTER_RESONANCE, linear);
+		addControlMapping(0x14, Controller.TONE_1_FILTER_ENV_DEPTH, depth);
+		addControlMapping(0x15, Controller.TONE_1_AMP_LEVEL, linear);
+		addControlMapping(0x1D, Controller.TONE_1_LFO_RATE, linear);
+		addControlMapping(0x1F, Controller.TONE_1_LFO_RATE, lfoTempoSyncNoteControlMapping);
+		addControlMapping(0x20, Controller.TONE_1_LFO_FADE_TIME, linear);
+		addControlMapping(0x22, Controller.TONE_1_LFO_PITCH_DEPTH, depth);
+		addControlMapping(0x23, Controller.TONE_1_LFO_FILTER_DEPTH, depth);
+		addControlMapping(0x24, Controller.TONE_1_LFO_AMP_DEPTH, depth);
+	}
+	
+	/**
+	 * Registers the controller of a parameter, and inverts the mapping that
+	 * updateParameters(ControlChangeMessage) applies to its values.
+	 */
+	private static void addControlMapping(int offset, Controller controller, int[] mapping) {
+		int[] inverse = new int[128];
+		Arrays.fill(inverse, -1);
+		for (int value = 0; value < mapping.length; value++)
+			inverse[mapping[value]] = value;
+		parameterControllers[offset] = controller;
+		parameterControlValues[offset] = inverse;
+	}
+	
 	public Tone(Address address, byte[] data) {
 		super(address, data);
 		
@@ -189,6 +238,26 @@ public class Tone extends Parameters {
 		}
 	}
 	
+	/**
+	 * Returns a control change message that sets a parameter to its current value.
+	 * This is the inverse of updateParameters(ControlChangeMessage).
+	 * @param channel The MIDI channel of the synthesizer.
+	 * @param offset The offset of the parameter.
+	 * @return The control change message, or null if the parameter has no controller
+	 *         or no controller value maps to its exact current value.
+	 */
+	public ControlChangeMessage getControlChange(int channel, int offset) {
+		if (offset < 0 || offset >= parameterControllers.length || parameterControllers[offset] == null)
+			return null;
+		// the rate controller sets either the rate or the tempo synced note
+		if ((offset == 0x1D || offset == 0x1F) && (offset == 0x1F) != getLFOTempoSyncSwitch())
+			return null;
+		int value = parameterControlValues[offset][getValue(offset)];
+		if (value == -1)
+			return null;
+		return new ControlChangeMessage(channel, parameterControllers[offset].getCode() + getToneNumber() - 1, value);
+	}
+	
 	public OSCWave getOSCWave() {
 		return OSCWave.values()[getValue(0x00)];
 	}
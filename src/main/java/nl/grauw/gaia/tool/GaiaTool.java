@@ -29,7 +29,6 @@ import nl.grauw.gaia.Gaia;
 import nl.grauw.gaia.GaiaPatch;
 import nl.grauw.gaia.Library;
 import nl.grauw.gaia.Log;
-import nl.grauw.gaia.Parameters;
 import nl.grauw.gaia.Patch;
 import nl.grauw.gaia.PatchDataRequester;
 import nl.grauw.gaia.PatchLoader;
@@ -37,6 +36,9 @@ import nl.grauw.gaia.PatchSaver;
 import nl.grauw.gaia.PatchDataRequester.PatchCompleteListener;
 import nl.grauw.gaia.midi.JavaMidiConnection;
 import nl.grauw.gaia.midi.JavaMidiConnection.GaiaNotFoundException;
+import nl.grauw.gaia.midi.MidiDeviceInventory;
+import nl.grauw.gaia.tool.mvc.Observable;
+import nl.grauw.gaia.tool.mvc.Observer;
 
 public class GaiaTool {
 	
@@ -47,6 +49,7 @@ public class GaiaTool {
 	
 	private Properties settings = new Properties();
 	private File currentDirectory = null;
+	private boolean reconnect = false;
 	
 	public final static boolean DEBUG = false;
 	
@@ -57,6 +60,16 @@ public class GaiaTool {
 		library = new Library(getLibraryPath());
 		
 		loadSettings();
+		loadPendingWrites();
+		
+		midiConnection.getInventory().addObserver(new Observer() {
+			@Override
+			public void update(Observable source, Object detail) {
+				if ("devices".equals(detail))
+					onDevicesChanged();
+			}
+		});
+		midiConnection.getInventory().start(MidiDeviceInventory.DEFAULT_REFRESH_INTERVAL);
 	}
 	
 	public JavaMidiConnection getMidiConnection() {
@@ -75,19 +88,44 @@ public class GaiaTool {
 		return library;
 	}
 	
-	public void openGaia() throws MidiUnavailableException, GaiaNotFoundException {
+	public synchronized void openGaia() throws MidiUnavailableException, GaiaNotFoundException {
 		midiConnection.open();
 		gaia.open();
+		reconnect = true;
 	}
 	
-	public void closeGaia() {
+	public synchronized void closeGaia() {
 		if (gaia.isOpened())
 			gaia.close();
 		if (midiConnection.isOpened())
 			midiConnection.close();
 	}
 	
+	/**
+	 * Closes the connection when the GAIA is unplugged, and opens it again
+	 * when it is plugged back in.
+	 */
+	private synchronized void onDevicesChanged() {
+		if (midiConnection.isOpened()) {
+			if (!midiConnection.isDevicePresent()) {
+				log.log("GAIA disconnected.");
+				closeGaia();
+			}
+		} else if (reconnect && midiConnection.isDevicePresent()) {
+			log.log("GAIA connected, reopening.");
+			try {
+				openGaia();
+			} catch (GaiaNotFoundException e) {
+				closeGaia();
+			} catch (MidiUnavailableException e) {
+				log.log("Reopening failed: " + e.getMessage());
+				closeGaia();
+			}
+		}
+	}
+	
 	public void exit() {
+		midiConnection.getInventory().stop();
 		closeGaia();
 		saveSettings();
 		java.lang.System.exit(0);
@@ -106,6 +144,18 @@ public class GaiaTool {
 		}
 	}
 	
+	/**
+	 * Keeps parameter writes that were not sent to the GAIA in a file,
+	 * so that they are sent when the GAIA is opened again, also after a restart.
+	 */
+	private void loadPendingWrites() {
+		try {
+			gaia.getPendingWrites().setFile(new File(getAndCreateSettingsPath(), "pending.syx"));
+		} catch (IOException e) {
+			log.log("Loading pending writes failed: " + e.getMessage());
+		}
+	}
+	
 	private void saveSettings() {
 		try {
 			FileWriter fw = new FileWriter(new File(getAndCreateSettingsPath(), "settings.properties"));
@@ -167,9 +217,7 @@ public class GaiaTool {
 	 */
 	public void loadGaiaPatch(File patchFile, GaiaPatch patch) {
 		loadPatch(patchFile, patch);
-		for (Parameters p : patch) {
-			gaia.sendDataTransmission(p);
-		}
+		gaia.sendDataTransmission(patch);
 		log.log("Loading complete.");
 	}
 	
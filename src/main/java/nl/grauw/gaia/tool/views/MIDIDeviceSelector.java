@@ -20,13 +20,11 @@ import java.util.ArrayList;
 import java.util.List;
 
 import javax.sound.midi.MidiDevice;
-import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
-import javax.sound.midi.Sequencer;
-import javax.sound.midi.Synthesizer;
 import javax.swing.JOptionPane;
 
 import nl.grauw.gaia.midi.JavaMidiConnection.GaiaNotFoundException;
+import nl.grauw.gaia.midi.MidiDeviceInventory;
 import nl.grauw.gaia.tool.GaiaTool;
 
 public class MIDIDeviceSelector {
@@ -58,14 +56,8 @@ public class MIDIDeviceSelector {
 	private void selectMIDIInputDevice() {
 		List<Object> inputDevices = new ArrayList<Object>();
 		inputDevices.add(AUTODETECT);
-		for (MidiDevice.Info mdi : MidiSystem.getMidiDeviceInfo()) {
-			try {
-				MidiDevice md = MidiSystem.getMidiDevice(mdi);
-				if (md.getMaxTransmitters() != 0 && !(md instanceof Sequencer) && !(md instanceof Synthesizer))
-					inputDevices.add(mdi);
-			} catch (MidiUnavailableException e) {
-			}
-		}
+		for (MidiDeviceInventory.Entry entry : gaiaTool.getMidiConnection().getInventory().getInputs())
+			inputDevices.add(entry.getInfo());
 		
 		MidiDevice currentDevice = gaiaTool.getMidiConnection().getMidiInput();
 		
@@ -83,14 +75,8 @@ public class MIDIDeviceSelector {
 	private void selectMIDIOutputDevice() {
 		List<Object> outputDevices = new ArrayList<Object>();
 		outputDevices.add(AUTODETECT);
-		for (MidiDevice.Info mdi : MidiSystem.getMidiDeviceInfo()) {
-			try {
-				MidiDevice md = MidiSystem.getMidiDevice(mdi);
-				if (md.getMaxReceivers() != 0 && !(md instanceof Sequencer) && !(md instanceof Synthesizer))
-					outputDevices.add(mdi);
-			} catch (MidiUnavailableException e) {
-			}
-		}
+		for (MidiDeviceInventory.Entry entry : gaiaTool.getMidiConnection().getInventory().getOutputs())
+			outputDevices.add(entry.getInfo());
 		
 		MidiDevice currentDevice = gaiaTool.getMidiConnection().getMidiOutput();
 		
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class DataRequestTrackerTest {
+	
+	@Test
+	public void testReceive() throws Exception {
+		DataRequestTracker tracker = new DataRequestTracker();
+		CompletableFuture<byte[]> future = tracker.track(new Address(0x10, 0x00, 0x00, 0x00), 4);
+		tracker.receive(new Address(0x10, 0x00, 0x00, 0x00), new byte[] { 1, 2, 3, 4 });
+		assertTrue(future.isDone());
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, future.get());
+		assertEquals(0, tracker.getPendingCount());
+	}
+	
+	@Test
+	public void testReceive_Partial() throws Exception {
+		DataRequestTracker tracker = new DataRequestTracker();
+		CompletableFuture<byte[]> future = tracker.track(new Address(0x10, 0x00, 0x00, 0x7E), 4);
+		tracker.receive(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 3, 4, 5 });
+		assertFalse(future.isDone());
+		tracker.receive(new Address(0x10, 0x00, 0x00, 0x7C), new byte[] { 0, 0, 1, 2 });
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, future.get());
+	}
+	
+	@Test
+	public void testReceive_Unrelated() {
+		DataRequestTracker tracker = new DataRequestTracker();
+		CompletableFuture<byte[]> future = tracker.track(new Address(0x10, 0x00, 0x00, 0x00), 4);
+		tracker.receive(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 1, 2, 3, 4 });
+		tracker.receive(new Address(0x20, 0x00, 0x00, 0x00), new byte[] { 1, 2, 3, 4 });
+		assertFalse(future.isDone());
+		assertEquals(1, tracker.getPendingCount());
+	}
+	
+	@Test
+	public void testTimeout() throws Exception {
+		DataRequestTracker tracker = new DataRequestTracker();
+		tracker.setTimeout(10);
+		CompletableFuture<byte[]> future = tracker.track(new Address(0x10, 0x00, 0x00, 0x00), 4);
+		try {
+			future.get(1, TimeUnit.SECONDS);
+			fail("Expected exception.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		assertEquals(0, tracker.getPendingCount());
+	}
+	
+	@Test
+	public void testTimeout_FromSend() throws Exception {
+		DataRequestTracker tracker = new DataRequestTracker();
+		tracker.setTimeout(10);
+		tracker.setTimeoutFromSend(true);
+		final Address address = new Address(0x10, 0x00, 0x00, 0x00);
+		final int[] sent = { 0 };
+		CompletableFuture<byte[]> future = tracker.track(address, 4, new Runnable() {
+			public void run() {
+				sent[0]++;
+			}
+		});
+		Thread.sleep(50);
+		assertFalse(future.isDone());
+		tracker.requestSent(new Address(0x10, 0x00, 0x00, 0x00), 2);
+		Thread.sleep(50);
+		assertFalse(future.isDone());
+		tracker.requestSent(new Address(0x10, 0x00, 0x00, 0x00), 4);
+		for (int i = 0; i < 100 && sent[0] == 0; i++)
+			Thread.sleep(10);
+		assertEquals(1, sent[0]);
+		Thread.sleep(50);
+		assertFalse(future.isDone());
+		tracker.requestSent(address, 4);
+		tracker.receive(address, new byte[] { 1, 2, 3, 4 });
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, future.get(1, TimeUnit.SECONDS));
+		assertEquals(1, tracker.getRetryCount());
+	}
+	
+	@Test
+	public void testRetry() throws Exception {
+		final DataRequestTracker tracker = new DataRequestTracker();
+		tracker.setTimeout(10);
+		final Address address = new Address(0x10, 0x00, 0x00, 0x00);
+		CompletableFuture<byte[]> future = tracker.track(address, 4, new Runnable() {
+			public void run() {
+				tracker.receive(address, new byte[] { 1, 2, 3, 4 });
+			}
+		});
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, future.get(1, TimeUnit.SECONDS));
+		assertEquals(1, tracker.getRetryCount());
+		assertEquals(0, tracker.getPendingCount());
+	}
+	
+	@Test
+	public void testRetry_Exhausted() throws Exception {
+		DataRequestTracker tracker = new DataRequestTracker();
+		tracker.setTimeout(10);
+		tracker.setMaximumRetries(2);
+		final int[] sent = { 0 };
+		CompletableFuture<byte[]> future = tracker.track(new Address(0x10, 0x00, 0x00, 0x00), 4, new Runnable() {
+			public void run() {
+				sent[0]++;
+			}
+		});
+		try {
+			future.get(1, TimeUnit.SECONDS);
+			fail("Expected exception.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		assertEquals(2, sent[0]);
+		assertEquals(2, tracker.getRetryCount());
+		assertEquals(0, tracker.getPendingCount());
+	}
+	
+	@Test
+	public void testReceive_Duplicate() {
+		DataRequestTracker tracker = new DataRequestTracker();
+		tracker.track(new Address(0x10, 0x00, 0x00, 0x00), 4);
+		assertTrue(tracker.receive(new Address(0x10, 0x00, 0x00, 0x00), new byte[] { 1, 2, 3, 4 }));
+		assertFalse(tracker.receive(new Address(0x10, 0x00, 0x00, 0x00), new byte[] { 1, 2, 3, 4 }));
+		assertEquals(1, tracker.getUnmatchedCount());
+	}
+	
+	@Test
+	public void testCancelAll() {
+		DataRequestTracker tracker = new DataRequestTracker();
+		CompletableFuture<byte[]> future = tracker.track(new Address(0x10, 0x00, 0x00, 0x00), 4);
+		tracker.cancelAll();
+		assertTrue(future.isCancelled());
+		assertEquals(0, tracker.getPendingCount());
+	}
+	
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Transmitter;
+
+import nl.grauw.gaia.GaiaSessionManager.Session;
+import nl.grauw.gaia.midi.MidiConnection;
+import nl.grauw.gaia.midi.MidiDeviceInventory;
+import nl.grauw.gaia.midi.MidiDeviceInventory.Entry;
+import nl.grauw.gaia.midi.MidiReceiver;
+import nl.grauw.gaia.midi.MidiTransmitter;
+import nl.grauw.gaia.midi.messages.DataRequest1;
+import nl.grauw.gaia.midi.messages.IdentityReply;
+import nl.grauw.gaia.midi.messages.Message;
+
+import org.junit.Test;
+
+public class GaiaSessionManagerTest {
+	
+	@Test
+	public void testSessions() throws Exception {
+		GaiaSessionManager manager = new GaiaSessionManager(new Log(), new MidiDeviceInventory());
+		TestConnection connection1 = new TestConnection();
+		TestConnection connection2 = new TestConnection();
+		Session session1 = manager.addSession(connection1);
+		Session session2 = manager.addSession(connection2);
+		session1.getGaia().receive(createIdentityReply(0x10));
+		session2.getGaia().receive(createIdentityReply(0x11));
+		session2.getGaia().receive(createIdentityReply(0x12));
+		
+		assertSame(session1, manager.getSession(0x10));
+		assertSame(session2, manager.getSession(0x11));
+		assertNull(manager.getSession(0x12));
+		
+		session2.getGaia().sendDataRequest(new Address(0x10, 0x00, 0x00, 0x00), 0x10);
+		session2.getGaia().getTransmitter().flush();
+		List<Message> sent = connection2.messages;
+		DataRequest1 request = (DataRequest1) sent.get(sent.size() - 1);
+		assertEquals(0x11, request.getMessage()[2]);
+		
+		List<Integer> ids = manager.runAll(new Function<Gaia, CompletableFuture<Integer>>() {
+			public CompletableFuture<Integer> apply(Gaia gaia) {
+				return CompletableFuture.completedFuture(gaia.getDeviceID());
+			}
+		}).get();
+		assertEquals(Arrays.asList(0x10, 0x11), ids);
+		
+		manager.closeAll();
+		assertEquals(0, manager.getSessions().size());
+		assertFalse(session1.getGaia().isOpened());
+		assertTrue(connection1.receivers.isEmpty());
+		assertTrue(connection2.receivers.isEmpty());
+	}
+	
+	@Test
+	public void testDiscover_OpenSessions() throws Exception {
+		TestDevice inputA = new TestDevice("GAIA A", true, 0x10, null);
+		TestDevice outputA = new TestDevice("GAIA A", false, 0x10, inputA);
+		TestDevice inputB = new TestDevice("GAIA B", true, 0x11, null);
+		TestDevice outputB = new TestDevice("GAIA B", false, 0x11, inputB);
+		final List<Entry> entries = new CopyOnWriteArrayList<Entry>();
+		entries.add(new Entry(inputA.getDeviceInfo(), inputA));
+		entries.add(new Entry(outputA.getDeviceInfo(), outputA));
+		GaiaSessionManager manager = new GaiaSessionManager(new Log(), new MidiDeviceInventory() {
+			@Override
+			public List<Entry> getEntries() {
+				return entries;
+			}
+		});
+		
+		assertEquals(1, manager.discover().size());
+		entries.add(new Entry(inputB.getDeviceInfo(), inputB));
+		entries.add(new Entry(outputB.getDeviceInfo(), outputB));
+		assertEquals(1, manager.discover().size());
+		
+		assertEquals(2, manager.getSessions().size());
+		assertTrue(inputA.isOpen());
+		assertTrue(outputA.isOpen());
+		assertTrue(inputB.isOpen());
+		assertTrue(outputB.isOpen());
+		
+		manager.closeAll();
+		assertFalse(inputA.isOpen());
+		assertFalse(outputB.isOpen());
+	}
+	
+	private static IdentityReply createIdentityReply(int deviceId) {
+		return new IdentityReply(new byte[] { (byte)0xF0, 0x7E, (byte)deviceId, 0x06, 0x02, 0x41, 0x41, 0x02, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, (byte)0xF7 });
+	}
+	
+	private static class TestConnection implements MidiConnection {
+		
+		private List<Message> messages = new ArrayList<Message>();
+		private List<MidiReceiver> receivers = new ArrayList<MidiReceiver>();
+		private MidiTransmitter transmitter = new MidiTransmitter() {
+			@Override
+			public synchronized void send(Message message) {
+				messages.add(message);
+			}
+			
+			@Override
+			public synchronized void send(List<Message> messages) {
+				TestConnection.this.messages.addAll(messages);
+			}
+		};
+		
+		@Override
+		public void addMidiReceiver(MidiReceiver receiver) {
+			receivers.add(receiver);
+		}
+		
+		@Override
+		public void removeMidiReceiver(MidiReceiver receiver) {
+			receivers.remove(receiver);
+		}
+		
+		@Override
+		public MidiTransmitter getMidiTransmitter() {
+			return transmitter;
+		}
+		
+	}
+	
+	/**
+	 * MIDI port of a simulated unit, which answers identity requests on its input.
+	 */
+	private static class TestDevice implements MidiDevice {
+		
+		private Info info;
+		private boolean input;
+		private int deviceId;
+		private TestDevice replyInput;
+		private volatile boolean open = false;
+		private List<Transmitter> transmitters = new CopyOnWriteArrayList<Transmitter>();
+		
+		public TestDevice(String name, boolean input, int deviceId, TestDevice replyInput) {
+			this.info = new Info(name, "Roland", "Test device", "1.0") {};
+			this.input = input;
+			this.deviceId = deviceId;
+			this.replyInput = replyInput;
+		}
+		
+		@Override
+		public Info getDeviceInfo() {
+			return info;
+		}
+		
+		@Override
+		public void open() {
+			open = true;
+		}
+		
+		@Override
+		public void close() {
+			open = false;
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+		
+		@Override
+		public long getMicrosecondPosition() {
+			return -1;
+		}
+		
+		@Override
+		public int getMaxReceivers() {
+			return input ? 0 : -1;
+		}
+		
+		@Override
+		public int getMaxTransmitters() {
+			return input ? -1 : 0;
+		}
+		
+		@Override
+		public Receiver getReceiver() throws MidiUnavailableException {
+			if (input)
+				throw new MidiUnavailableException();
+			return new Receiver() {
+				@Override
+				public void send(MidiMessage message, long timeStamp) {
+					byte[] data = message.getMessage();
+					if (open && data.length == 6 && data[1] == 0x7E && data[3] == 0x06 && data[4] == 0x01)
+						replyInput.reply(createIdentityReply(deviceId));
+				}
+				
+				@Override
+				public void close() {
+				}
+			};
+		}
+		
+		@Override
+		public List<Receiver> getReceivers() {
+			return new ArrayList<Receiver>();
+		}
+		
+		@Override
+		public Transmitter getTransmitter() throws MidiUnavailableException {
+			if (!input)
+				throw new MidiUnavailableException();
+			Transmitter transmitter = new Transmitter() {
+				private Receiver receiver;
+				
+				@Override
+				public void setReceiver(Receiver receiver) {
+					this.receiver = receiver;
+				}
+				
+				@Override
+				public Receiver getReceiver() {
+					return receiver;
+				}
+				
+				@Override
+				public void close() {
+					transmitters.remove(this);
+				}
+			};
+			transmitters.add(transmitter);
+			return transmitter;
+		}
+		
+		@Override
+		public List<Transmitter> getTransmitters() {
+			return transmitters;
+		}
+		
+		private void reply(IdentityReply message) {
+			if (!open)
+				return;
+			try {
+				byte[] data = message.getMessage();
+				for (Transmitter transmitter : transmitters)
+					if (transmitter.getReceiver() != null)
+						transmitter.getReceiver().send(new SysexMessage(data, data.length), -1);
+			} catch (InvalidMidiDataException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+		
+	}
+	
+}
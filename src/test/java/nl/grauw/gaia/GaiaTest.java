@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.grauw.gaia.midi.MidiConnection;
+import nl.grauw.gaia.midi.MidiReceiver;
+import nl.grauw.gaia.midi.MidiTransmitter;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage.Controller;
+import nl.grauw.gaia.midi.messages.DataRequest1;
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.midi.messages.IdentityReply;
+import nl.grauw.gaia.midi.messages.Message;
+import nl.grauw.gaia.parameters.Tone;
+import nl.grauw.gaia.parameters.ToneTest;
+
+import org.junit.Test;
+
+public class GaiaTest {
+	
+	@Test
+	public void testPendingWrites() throws Exception {
+		TestConnection connection = new TestConnection();
+		Gaia gaia = new Gaia(new Log(), connection);
+		gaia.send(new DataSet1(new Address(0x10, 0x00, 0x01, 0x0C), new byte[] { 0x40 }));
+		try {
+			gaia.send(new DataRequest1(new Address(0x10, 0x00, 0x01, 0x00), 0x3E));
+			fail("Expected exception.");
+		} catch (RuntimeException e) {
+		}
+		assertEquals(1, gaia.getPendingWrites().getSize());
+		assertEquals(0, connection.messages.size());
+		
+		gaia.open();
+		gaia.getTransmitter().flush();
+		gaia.close();
+		assertTrue(gaia.getPendingWrites().isEmpty());
+		DataSet1 write = (DataSet1) connection.messages.get(0);
+		assertEquals(new Address(0x10, 0x00, 0x01, 0x0C), write.getAddress());
+		assertArrayEquals(new byte[] { 0x40 }, write.getDataSet());
+	}
+	
+	@Test
+	public void testSendControlChanges() throws Exception {
+		TestConnection connection = new TestConnection();
+		Gaia gaia = new Gaia(new Log(), connection);
+		gaia.setSendControlChanges(true);
+		gaia.open();
+		gaia.updateParameters(new Address(0x10, 0x00, 0x01, 0x00), ToneTest.createTestParameters().getData());
+		gaia.getTransmitter().flush();
+		connection.messages.clear();
+		
+		Tone tone = gaia.getTemporaryPatch().getTone(1);
+		tone.getFilterCutoff().setValue(100);
+		tone.getLFORate().setValue(50);
+		gaia.getDebouncer().flush();
+		gaia.getTransmitter().flush();
+		gaia.close();
+		
+		assertEquals(2, connection.messages.size());
+		ControlChangeMessage controlChange = (ControlChangeMessage) connection.messages.get(0);
+		assertEquals(Controller.TONE_1_FILTER_CUTOFF, controlChange.getController());
+		assertEquals(100, controlChange.getValue());
+		DataSet1 write = (DataSet1) connection.messages.get(1);
+		assertEquals(new Address(0x10, 0x00, 0x01, 0x1D), write.getAddress());
+		assertFalse(tone.hasChanged());
+	}
+	
+	@Test
+	public void testSendControlChanges_Failed() throws Exception {
+		TestConnection connection = new TestConnection();
+		Gaia gaia = new Gaia(new Log(), connection);
+		gaia.setSendControlChanges(true);
+		gaia.open();
+		gaia.updateParameters(new Address(0x10, 0x00, 0x01, 0x00), ToneTest.createTestParameters().getData());
+		gaia.getTransmitter().flush();
+		connection.failing = true;
+		
+		gaia.getTemporaryPatch().getTone(1).getFilterCutoff().setValue(100);
+		gaia.getDebouncer().flush();
+		gaia.getTransmitter().flush();
+		gaia.close();
+		
+		List<DataSet1> writes = gaia.getPendingWrites().drain();
+		assertEquals(1, writes.size());
+		assertEquals(new Address(0x10, 0x00, 0x01, 0x0C), writes.get(0).getAddress());
+		assertArrayEquals(new byte[] { 100 }, writes.get(0).getDataSet());
+	}
+	
+	@Test
+	public void testReceive_OtherDevice() throws Exception {
+		TestConnection connection = new TestConnection();
+		Gaia gaia = new Gaia(new Log(), connection);
+		gaia.open();
+		connection.receive(new IdentityReply(new byte[] { (byte)0xF0, 0x7E, 0x10, 0x06, 0x02, 0x41, 0x41, 0x02, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, (byte)0xF7 }));
+		connection.receive(new DataSet1(0x11, new Address(0x10, 0x00, 0x01, 0x0C), new byte[] { 0x40 }));
+		gaia.getTransmitter().flush();
+		connection.messages.clear();
+		
+		gaia.send(new DataSet1(0x10, new Address(0x10, 0x00, 0x01, 0x0C), new byte[] { 0x40 }));
+		gaia.getDebouncer().flush();
+		gaia.getTransmitter().flush();
+		gaia.close();
+		
+		assertEquals(1, connection.messages.size());
+		assertEquals(0, gaia.getRedundancyFilter().getDroppedCount());
+	}
+	
+	private static class TestConnection implements MidiConnection {
+		
+		private List<Message> messages = new ArrayList<Message>();
+		private List<MidiReceiver> receivers = new ArrayList<MidiReceiver>();
+		private volatile boolean failing = false;
+		private MidiTransmitter transmitter = new MidiTransmitter() {
+			@Override
+			public synchronized void send(Message message) {
+				if (failing)
+					throw new RuntimeException("MIDI connection lost.");
+				messages.add(message);
+			}
+			
+			@Override
+			public synchronized void send(List<Message> messages) {
+				for (Message message : messages)
+					send(message);
+			}
+		};
+		
+		public void receive(Message message) {
+			for (MidiReceiver receiver : receivers)
+				receiver.receive(message);
+		}
+		
+		@Override
+		public void addMidiReceiver(MidiReceiver receiver) {
+			receivers.add(receiver);
+		}
+		
+		@Override
+		public void removeMidiReceiver(MidiReceiver receiver) {
+			receivers.remove(receiver);
+		}
+		
+		@Override
+		public MidiTransmitter getMidiTransmitter() {
+			return transmitter;
+		}
+		
+	}
+	
+}
@@ -38,4 +38,19 @@ public class LogTest {
 		assertTrue("test1\ntest2\n3\n".equals(l.getLog()));
 	}
 
+	@Test
+	public void testMessageListener() {
+		Log l = new Log(false);
+		final StringBuilder messages = new StringBuilder();
+		l.addMessageListener(new Log.LogMessageListener() {
+			public void onLogMessage(Log source, String message) {
+				messages.append(message).append(";");
+			}
+		});
+		l.log("test1");
+		l.log(2);
+		assertEquals("test1;2;", messages.toString());
+		assertEquals("", l.getLog());
+	}
+
 }
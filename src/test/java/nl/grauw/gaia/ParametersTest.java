@@ -17,7 +17,10 @@ package nl.grauw.gaia;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+
 import nl.grauw.gaia.Address;
+import nl.grauw.gaia.Address.AddressException;
 import nl.grauw.gaia.Parameters;
 import nl.grauw.gaia.Parameters.ParameterChange;
 import nl.grauw.gaia.Parameters.ParameterChangeListener;
@@ -125,6 +128,22 @@ public class ParametersTest {
 		assertEquals(1, listener.callCount);
 	}
 	
+	@Test
+	public void testUpdateParameters_ByteBuffer() throws AddressException {
+		Parameters p = PatchCommonTest.createTestParameters();
+		TestParameterChangeListener listener = new TestParameterChangeListener();
+		p.addParameterChangeListener(listener);
+		ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 0, 11, 12, 0 }, 1, 2);
+		p.updateParameters(p.getAddress().add(5), buffer);
+		
+		assertEquals(11, p.getValue(5));
+		assertEquals(12, p.getValue(6));
+		assertFalse(p.hasChanged());
+		assertEquals(1, buffer.position());
+		assertEquals(5, listener.lastChange.getOffset());
+		assertEquals(2, listener.lastChange.getLength());
+	}
+	
 	private static class TestParameterChangeListener implements ParameterChangeListener {
 		public int callCount = 0;
 		public Parameters lastSource = null;
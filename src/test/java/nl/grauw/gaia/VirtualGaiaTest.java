@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import nl.grauw.gaia.midi.messages.DataRequest1;
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.parameters.Tone;
+import nl.grauw.gaia.parameters.ToneTest;
+
+import org.junit.Test;
+
+public class VirtualGaiaTest {
+	
+	static Address toneAddress = new Address(0x10, 0x00, 0x01, 0x00);
+	
+	@Test
+	public void testLoadAndSave() throws Exception {
+		VirtualGaia device = new VirtualGaia();
+		device.write(toneAddress, ToneTest.createTestParameters().getData());
+		Gaia gaia = new Gaia(new Log(), device);
+		gaia.open();
+		try {
+			Tone tone = (Tone) gaia.getTemporaryPatch().loadTone(1).get(5, TimeUnit.SECONDS);
+			assertTrue(gaia.isIdentityConfirmed());
+			assertEquals(VirtualGaia.DEFAULT_DEVICE_ID, gaia.getDeviceID());
+			assertArrayEquals(ToneTest.createTestParameters().getData(), tone.getData());
+			
+			tone.getFilterCutoff().setValue(0x20);
+			gaia.getDebouncer().flush();
+			assertArrayEquals(new byte[] { 0x20 }, gaia.requestData(toneAddress.add(0x0C), 1).get(5, TimeUnit.SECONDS));
+			assertEquals(0x20, device.read(toneAddress.add(0x0C), 1)[0]);
+		} finally {
+			gaia.close();
+			device.close();
+		}
+	}
+	
+	@Test
+	public void testBlockReplies() throws Exception {
+		VirtualGaia device = new VirtualGaia();
+		Gaia gaia = new Gaia(new Log(), device);
+		gaia.open();
+		try {
+			gaia.getTemporaryPatch().load();
+			// the last block of the patch arrives last
+			byte[] data = gaia.requestData(new Address(0x10, 0x00, 0x1C, 0x00), 0x42).get(5, TimeUnit.SECONDS);
+			assertEquals(0x42, data.length);
+			assertNotNull(gaia.getTemporaryPatch().getDistortion());
+			assertNotNull(gaia.getTemporaryPatch().getCommon());
+			assertNotNull(gaia.getTemporaryPatch().getTone(3));
+			assertNotNull(gaia.getTemporaryPatch().getReverb());
+			assertNotNull(gaia.getSystem());
+		} finally {
+			gaia.close();
+			device.close();
+		}
+	}
+	
+	@Test
+	public void testEditData() throws Exception {
+		VirtualGaia device = new VirtualGaia();
+		device.write(toneAddress, ToneTest.createTestParameters().getData());
+		Gaia gaia = new Gaia(new Log(), device);
+		gaia.open();
+		try {
+			gaia.getTemporaryPatch().loadTone(1).get(5, TimeUnit.SECONDS);
+			device.edit(toneAddress.add(0x0F), new byte[] { 0x11 });
+			gaia.requestData(toneAddress, 1).get(5, TimeUnit.SECONDS);
+			assertEquals(0x11, gaia.getTemporaryPatch().getTone(1).getFilterResonance().getValue());
+		} finally {
+			gaia.close();
+			device.close();
+		}
+	}
+	
+	@Test
+	public void testLink() throws Exception {
+		VirtualGaia device = new VirtualGaia();
+		device.setLatency(50);
+		device.setJitter(10);
+		device.setByteRate(VirtualGaia.MIDI_BYTE_RATE);
+		Gaia gaia = new Gaia(new Log(), device);
+		gaia.open();
+		try {
+			long start = java.lang.System.nanoTime();
+			gaia.requestData(toneAddress, 0x3E).get(5, TimeUnit.SECONDS);
+			assertTrue(java.lang.System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+		} finally {
+			gaia.close();
+			device.close();
+		}
+		
+		device = new VirtualGaia();
+		device.setLossRate(1);
+		device.send(new DataSet1(new Address(0x01, 0x00, 0x00, 0x19), new byte[] { 1 }));
+		device.send(new DataRequest1(toneAddress, 0x3E));
+		assertEquals(2, device.getLostCount());
+		assertEquals(0, device.getReceivedCount());
+		assertEquals(0, device.read(new Address(0x01, 0x00, 0x00, 0x19), 1)[0]);
+		device.close();
+	}
+	
+}
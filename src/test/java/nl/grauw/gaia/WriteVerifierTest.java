@@ -0,0 +1,161 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import nl.grauw.gaia.WriteVerifier.Range;
+import nl.grauw.gaia.midi.MidiConnection;
+import nl.grauw.gaia.midi.MidiReceiver;
+import nl.grauw.gaia.midi.MidiTransmitter;
+import nl.grauw.gaia.midi.messages.DataRequest1;
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.midi.messages.Message;
+
+import org.junit.Test;
+
+public class WriteVerifierTest {
+	
+	@Test
+	public void testCoalesce() {
+		List<Range> ranges = WriteVerifier.coalesce(Arrays.asList(
+			new DataSet1(new Address(0x10, 0x00, 0x01, 0x10), new byte[] { 5, 6 }),
+			new DataSet1(new Address(0x10, 0x00, 0x01, 0x0C), new byte[] { 1, 2, 3, 4 }),
+			new DataSet1(new Address(0x10, 0x00, 0x01, 0x0D), new byte[] { 7 }),
+			new DataSet1(new Address(0x10, 0x00, 0x02, 0x00), new byte[] { 8 })
+		));
+		assertEquals(2, ranges.size());
+		assertEquals(new Address(0x10, 0x00, 0x01, 0x0C).getValue(), ranges.get(0).address);
+		assertArrayEquals(new byte[] { 1, 7, 3, 4, 5, 6 }, ranges.get(0).data);
+		assertEquals(new Address(0x10, 0x00, 0x02, 0x00).getValue(), ranges.get(1).address);
+	}
+	
+	@Test
+	public void testFindMismatches() {
+		Range range = new Range(0x100, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 });
+		byte[] actual = range.data.clone();
+		actual[1] = 0;
+		actual[3] = 0;
+		actual[15] = 0;
+		List<Range> mismatches = WriteVerifier.findMismatches(range, actual);
+		assertEquals(2, mismatches.size());
+		assertEquals(0x101, mismatches.get(0).address);
+		assertArrayEquals(new byte[] { 2, 3, 4 }, mismatches.get(0).data);
+		assertEquals(0x10F, mismatches.get(1).address);
+		assertArrayEquals(new byte[] { 16 }, mismatches.get(1).data);
+		assertEquals(0, WriteVerifier.findMismatches(range, range.data.clone()).size());
+	}
+	
+	@Test
+	public void testVerify() throws Exception {
+		TestDevice device = new TestDevice();
+		Gaia gaia = new Gaia(new Log(), device);
+		gaia.open();
+		try {
+			device.dropNextWrite = true;
+			List<DataSet1> writes = Arrays.asList(
+				new DataSet1(new Address(0x10, 0x00, 0x01, 0x0C), new byte[] { 1, 2, 3, 4 }),
+				new DataSet1(new Address(0x10, 0x00, 0x01, 0x10), new byte[] { 5, 6 })
+			);
+			gaia.send(Arrays.<Message>asList(writes.get(0), writes.get(1)));
+			
+			assertTrue(gaia.getWriteVerifier().verify(writes).get(10, TimeUnit.SECONDS));
+			assertEquals(1, gaia.getWriteVerifier().getMismatchCount());
+			assertEquals(1, gaia.getWriteVerifier().getVerifiedCount());
+			assertEquals(0, gaia.getWriteVerifier().getFailedCount());
+			assertEquals(1, device.memory[0x8C]);
+			assertEquals(6, device.memory[0x91]);
+		} finally {
+			gaia.close();
+			device.executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Holds the temporary patch tone 1 memory, replies to data requests for it
+	 * on another thread, and can drop a write.
+	 */
+	private static class TestDevice implements MidiConnection, MidiTransmitter {
+		
+		private byte[] memory = new byte[0x200];
+		private volatile boolean dropNextWrite = false;
+		private List<MidiReceiver> receivers = new CopyOnWriteArrayList<MidiReceiver>();
+		private ExecutorService executor = Executors.newSingleThreadExecutor();
+		
+		@Override
+		public void send(Message message) {
+			if (message instanceof DataSet1) {
+				DataSet1 write = (DataSet1) message;
+				if (!isPatchTone(write.getAddress()))
+					return;
+				if (dropNextWrite) {
+					dropNextWrite = false;
+					return;
+				}
+				int offset = write.getAddress().getValue() & 0x1FF;
+				for (int i = 0; i < write.getSize(); i++)
+					memory[offset + i] = (byte) write.getDataSet(i);
+			} else if (message instanceof DataRequest1) {
+				final DataRequest1 request = (DataRequest1) message;
+				if (!isPatchTone(request.getAddress()))
+					return;
+				int offset = request.getAddress().getValue() & 0x1FF;
+				final byte[] data = Arrays.copyOfRange(memory, offset, offset + request.getSize());
+				executor.execute(new Runnable() {
+					public void run() {
+						DataSet1 reply = new DataSet1(0x10, request.getAddress(), data);
+						for (MidiReceiver receiver : receivers)
+							receiver.receive(reply);
+					}
+				});
+			}
+		}
+		
+		@Override
+		public void send(List<Message> messages) {
+			for (Message message : messages)
+				send(message);
+		}
+		
+		private static boolean isPatchTone(Address address) {
+			return address.getByte1() == 0x10 && address.getByte3() == 0x01;
+		}
+		
+		@Override
+		public void addMidiReceiver(MidiReceiver receiver) {
+			receivers.add(receiver);
+		}
+		
+		@Override
+		public void removeMidiReceiver(MidiReceiver receiver) {
+			receivers.remove(receiver);
+		}
+		
+		@Override
+		public MidiTransmitter getMidiTransmitter() {
+			return this;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import nl.grauw.gaia.Address;
+import nl.grauw.gaia.midi.messages.DataSet1;
+
+import org.junit.Test;
+
+public class DataSetCoalescerTest {
+	
+	@Test
+	public void testAdd_Adjacent() {
+		DataSetCoalescer coalescer = new DataSetCoalescer();
+		coalescer.add(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 1, 2 }));
+		coalescer.add(new DataSet1(new Address(0x10, 0x00, 0x01, 0x02), new byte[] { 3 }));
+		List<DataSet1> messages = coalescer.drain();
+		
+		assertEquals(1, messages.size());
+		assertEquals(new Address(0x10, 0x00, 0x01, 0x00), messages.get(0).getAddress());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, messages.get(0).getDataSet());
+	}
+	
+	@Test
+	public void testAdd_Overlapping() {
+		DataSetCoalescer coalescer = new DataSetCoalescer();
+		coalescer.add(new DataSet1(new Address(0x10, 0x00, 0x01, 0x02), new byte[] { 1, 2, 3, 4 }));
+		coalescer.add(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 5, 6, 7 }));
+		List<DataSet1> messages = coalescer.drain();
+		
+		assertEquals(1, messages.size());
+		assertEquals(new Address(0x10, 0x00, 0x01, 0x00), messages.get(0).getAddress());
+		assertArrayEquals(new byte[] { 5, 6, 7, 2, 3, 4 }, messages.get(0).getDataSet());
+	}
+	
+	@Test
+	public void testAdd_Bridging() {
+		DataSetCoalescer coalescer = new DataSetCoalescer();
+		coalescer.add(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 1 }));
+		coalescer.add(new DataSet1(new Address(0x10, 0x00, 0x01, 0x04), new byte[] { 5 }));
+		coalescer.add(new DataSet1(new Address(0x10, 0x00, 0x01, 0x01), new byte[] { 2, 3, 4 }));
+		List<DataSet1> messages = coalescer.drain();
+		
+		assertEquals(1, messages.size());
+		assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, messages.get(0).getDataSet());
+	}
+	
+	@Test
+	public void testAdd_Disjoint() {
+		DataSetCoalescer coalescer = new DataSetCoalescer();
+		coalescer.add(new DataSet1(new Address(0x10, 0x00, 0x02, 0x00), new byte[] { 1 }));
+		coalescer.add(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 2 }));
+		List<DataSet1> messages = coalescer.drain();
+		
+		assertEquals(2, messages.size());
+		assertEquals(new Address(0x10, 0x00, 0x01, 0x00), messages.get(0).getAddress());
+		assertEquals(new Address(0x10, 0x00, 0x02, 0x00), messages.get(1).getAddress());
+		assertTrue(coalescer.isEmpty());
+	}
+	
+	@Test
+	public void testAccepts() {
+		DataSetCoalescer coalescer = new DataSetCoalescer();
+		assertFalse(coalescer.accepts(new DataSet1(new Address(0x0F, 0x00, 0x06, 0x03), new byte[] { 0 })));
+		coalescer.add(new DataSet1(0x10, new Address(0x10, 0x00, 0x00, 0x00), new byte[] { 0 }));
+		assertFalse(coalescer.accepts(new DataSet1(0x11, new Address(0x10, 0x00, 0x00, 0x01), new byte[] { 0 })));
+		assertTrue(coalescer.accepts(new DataSet1(0x10, new Address(0x10, 0x00, 0x00, 0x01), new byte[] { 0 })));
+	}
+	
+}
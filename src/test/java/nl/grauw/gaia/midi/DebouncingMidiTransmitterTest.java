@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import nl.grauw.gaia.Address;
+import nl.grauw.gaia.Note;
+import nl.grauw.gaia.midi.QueuedMidiTransmitterTest.RecordingTransmitter;
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.midi.messages.NoteOnMessage;
+
+import org.junit.Test;
+
+public class DebouncingMidiTransmitterTest {
+	
+	private static final Address CUTOFF = new Address(0x10, 0x00, 0x01, 0x0C);
+	private static final Address RESONANCE = new Address(0x10, 0x00, 0x01, 0x0F);
+	
+	@Test
+	public void testSend_LatestValueWins() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		DebouncingMidiTransmitter debouncer = new DebouncingMidiTransmitter(target);
+		debouncer.setMaximumRate(10);
+		for (int i = 0; i < 10; i++)
+			debouncer.send(new DataSet1(CUTOFF, new byte[] { (byte)i }));
+		
+		assertEquals(1, target.messages.size());
+		Thread.sleep(250);
+		
+		assertEquals(2, target.messages.size());
+		assertArrayEquals(new byte[] { 0 }, ((DataSet1)target.messages.get(0)).getDataSet());
+		assertArrayEquals(new byte[] { 9 }, ((DataSet1)target.messages.get(1)).getDataSet());
+		assertEquals(8, debouncer.getSupersededCount());
+	}
+	
+	@Test
+	public void testSend_PerAddress() {
+		RecordingTransmitter target = new RecordingTransmitter();
+		DebouncingMidiTransmitter debouncer = new DebouncingMidiTransmitter(target);
+		debouncer.send(new DataSet1(CUTOFF, new byte[] { 1 }));
+		debouncer.send(new DataSet1(RESONANCE, new byte[] { 2 }));
+		
+		assertEquals(2, target.messages.size());
+	}
+	
+	@Test
+	public void testSend_FlushesBeforeOtherMessages() {
+		RecordingTransmitter target = new RecordingTransmitter();
+		DebouncingMidiTransmitter debouncer = new DebouncingMidiTransmitter(target);
+		debouncer.send(new DataSet1(CUTOFF, new byte[] { 1 }));
+		debouncer.send(new DataSet1(CUTOFF, new byte[] { 2 }));
+		debouncer.send(new NoteOnMessage(0, new Note(60), 100));
+		
+		assertEquals(3, target.messages.size());
+		assertArrayEquals(new byte[] { 2 }, ((DataSet1)target.messages.get(1)).getDataSet());
+		assertTrue(target.messages.get(2) instanceof NoteOnMessage);
+	}
+	
+	@Test
+	public void testSend_OverlappingDataSet() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		DebouncingMidiTransmitter debouncer = new DebouncingMidiTransmitter(target);
+		debouncer.send(new DataSet1(CUTOFF, new byte[] { 1 }));
+		debouncer.send(new DataSet1(CUTOFF, new byte[] { 2 }));
+		debouncer.send(new DataSet1(RESONANCE, new byte[] { 3, 0 }));
+		debouncer.send(new DataSet1(RESONANCE, new byte[] { 4, 0 }));
+		debouncer.send(new DataSet1(CUTOFF.add(-1), new byte[] { 5, 6 }));
+		debouncer.send(new DataSet1(RESONANCE.add(1), new byte[] { 7 }));
+		Thread.sleep(100);
+		debouncer.close();
+		
+		assertEquals(5, target.messages.size());
+		assertArrayEquals(new byte[] { 5, 6 }, ((DataSet1)target.messages.get(2)).getDataSet());
+		assertArrayEquals(new byte[] { 4, 0 }, ((DataSet1)target.messages.get(3)).getDataSet());
+		assertArrayEquals(new byte[] { 7 }, ((DataSet1)target.messages.get(4)).getDataSet());
+		assertEquals(1, debouncer.getSupersededCount());
+	}
+	
+	@Test
+	public void testSetMaximumRate_Disabled() {
+		RecordingTransmitter target = new RecordingTransmitter();
+		DebouncingMidiTransmitter debouncer = new DebouncingMidiTransmitter(target);
+		debouncer.setMaximumRate(0);
+		debouncer.send(new DataSet1(CUTOFF, new byte[] { 1 }));
+		debouncer.send(new DataSet1(CUTOFF, new byte[] { 2 }));
+		
+		assertEquals(2, target.messages.size());
+		assertEquals(0, debouncer.getMaximumRate());
+	}
+	
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LinkProfileTest {
+	
+	@Test
+	public void testDataReceived() {
+		LinkProfile profile = new LinkProfile();
+		profile.requestSent(0x100, 0x20);
+		assertEquals(1, profile.getOutstandingCount());
+		profile.dataReceived(0x100, 0x10);
+		assertEquals(1, profile.getOutstandingCount());
+		profile.dataReceived(0x110, 0x10);
+		assertEquals(0, profile.getOutstandingCount());
+		assertEquals(1, profile.getAnsweredCount());
+		assertEquals(LinkProfile.INITIAL_WINDOW + 1, profile.getWindow());
+		assertTrue(profile.getRoundTripTime() > 0);
+		assertTrue(profile.getSysexInterval() < LinkProfile.INITIAL_INTERVAL);
+	}
+	
+	@Test
+	public void testDataReceived_Unrequested() {
+		LinkProfile profile = new LinkProfile();
+		profile.requestSent(0x100, 0x20);
+		profile.dataReceived(0x200, 0x10);
+		assertEquals(1, profile.getOutstandingCount());
+		assertEquals(0, profile.getAnsweredCount());
+	}
+	
+	@Test
+	public void testMissedReply() throws InterruptedException {
+		LinkProfile profile = new LinkProfile();
+		profile.setReplyTimeout(1);
+		profile.requestSent(0x100, 0x20);
+		profile.requestSent(0x200, 0x20);
+		assertFalse(profile.isWindowOpen());
+		Thread.sleep(10);
+		assertTrue(profile.isWindowOpen());
+		assertEquals(2, profile.getMissedCount());
+		assertEquals(1, profile.getWindow());
+		assertEquals(LinkProfile.INITIAL_INTERVAL * 4, profile.getSysexInterval(), 0.001);
+	}
+	
+	@Test
+	public void testEstimateTransferTime() {
+		LinkProfile profile = new LinkProfile();
+		assertEquals(1000, profile.estimateTransferTime(1, 3125 - 13));
+		assertEquals(10 * LinkProfile.INITIAL_INTERVAL, profile.estimateTransferTime(10, 0));
+	}
+	
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import nl.grauw.gaia.Address;
+import nl.grauw.gaia.midi.MessageDecoder.Factory;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage;
+import nl.grauw.gaia.midi.messages.DataRequest1;
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.midi.messages.IdentityReply;
+import nl.grauw.gaia.midi.messages.Message;
+import nl.grauw.gaia.midi.messages.ProgramChangeMessage;
+import nl.grauw.gaia.midi.messages.Sysex;
+
+import org.junit.Test;
+
+public class MessageDecoderTest {
+	
+	@Test
+	public void testDecode_Channel() {
+		MessageDecoder decoder = MessageDecoder.createDefault();
+		assertEquals(ControlChangeMessage.class, decoder.decode(new byte[] { (byte)0xB3, 0x10, 0x20 }).getClass());
+		assertEquals(ProgramChangeMessage.class, decoder.decode(new byte[] { (byte)0xCF, 0x05 }).getClass());
+	}
+	
+	@Test
+	public void testDecode_DataSet1() {
+		MessageDecoder decoder = MessageDecoder.createDefault();
+		byte[] message = new DataSet1(0x10, new Address(0x10, 0x00, 0x00, 0x00), new byte[] { 1, 2 }).getMessage();
+		Message decoded = decoder.decode(message);
+		assertEquals(DataSet1.class, decoded.getClass());
+		assertArrayEquals(message, decoded.getMessage());
+	}
+	
+	@Test
+	public void testDecode_IdentityReply() {
+		MessageDecoder decoder = MessageDecoder.createDefault();
+		byte[] message = { (byte)0xF0, 0x7E, 0x10, 0x06, 0x02, 0x41, 0x41, 0x02, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, (byte)0xF7 };
+		assertEquals(IdentityReply.class, decoder.decode(message).getClass());
+	}
+	
+	@Test
+	public void testDecode_Unknown() {
+		MessageDecoder decoder = MessageDecoder.createDefault();
+		assertEquals(Message.class, decoder.decode(new byte[] { (byte)0xA0, 0x10, 0x20 }).getClass());
+		assertEquals(Message.class, decoder.decode(new byte[] { (byte)0xF0, 0x43, 0x10, (byte)0xF7 }).getClass());
+		assertEquals(Message.class, decoder.decode(new byte[] { (byte)0xF0, 0x41, (byte)0xF7 }).getClass());
+	}
+	
+	@Test
+	public void testRegisterSysex() {
+		MessageDecoder decoder = MessageDecoder.createDefault();
+		decoder.registerSysex(0x41, new byte[] { 0x00, 0x00, 0x41, 0x11 }, new Factory() {
+			public Message create(byte[] message) {
+				return new Sysex(message);
+			}
+		});
+		byte[] message = new DataRequest1(new Address(0x10, 0x00, 0x00, 0x00), 0x3D).getMessage();
+		assertEquals(Sysex.class, decoder.decode(message).getClass());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testRegisterSysex_HeaderLength() {
+		MessageDecoder decoder = MessageDecoder.createDefault();
+		decoder.registerSysex(0x41, new byte[] { 0x42, 0x12 }, null);
+	}
+	
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.grauw.gaia.midi.MessageDispatcher.Handler;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage;
+import nl.grauw.gaia.midi.messages.Message;
+import nl.grauw.gaia.midi.messages.ProgramChangeMessage;
+
+import org.junit.Test;
+
+public class MessageDispatcherTest {
+	
+	@Test
+	public void testReceive() {
+		MessageDispatcher dispatcher = new MessageDispatcher();
+		final List<Message> received = new ArrayList<Message>();
+		Handler<ControlChangeMessage> handler = new Handler<ControlChangeMessage>() {
+			public void handle(ControlChangeMessage message) {
+				received.add(message);
+			}
+		};
+		dispatcher.addHandler(ControlChangeMessage.class, handler);
+		
+		ControlChangeMessage message = new ControlChangeMessage(0, 70, 10);
+		dispatcher.receive(message);
+		dispatcher.receive(new ProgramChangeMessage(0, 1));
+		assertEquals(1, received.size());
+		assertSame(message, received.get(0));
+		
+		dispatcher.removeHandler(ControlChangeMessage.class, handler);
+		dispatcher.receive(message);
+		assertEquals(1, received.size());
+	}
+	
+}
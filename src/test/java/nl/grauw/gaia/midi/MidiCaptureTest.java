@@ -0,0 +1,224 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import nl.grauw.gaia.Address;
+import nl.grauw.gaia.Gaia;
+import nl.grauw.gaia.Log;
+import nl.grauw.gaia.VirtualGaia;
+import nl.grauw.gaia.midi.MidiCaptureReader.Record;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage;
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.midi.messages.IdentityReply;
+import nl.grauw.gaia.midi.messages.Message;
+import nl.grauw.gaia.parameters.ToneTest;
+
+import org.junit.Test;
+
+public class MidiCaptureTest {
+	
+	static Address toneAddress = new Address(0x10, 0x00, 0x01, 0x00);
+	
+	@Test
+	public void testCaptureAndReplay() throws Exception {
+		File file = File.createTempFile("capture", ".gcap");
+		file.deleteOnExit();
+		
+		VirtualGaia device = new VirtualGaia();
+		device.write(toneAddress, ToneTest.createTestParameters().getData());
+		MidiCapture capture = new MidiCapture(device, file, new Log());
+		Gaia gaia = new Gaia(new Log(), capture);
+		gaia.open();
+		gaia.getTemporaryPatch().loadTone(1).get(5, TimeUnit.SECONDS);
+		gaia.close();
+		capture.close();
+		device.close();
+		
+		MidiCaptureReader reader = new MidiCaptureReader(file);
+		List<Record> records = new ArrayList<Record>();
+		for (Record record = reader.read(); record != null; record = reader.read())
+			records.add(record);
+		reader.close();
+		assertEquals(capture.getRecordCount(), records.size());
+		assertTrue(reader.getStartTime() <= java.lang.System.currentTimeMillis());
+		
+		int inbound = 0;
+		boolean identityReply = false;
+		for (int i = 0; i < records.size(); i++) {
+			Record record = records.get(i);
+			if (i > 0)
+				assertTrue(record.getTimeStamp() >= records.get(i - 1).getTimeStamp());
+			if (record.getDirection() == MidiCapture.INBOUND) {
+				inbound++;
+				identityReply |= record.getMessage() instanceof IdentityReply;
+			}
+		}
+		assertTrue(identityReply);
+		assertEquals(MidiCapture.OUTBOUND, records.get(0).getDirection());
+		
+		TestConnection connection = new TestConnection();
+		Gaia replayed = new Gaia(new Log(), connection);
+		MidiReplay replay = new MidiReplay(replayed);
+		replay.setSpeed(0);
+		assertEquals(inbound, replay.replay(file));
+		assertEquals(inbound, replay.getReplayedCount());
+		assertTrue(replayed.isIdentityConfirmed());
+		assertArrayEquals(ToneTest.createTestParameters().getData(), replayed.getTemporaryPatch().getTone(1).getData());
+	}
+	
+	@Test
+	public void testReplaySpeed() throws Exception {
+		File file = File.createTempFile("capture", ".gcap");
+		file.deleteOnExit();
+		
+		TestConnection connection = new TestConnection();
+		MidiCapture capture = new MidiCapture(connection, file, new Log());
+		for (int i = 0; i < 3; i++) {
+			if (i > 0)
+				Thread.sleep(50);
+			connection.receive(new ControlChangeMessage(0, 7, i));
+		}
+		capture.close();
+		
+		TestReceiver receiver = new TestReceiver();
+		MidiReplay replay = new MidiReplay(receiver);
+		replay.replay(file);
+		assertEquals(3, receiver.messages.size());
+		assertEquals(1, ((ControlChangeMessage) receiver.messages.get(1)).getValue());
+		assertTrue(replay.getElapsedTime() >= TimeUnit.MILLISECONDS.toNanos(95));
+		
+		replay.setSpeed(4);
+		replay.replay(file);
+		assertTrue(replay.getElapsedTime() >= TimeUnit.MILLISECONDS.toNanos(20));
+		assertTrue(replay.getElapsedTime() < TimeUnit.MILLISECONDS.toNanos(95));
+		
+		replay.setSpeed(0);
+		replay.replay(file);
+		assertTrue(replay.getElapsedTime() < TimeUnit.MILLISECONDS.toNanos(20));
+		assertEquals(9, receiver.messages.size());
+	}
+	
+	@Test
+	public void testFlushInterval() throws Exception {
+		File file = File.createTempFile("capture", ".gcap");
+		file.deleteOnExit();
+		
+		TestConnection connection = new TestConnection();
+		MidiCapture capture = new MidiCapture(connection, file, new Log());
+		capture.send(new ControlChangeMessage(0, 7, 0));
+		long size = MidiCapture.HEADER_SIZE + MidiCapture.RECORD_HEADER_SIZE + 3;
+		for (int i = 0; i < 50 && file.length() < size; i++)
+			Thread.sleep(100);
+		assertEquals(size, file.length());
+		capture.close();
+	}
+	
+	@Test
+	public void testLargeMessage() throws Exception {
+		File file = File.createTempFile("capture", ".gcap");
+		file.deleteOnExit();
+		
+		TestConnection connection = new TestConnection();
+		MidiCapture capture = new MidiCapture(connection, file, new Log());
+		connection.receive(new ControlChangeMessage(0, 7, 0));
+		capture.send(new DataSet1(toneAddress, new byte[MidiCapture.BUFFER_SIZE]));
+		connection.receive(new ControlChangeMessage(0, 7, 1));
+		capture.close();
+		assertEquals(1, connection.sent.size());
+		
+		MidiCaptureReader reader = new MidiCaptureReader(file);
+		assertTrue(reader.read().getMessage() instanceof ControlChangeMessage);
+		Record record = reader.read();
+		assertEquals(MidiCapture.OUTBOUND, record.getDirection());
+		assertEquals(MidiCapture.BUFFER_SIZE, ((DataSet1) record.getMessage()).getSize());
+		assertTrue(reader.read().getMessage() instanceof ControlChangeMessage);
+		assertNull(reader.read());
+		reader.close();
+		
+		RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+		truncated.setLength(truncated.length() - 2);
+		truncated.close();
+		reader = new MidiCaptureReader(file);
+		reader.read();
+		reader.read();
+		try {
+			reader.read();
+			fail("Expected exception.");
+		} catch (EOFException e) {
+		} finally {
+			reader.close();
+		}
+	}
+	
+	private static class TestReceiver implements MidiReceiver {
+		
+		private List<Message> messages = new ArrayList<Message>();
+		
+		@Override
+		public void receive(Message message) {
+			messages.add(message);
+		}
+		
+	}
+	
+	private static class TestConnection implements MidiConnection, MidiTransmitter {
+		
+		private List<MidiReceiver> receivers = new CopyOnWriteArrayList<MidiReceiver>();
+		private List<Message> sent = new CopyOnWriteArrayList<Message>();
+		
+		public void receive(Message message) {
+			for (MidiReceiver receiver : receivers)
+				receiver.receive(message);
+		}
+		
+		@Override
+		public void send(Message message) {
+			sent.add(message);
+		}
+		
+		@Override
+		public void send(List<Message> messages) {
+			sent.addAll(messages);
+		}
+		
+		@Override
+		public void addMidiReceiver(MidiReceiver receiver) {
+			receivers.add(receiver);
+		}
+		
+		@Override
+		public void removeMidiReceiver(MidiReceiver receiver) {
+			receivers.remove(receiver);
+		}
+		
+		@Override
+		public MidiTransmitter getMidiTransmitter() {
+			return this;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sound.midi.MidiDevice;
+
+import nl.grauw.gaia.midi.MidiDeviceInventory.Entry;
+import nl.grauw.gaia.tool.mvc.Observable;
+import nl.grauw.gaia.tool.mvc.Observer;
+
+import org.junit.Test;
+
+public class MidiDeviceInventoryTest {
+	
+	@Test
+	public void testUpdate() {
+		MidiDeviceInventory inventory = new MidiDeviceInventory();
+		final List<Object> notifications = new ArrayList<Object>();
+		inventory.addObserver(new Observer() {
+			@Override
+			public void update(Observable source, Object detail) {
+				notifications.add(detail);
+			}
+		});
+		Entry gaiaIn = new Entry(new Info("SH-01"), -1, 0, false);
+		Entry gaiaOut = new Entry(new Info("SH-01"), 0, -1, false);
+		Entry synth = new Entry(new Info("Synthesizer"), 0, -1, true);
+		
+		inventory.update(new ArrayList<Entry>(Arrays.asList(gaiaIn, gaiaOut, synth)));
+		assertEquals(0, notifications.size());
+		assertEquals(Arrays.asList(gaiaIn), inventory.getInputs());
+		assertEquals(Arrays.asList(gaiaOut), inventory.getOutputs());
+		assertSame(gaiaOut, inventory.find("SH-01", false));
+		assertNull(inventory.find("Synthesizer", false));
+		
+		inventory.update(new ArrayList<Entry>(Arrays.asList(
+				new Entry(new Info("SH-01"), -1, 0, false), new Entry(new Info("SH-01"), 0, -1, false), synth)));
+		assertEquals(0, notifications.size());
+		
+		inventory.update(new ArrayList<Entry>(Arrays.asList(synth)));
+		assertEquals(Arrays.asList("devices"), notifications);
+		assertFalse(inventory.contains(gaiaIn.getInfo()));
+		assertTrue(inventory.contains(synth.getInfo()));
+	}
+	
+	private static class Info extends MidiDevice.Info {
+		public Info(String name) {
+			super(name, "Roland", "Test device", "1.0");
+		}
+	}
+	
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nl.grauw.gaia.midi.MidiInputBuffer.MessageHandler;
+
+import org.junit.Test;
+
+public class MidiInputBufferTest {
+	
+	@Test
+	public void testDrain() {
+		MidiInputBuffer buffer = new MidiInputBuffer(4, 4);
+		RecordingHandler handler = new RecordingHandler();
+		assertTrue(buffer.offer(new byte[] { 1, 2, 3 }, 3, 10));
+		assertTrue(buffer.offer(new byte[] { 4, 5, 6, 7, 8, 9 }, 6, 20));
+		assertEquals(2, buffer.getDepth());
+		assertEquals(2, buffer.drain(handler));
+		assertEquals(0, buffer.getDepth());
+		assertTrue(buffer.isEmpty());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, handler.messages.get(0));
+		assertArrayEquals(new byte[] { 4, 5, 6, 7, 8, 9 }, handler.messages.get(1));
+		assertEquals(Arrays.asList(10L, 20L), handler.timeStamps);
+	}
+	
+	@Test
+	public void testOffer_Full() {
+		MidiInputBuffer buffer = new MidiInputBuffer(2, 4);
+		assertTrue(buffer.offer(new byte[] { 1 }, 1, -1));
+		assertTrue(buffer.offer(new byte[] { 2 }, 1, -1));
+		assertFalse(buffer.offer(new byte[] { 3 }, 1, -1));
+		assertEquals(1, buffer.getDroppedCount());
+		RecordingHandler handler = new RecordingHandler();
+		buffer.drain(handler);
+		assertTrue(buffer.offer(new byte[] { 4 }, 1, -1));
+		buffer.drain(handler);
+		assertEquals(3, handler.messages.size());
+		assertArrayEquals(new byte[] { 4 }, handler.messages.get(2));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testCapacity() {
+		new MidiInputBuffer(3, 4);
+	}
+	
+	@Test
+	public void testAwait() throws InterruptedException {
+		final MidiInputBuffer buffer = new MidiInputBuffer(4, 4);
+		assertFalse(buffer.await(1));
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				buffer.offer(new byte[] { 1 }, 1, -1);
+			}
+		});
+		producer.start();
+		assertTrue(buffer.await(1000));
+		producer.join();
+		assertEquals(1, buffer.getDepth());
+	}
+	
+	private static class RecordingHandler implements MessageHandler {
+		
+		public List<byte[]> messages = new ArrayList<byte[]>();
+		public List<Long> timeStamps = new ArrayList<Long>();
+		
+		@Override
+		public void handle(byte[] data, int length, long timeStamp) {
+			messages.add(Arrays.copyOf(data, length));
+			timeStamps.add(timeStamp);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.SysexMessage;
+
+import nl.grauw.gaia.Address;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage.Controller;
+import nl.grauw.gaia.midi.messages.DataRequest1;
+import nl.grauw.gaia.midi.messages.DataSet1;
+
+import org.junit.Test;
+
+public class MidiMessageEncoderTest {
+	
+	@Test
+	public void testEncode_Sysex() {
+		MidiMessageEncoder encoder = new MidiMessageEncoder();
+		DataSet1 message = new DataSet1(new Address(0x10, 0x00, 0x01, 0x03), new byte[] { 0x40, 0x41 });
+		MidiMessage encoded = encoder.encode(message);
+		assertTrue(encoded instanceof SysexMessage);
+		assertArrayEquals(message.getMessage(), encoded.getMessage());
+	}
+	
+	@Test
+	public void testEncode_Short() {
+		MidiMessageEncoder encoder = new MidiMessageEncoder();
+		encoder.setReuse(true);
+		ControlChangeMessage message = new ControlChangeMessage(2, Controller.TONE_1_OSC_PITCH, 100);
+		MidiMessage encoded = encoder.encode(message);
+		assertArrayEquals(message.getMessage(), encoded.getMessage());
+		assertSame(encoded, encoder.encode(new ControlChangeMessage(2, Controller.TONE_1_OSC_PITCH, 101)));
+	}
+	
+	@Test
+	public void testEncode_Reuse() {
+		MidiMessageEncoder encoder = new MidiMessageEncoder();
+		DataSet1 message = new DataSet1(new Address(0x10, 0x00, 0x01, 0x03), new byte[] { 0x40, 0x41 });
+		MidiMessage encoded = encoder.encode(message);
+		assertNotSame(encoded, encoder.encode(message));
+		
+		encoder.setReuse(true);
+		encoded = encoder.encode(message);
+		assertSame(encoded, encoder.encode(new DataRequest1(new Address(0x10, 0x00, 0x01, 0x00), 0x3E)));
+	}
+	
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+import nl.grauw.gaia.midi.MidiRouter.Filter;
+import nl.grauw.gaia.midi.MidiRouter.Route;
+import nl.grauw.gaia.midi.messages.ChannelMessage;
+
+import org.junit.Test;
+
+public class MidiRouterTest {
+	
+	@Test
+	public void testFilter() throws InvalidMidiDataException {
+		RecordingReceiver output = new RecordingReceiver();
+		Filter filter = new Filter();
+		filter.setChannel(1, false);
+		filter.setType(ChannelMessage.PROGRAM_CHANGE, false);
+		filter.setDropActiveSensing(true);
+		Route route = new Route(output, filter);
+		
+		ShortMessage note = new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100);
+		route.send(note, -1);
+		route.send(new ShortMessage(ShortMessage.NOTE_ON, 1, 60, 100), -1);
+		route.send(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 5, 0), -1);
+		route.send(new ShortMessage(ShortMessage.ACTIVE_SENSING), -1);
+		SysexMessage sysex = new SysexMessage(new byte[] { (byte)0xF0, 0x41, 0x10, (byte)0xF7 }, 4);
+		route.send(sysex, -1);
+		
+		assertEquals(2, output.messages.size());
+		assertSame(note, output.messages.get(0));
+		assertSame(sysex, output.messages.get(1));
+		assertEquals(5, route.getReceivedCount());
+		assertEquals(2, route.getForwardedCount());
+		assertEquals(3, route.getFilteredCount());
+		assertEquals(0, route.getFailedCount());
+		assertTrue(route.getByteRate() > 0);
+		
+		filter.setChannel(1, true);
+		route.send(new ShortMessage(ShortMessage.NOTE_ON, 1, 60, 100), -1);
+		assertEquals(3, output.messages.size());
+	}
+	
+	@Test
+	public void testFilter_InvalidType() {
+		try {
+			new Filter().setType(0x91, false);
+			fail("Expected exception.");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testThin() throws InvalidMidiDataException {
+		RecordingReceiver output = new RecordingReceiver();
+		Filter filter = new Filter();
+		filter.setThinInterval(10000);
+		Route route = new Route(output, filter);
+		
+		route.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 100), -1);
+		route.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 101), -1);
+		route.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 10, 64), -1);
+		route.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 1, 7, 100), -1);
+		route.send(new ShortMessage(ShortMessage.PITCH_BEND, 0, 0, 64), -1);
+		route.send(new ShortMessage(ShortMessage.PITCH_BEND, 0, 0, 65), -1);
+		route.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+		route.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+		
+		assertEquals(6, output.messages.size());
+		assertEquals(2, route.getFilteredCount());
+		route.close();
+	}
+	
+	@Test
+	public void testThin_LastValue() throws Exception {
+		RecordingReceiver output = new RecordingReceiver();
+		Filter filter = new Filter();
+		filter.setThinInterval(50);
+		Route route = new Route(output, filter);
+		
+		route.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 100), -1);
+		route.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 101), -1);
+		route.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 102), -1);
+		route.send(new ShortMessage(ShortMessage.PITCH_BEND, 0, 0, 64), -1);
+		route.send(new ShortMessage(ShortMessage.PITCH_BEND, 0, 0, 65), -1);
+		assertEquals(2, output.messages.size());
+		
+		for (int i = 0; i < 100 && output.messages.size() < 4; i++)
+			Thread.sleep(10);
+		route.close();
+		
+		assertEquals(4, output.messages.size());
+		assertEquals(102, ((ShortMessage) output.messages.get(2)).getData2());
+		assertEquals(65, ((ShortMessage) output.messages.get(3)).getData2());
+		assertEquals(1, route.getFilteredCount());
+	}
+	
+	@Test
+	public void testFailed() throws InvalidMidiDataException {
+		Route route = new Route(new RecordingReceiver() {
+			@Override
+			public void send(MidiMessage message, long timeStamp) {
+				throw new IllegalStateException("Closed.");
+			}
+		}, new Filter());
+		route.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+		assertEquals(1, route.getFailedCount());
+		assertEquals(0, route.getForwardedCount());
+		assertEquals(0, route.getFilteredCount());
+	}
+	
+	private static class RecordingReceiver implements Receiver {
+		
+		List<MidiMessage> messages = new CopyOnWriteArrayList<MidiMessage>();
+		
+		@Override
+		public void send(MidiMessage message, long timeStamp) {
+			messages.add(message);
+		}
+		
+		@Override
+		public void close() {
+		}
+		
+	}
+	
+}
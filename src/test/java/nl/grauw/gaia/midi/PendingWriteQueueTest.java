@@ -0,0 +1,154 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nl.grauw.gaia.Address;
+import nl.grauw.gaia.Log;
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.midi.messages.Message;
+import nl.grauw.gaia.midi.messages.ProgramChangeMessage;
+
+import org.junit.Test;
+
+public class PendingWriteQueueTest {
+	
+	@Test
+	public void testCompact() {
+		PendingWriteQueue queue = new PendingWriteQueue(new FailingTransmitter(), new Log());
+		queue.add(new DataSet1(0x10, new Address(0x10, 0x00, 0x01, 0x0C), new byte[] { 1, 2 }));
+		queue.add(new DataSet1(0x10, new Address(0x10, 0x00, 0x01, 0x0D), new byte[] { 3, 4 }));
+		queue.add(new DataSet1(0x10, new Address(0x10, 0x00, 0x00, 0x10), new byte[] { 5 }));
+		queue.add(new DataSet1(0x10, new Address(0x0F, 0x00, 0x06, 0x03), new byte[] { 0 }));
+		assertEquals(4, queue.getSize());
+		
+		List<DataSet1> writes = queue.drain();
+		assertEquals(2, writes.size());
+		assertEquals(new Address(0x10, 0x00, 0x00, 0x10), writes.get(0).getAddress());
+		assertArrayEquals(new byte[] { 5 }, writes.get(0).getDataSet());
+		assertEquals(new Address(0x10, 0x00, 0x01, 0x0C), writes.get(1).getAddress());
+		assertArrayEquals(new byte[] { 1, 3, 4 }, writes.get(1).getDataSet());
+		assertEquals(0x10, writes.get(1).getDeviceId());
+		assertTrue(queue.isEmpty());
+	}
+	
+	@Test
+	public void testDeviceId() {
+		PendingWriteQueue queue = new PendingWriteQueue(new FailingTransmitter(), new Log());
+		queue.add(new DataSet1(0x7F, new Address(0x10, 0x00, 0x01, 0x0C), new byte[] { 1, 2 }));
+		queue.add(new DataSet1(0x10, new Address(0x10, 0x00, 0x01, 0x0E), new byte[] { 3 }));
+		queue.add(new DataSet1(0x10, new Address(0x10, 0x00, 0x01, 0x0D), new byte[] { 4 }));
+		
+		List<DataSet1> writes = queue.drain();
+		assertEquals(2, writes.size());
+		assertEquals(0x7F, writes.get(0).getDeviceId());
+		assertArrayEquals(new byte[] { 1 }, writes.get(0).getDataSet());
+		assertEquals(0x10, writes.get(1).getDeviceId());
+		assertEquals(new Address(0x10, 0x00, 0x01, 0x0D), writes.get(1).getAddress());
+		assertArrayEquals(new byte[] { 4, 3 }, writes.get(1).getDataSet());
+	}
+	
+	@Test
+	public void testFile_Background() throws Exception {
+		File file = File.createTempFile("pending", ".syx");
+		try {
+			PendingWriteQueue queue = new PendingWriteQueue(new FailingTransmitter(), new Log());
+			queue.setFile(file);
+			queue.add(new DataSet1(0x10, new Address(0x10, 0x00, 0x01, 0x0C), new byte[] { 1, 2 }));
+			for (int i = 0; i < 50 && file.length() == 0; i++)
+				Thread.sleep(100);
+			assertEquals(new DataSet1(0x10, new Address(0x10, 0x00, 0x01, 0x0C), new byte[] { 1, 2 }).getMessage().length, file.length());
+			queue.close();
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testSend_Failed() {
+		PendingWriteQueue queue = new PendingWriteQueue(new FailingTransmitter(), new Log());
+		DataSet1 first = new DataSet1(new Address(0x10, 0x00, 0x01, 0x0C), new byte[] { 1 });
+		DataSet1 second = new DataSet1(new Address(0x10, 0x00, 0x01, 0x20), new byte[] { 2 });
+		try {
+			queue.send(Arrays.<Message>asList(new ProgramChangeMessage(0, 1), first, second));
+			fail("Expected exception.");
+		} catch (RuntimeException e) {
+		}
+		assertEquals(2, queue.drain().size());
+	}
+	
+	@Test
+	public void testCapacity() {
+		PendingWriteQueue queue = new PendingWriteQueue(new FailingTransmitter(), new Log());
+		queue.setCapacity(2);
+		queue.add(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 1, 2, 3 }));
+		queue.add(new DataSet1(new Address(0x10, 0x00, 0x01, 0x01), new byte[] { 4 }));
+		assertEquals(2, queue.getSize());
+		assertEquals(1, queue.getDroppedCount());
+		assertArrayEquals(new byte[] { 1, 4 }, queue.drain().get(0).getDataSet());
+	}
+	
+	@Test
+	public void testFile() throws Exception {
+		File file = File.createTempFile("pending", ".syx");
+		try {
+			PendingWriteQueue queue = new PendingWriteQueue(new FailingTransmitter(), new Log());
+			queue.setFile(file);
+			queue.add(new DataSet1(0x10, new Address(0x10, 0x00, 0x01, 0x0C), new byte[] { 1, 2 }));
+			queue.add(new DataSet1(0x10, new Address(0x10, 0x00, 0x02, 0x0C), new byte[] { 3 }));
+			assertEquals(0, file.length());
+			queue.close();
+			assertTrue(file.length() > 0);
+			
+			PendingWriteQueue restored = new PendingWriteQueue(new FailingTransmitter(), new Log());
+			restored.setFile(file);
+			assertEquals(3, restored.getSize());
+			List<DataSet1> writes = restored.drain();
+			assertEquals(2, writes.size());
+			assertArrayEquals(new byte[] { 1, 2 }, writes.get(0).getDataSet());
+			restored.close();
+			assertFalse(file.exists());
+		} finally {
+			file.delete();
+		}
+	}
+	
+	private static class FailingTransmitter implements MidiTransmitter {
+		
+		List<Message> messages = new ArrayList<Message>();
+		
+		@Override
+		public void send(Message message) {
+			if (message instanceof DataSet1)
+				throw new RuntimeException("MIDI connection not open.");
+			messages.add(message);
+		}
+		
+		@Override
+		public void send(List<Message> messages) {
+			for (Message message : messages)
+				send(message);
+		}
+		
+	}
+	
+}
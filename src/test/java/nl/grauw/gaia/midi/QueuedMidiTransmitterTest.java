@@ -0,0 +1,388 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nl.grauw.gaia.Address;
+import nl.grauw.gaia.Log;
+import nl.grauw.gaia.Note;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage.Controller;
+import nl.grauw.gaia.midi.messages.DataRequest1;
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.midi.messages.Message;
+import nl.grauw.gaia.midi.messages.NoteOnMessage;
+import nl.grauw.gaia.midi.messages.ProgramChangeMessage;
+
+import org.junit.Test;
+
+public class QueuedMidiTransmitterTest {
+	
+	@Test
+	public void testSend() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		Message message1 = new NoteOnMessage(0, new Note(60), 100);
+		Message message2 = new NoteOnMessage(0, new Note(62), 100);
+		transmitter.start();
+		transmitter.send(message1);
+		transmitter.send(message2);
+		transmitter.flush();
+		transmitter.stop();
+		
+		assertEquals(Arrays.asList(message1, message2), target.messages);
+	}
+	
+	@Test
+	public void testSend_List() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		transmitter.setSysexInterval(0);
+		transmitter.setCoalesceWindow(0);
+		List<Message> messages = new ArrayList<Message>();
+		for (int i = 0; i < 10; i++)
+			messages.add(new DataSet1(new Address(0x10, 0x00, i, 0x00), new byte[] { (byte)i }));
+		transmitter.start();
+		transmitter.send(messages);
+		transmitter.flush();
+		transmitter.stop();
+		
+		assertEquals(messages, target.messages);
+	}
+	
+	@Test
+	public void testSysexInterval() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		transmitter.setSysexInterval(30);
+		transmitter.send(new DataSet1(new Address(0x10, 0x00, 0x00, 0x00), new byte[] { 1 }));
+		transmitter.send(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 2 }));
+		transmitter.send(new DataSet1(new Address(0x10, 0x00, 0x02, 0x00), new byte[] { 3 }));
+		long start = System.nanoTime();
+		transmitter.start();
+		transmitter.flush();
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		transmitter.stop();
+		
+		assertEquals(3, target.messages.size());
+		assertTrue(elapsed >= 60);
+	}
+	
+	@Test
+	public void testCoalesce() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		Message request = new DataRequest1(new Address(0x10, 0x00, 0x00, 0x00), 0x10);
+		transmitter.send(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 1 }));
+		transmitter.send(new DataSet1(new Address(0x10, 0x00, 0x01, 0x01), new byte[] { 2 }));
+		transmitter.send(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 3 }));
+		transmitter.send(request);
+		transmitter.send(new DataSet1(new Address(0x10, 0x00, 0x01, 0x02), new byte[] { 4 }));
+		transmitter.start();
+		transmitter.flush();
+		transmitter.stop();
+		
+		assertEquals(3, target.messages.size());
+		assertArrayEquals(new byte[] { 3, 2 }, ((DataSet1)target.messages.get(0)).getDataSet());
+		assertSame(request, target.messages.get(1));
+		assertArrayEquals(new byte[] { 4 }, ((DataSet1)target.messages.get(2)).getDataSet());
+		assertEquals(2, transmitter.getCoalescedCount());
+	}
+	
+	@Test
+	public void testPriority() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		Message request = new DataRequest1(new Address(0x10, 0x00, 0x00, 0x00), 0x10);
+		Message noteOn1 = new NoteOnMessage(0, new Note(60), 100);
+		Message programChange = new ProgramChangeMessage(0, 1);
+		Message noteOn2 = new NoteOnMessage(0, new Note(62), 100);
+		transmitter.send(request);
+		transmitter.send(noteOn1);
+		transmitter.send(programChange);
+		transmitter.send(noteOn2);
+		assertEquals(3, transmitter.getBulkLane().getDepth());
+		assertEquals(1, transmitter.getPriorityLane().getDepth());
+		transmitter.start();
+		transmitter.flush();
+		transmitter.stop();
+		
+		assertEquals(Arrays.asList(noteOn1, request, programChange, noteOn2), target.messages);
+		assertEquals(1, transmitter.getPriorityLane().getMessageCount());
+		assertEquals(3, transmitter.getBulkLane().getMessageCount());
+		assertTrue(transmitter.getBulkLane().getMaximumWaitTime() >= transmitter.getBulkLane().getAverageWaitTime());
+	}
+	
+	@Test
+	public void testPriority_ProgramChange() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		Message programChange = new ProgramChangeMessage(0, 1);
+		Message noteOn = new NoteOnMessage(0, new Note(60), 100);
+		transmitter.send(programChange);
+		transmitter.send(noteOn);
+		transmitter.start();
+		transmitter.flush();
+		transmitter.send(noteOn);
+		assertEquals(0, transmitter.getBulkLane().getDepth());
+		transmitter.flush();
+		transmitter.stop();
+		
+		assertEquals(Arrays.asList(programChange, noteOn, noteOn), target.messages);
+		assertEquals(1, transmitter.getPriorityLane().getMessageCount());
+	}
+	
+	@Test
+	public void testPriority_ControlChange() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		Message dataSet = new DataSet1(new Address(0x10, 0x00, 0x01, 0x0C), new byte[] { 0x20 });
+		Message controlChange = new ControlChangeMessage(0, Controller.TONE_1_FILTER_CUTOFF, 0x40);
+		transmitter.send(dataSet);
+		transmitter.send(controlChange);
+		transmitter.start();
+		transmitter.flush();
+		transmitter.stop();
+		
+		assertEquals(Arrays.asList(dataSet, controlChange), target.messages);
+	}
+	
+	@Test
+	public void testPriority_PerformanceController() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		Message dataSet = new DataSet1(new Address(0x10, 0x00, 0x01, 0x0C), new byte[] { 0x20 });
+		Message controlChange1 = new ControlChangeMessage(0, Controller.TONE_1_FILTER_CUTOFF, 0x40);
+		Message controlChange2 = new ControlChangeMessage(0, Controller.MODULATION, 0x40);
+		Message noteOn = new NoteOnMessage(0, new Note(60), 100);
+		transmitter.send(dataSet);
+		transmitter.send(controlChange1);
+		transmitter.send(controlChange2);
+		transmitter.send(noteOn);
+		assertEquals(2, transmitter.getBulkLane().getDepth());
+		assertEquals(2, transmitter.getPriorityLane().getDepth());
+		transmitter.start();
+		transmitter.flush();
+		transmitter.stop();
+		
+		assertEquals(Arrays.asList(controlChange2, noteOn, dataSet, controlChange1), target.messages);
+	}
+	
+	@Test
+	public void testPriority_PatchController() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		transmitter.setCoalesceWindow(100);
+		Message dataSet1 = new DataSet1(new Address(0x01, 0x00, 0x00, 0x00), new byte[] { 0x20 });
+		Message dataSet2 = new DataSet1(new Address(0x10, 0x00, 0x01, 0x0C), new byte[] { 0x20 });
+		Message controlChange1 = new ControlChangeMessage(0, Controller.TONE_1_FILTER_CUTOFF, 0x40);
+		Message controlChange2 = new ControlChangeMessage(0, Controller.TONE_1_FILTER_CUTOFF, 0x50);
+		transmitter.send(dataSet1);
+		transmitter.send(controlChange1);
+		assertEquals(1, transmitter.getPriorityLane().getDepth());
+		transmitter.start();
+		transmitter.send(dataSet2);
+		Thread.sleep(20);
+		transmitter.send(controlChange2);
+		transmitter.flush();
+		transmitter.stop();
+		
+		assertEquals(Arrays.asList(controlChange1, dataSet1, dataSet2, controlChange2), target.messages);
+	}
+	
+	@Test
+	public void testPriority_SysexInterval() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		transmitter.setSysexInterval(200);
+		Message request1 = new DataRequest1(new Address(0x10, 0x00, 0x00, 0x00), 0x10);
+		Message request2 = new DataRequest1(new Address(0x10, 0x00, 0x01, 0x00), 0x10);
+		Message noteOn = new NoteOnMessage(0, new Note(60), 100);
+		transmitter.send(request1);
+		transmitter.send(request2);
+		transmitter.start();
+		Thread.sleep(50);
+		transmitter.send(noteOn);
+		transmitter.flush();
+		transmitter.stop();
+		
+		assertEquals(Arrays.asList(request1, noteOn, request2), target.messages);
+		assertTrue(transmitter.getPriorityLane().getMaximumWaitTime() < 150);
+	}
+	
+	@Test
+	public void testLinkProfile_Window() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		LinkProfile profile = new LinkProfile();
+		profile.setReplyTimeout(10000);
+		transmitter.setLinkProfile(profile);
+		transmitter.setSysexInterval(0);
+		transmitter.send(new DataRequest1(new Address(0x10, 0x00, 0x00, 0x00), 0x10));
+		transmitter.send(new DataRequest1(new Address(0x10, 0x00, 0x01, 0x00), 0x10));
+		transmitter.send(new DataRequest1(new Address(0x10, 0x00, 0x02, 0x00), 0x10));
+		transmitter.start();
+		Thread.sleep(200);
+		assertEquals(LinkProfile.INITIAL_WINDOW, target.getSize());
+		
+		long start = System.nanoTime();
+		profile.dataReceived(new Address(0x10, 0x00, 0x00, 0x00).getValue(), 0x10);
+		transmitter.flush();
+		transmitter.stop();
+		
+		assertEquals(3, target.getSize());
+		assertTrue(System.nanoTime() - start < 1000000000L);
+	}
+	
+	@Test
+	public void testLinkProfile_SysexInterval() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		LinkProfile profile = new LinkProfile();
+		profile.setSysexIntervalRange(0, 0);
+		transmitter.setLinkProfile(profile);
+		transmitter.setSysexInterval(100);
+		transmitter.setCoalesceWindow(0);
+		transmitter.send(new DataSet1(new Address(0x10, 0x00, 0x00, 0x00), new byte[] { 1 }));
+		transmitter.send(new DataSet1(new Address(0x10, 0x00, 0x02, 0x00), new byte[] { 2 }));
+		long start = System.nanoTime();
+		transmitter.start();
+		transmitter.flush();
+		transmitter.stop();
+		
+		assertEquals(2, target.getSize());
+		assertTrue(System.nanoTime() - start >= 100000000L);
+	}
+	
+	@Test
+	public void testRequestListener() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		final List<DataRequest1> sent = new ArrayList<DataRequest1>();
+		transmitter.addRequestListener(new QueuedMidiTransmitter.RequestListener() {
+			@Override
+			public void onRequestSent(DataRequest1 request) {
+				sent.add(request);
+			}
+		});
+		DataRequest1 request = new DataRequest1(new Address(0x10, 0x00, 0x00, 0x00), 0x10);
+		transmitter.send(new NoteOnMessage(0, new Note(60), 100));
+		transmitter.send(request);
+		assertTrue(sent.isEmpty());
+		transmitter.start();
+		transmitter.flush();
+		transmitter.stop();
+		
+		assertEquals(Arrays.asList(request), sent);
+	}
+	
+	@Test
+	public void testSplit() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		transmitter.setSysexInterval(0);
+		transmitter.setMaximumDataSetSize(0x40);
+		transmitter.send(new DataSet1(new Address(0x10, 0x00, 0x00, 0x00), new byte[0x60]));
+		transmitter.send(new DataSet1(new Address(0x10, 0x00, 0x00, 0x60), new byte[0x30]));
+		transmitter.start();
+		transmitter.flush();
+		transmitter.stop();
+		
+		assertEquals(3, target.messages.size());
+		assertEquals(new Address(0x10, 0x00, 0x00, 0x00), ((DataSet1)target.messages.get(0)).getAddress());
+		assertEquals(new Address(0x10, 0x00, 0x00, 0x40), ((DataSet1)target.messages.get(1)).getAddress());
+		assertEquals(new Address(0x10, 0x00, 0x01, 0x00), ((DataSet1)target.messages.get(2)).getAddress());
+		assertEquals(0x10, ((DataSet1)target.messages.get(2)).getSize());
+		assertEquals(1, transmitter.getCoalescedCount());
+		assertEquals(2, transmitter.getSplitCount());
+	}
+	
+	@Test
+	public void testStop() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		transmitter.send(new NoteOnMessage(0, new Note(60), 100));
+		assertEquals(1, transmitter.getQueueDepth());
+		transmitter.start();
+		transmitter.stop();
+		transmitter.flush();
+		
+		assertEquals(0, transmitter.getQueueDepth());
+		assertFalse(transmitter.isStarted());
+	}
+	
+	@Test
+	public void testStop_Coalescing() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		transmitter.setCoalesceWindow(1000);
+		transmitter.send(new DataSet1(new Address(0x10, 0x00, 0x00, 0x00), new byte[] { 0x01 }));
+		transmitter.send(new DataSet1(new Address(0x10, 0x00, 0x00, 0x01), new byte[] { 0x02 }));
+		transmitter.start();
+		Thread.sleep(50);
+		List<Message> discarded = transmitter.stop();
+		transmitter.flush();
+		
+		assertEquals(0, target.getSize());
+		assertEquals(1, discarded.size());
+		assertEquals(new Address(0x10, 0x00, 0x00, 0x00), ((DataSet1)discarded.get(0)).getAddress());
+		assertArrayEquals(new byte[] { 0x01, 0x02 }, ((DataSet1)discarded.get(0)).getDataSet());
+	}
+	
+	@Test
+	public void testStop_SysexInterval() throws InterruptedException {
+		RecordingTransmitter target = new RecordingTransmitter();
+		QueuedMidiTransmitter transmitter = new QueuedMidiTransmitter(target, new Log());
+		transmitter.setSysexInterval(1000);
+		transmitter.setCoalesceWindow(0);
+		transmitter.setMaximumDataSetSize(0x40);
+		transmitter.send(new DataSet1(new Address(0x10, 0x00, 0x00, 0x00), new byte[0x60]));
+		transmitter.start();
+		Thread.sleep(50);
+		List<Message> discarded = transmitter.stop();
+		
+		assertEquals(1, target.getSize());
+		assertEquals(1, discarded.size());
+		assertEquals(new Address(0x10, 0x00, 0x00, 0x40), ((DataSet1)discarded.get(0)).getAddress());
+		assertEquals(0x20, ((DataSet1)discarded.get(0)).getSize());
+	}
+	
+	static class RecordingTransmitter implements MidiTransmitter {
+		
+		List<Message> messages = new ArrayList<Message>();
+		
+		@Override
+		public synchronized void send(Message message) {
+			messages.add(message);
+		}
+		
+		@Override
+		public synchronized void send(List<Message> messages) {
+			this.messages.addAll(messages);
+		}
+		
+		public synchronized int getSize() {
+			return messages.size();
+		}
+		
+	}
+	
+}
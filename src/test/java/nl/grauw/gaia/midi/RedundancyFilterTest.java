@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import nl.grauw.gaia.Address;
+import nl.grauw.gaia.midi.QueuedMidiTransmitterTest.RecordingTransmitter;
+import nl.grauw.gaia.midi.messages.ControlChangeMessage;
+import nl.grauw.gaia.midi.messages.DataSet1;
+import nl.grauw.gaia.midi.messages.PitchBendChangeMessage;
+import nl.grauw.gaia.midi.messages.ProgramChangeMessage;
+
+import org.junit.Test;
+
+public class RedundancyFilterTest {
+	
+	@Test
+	public void testControlChange() {
+		RecordingTransmitter target = new RecordingTransmitter();
+		RedundancyFilter filter = new RedundancyFilter(target);
+		filter.send(new ControlChangeMessage(0, 74, 10));
+		filter.send(new ControlChangeMessage(0, 74, 10));
+		filter.send(new ControlChangeMessage(1, 74, 10));
+		filter.send(new ControlChangeMessage(0, 74, 11));
+		filter.send(new ControlChangeMessage(0, 6, 1));
+		filter.send(new ControlChangeMessage(0, 6, 1));
+		filter.receive(new ControlChangeMessage(0, 74, 20));
+		filter.send(new ControlChangeMessage(0, 74, 20));
+		filter.send(new PitchBendChangeMessage(0, 100));
+		filter.send(new PitchBendChangeMessage(0, 100));
+		
+		assertEquals(6, target.messages.size());
+		assertEquals(3, filter.getDroppedCount());
+	}
+	
+	@Test
+	public void testProgramChange() {
+		RecordingTransmitter target = new RecordingTransmitter();
+		RedundancyFilter filter = new RedundancyFilter(target);
+		filter.send(new ProgramChangeMessage(0, 1));
+		filter.send(new ProgramChangeMessage(0, 1));
+		filter.send(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 1 }));
+		filter.send(new ProgramChangeMessage(0, 1));
+		
+		assertEquals(3, target.messages.size());
+		assertEquals(1, filter.getDroppedCount());
+	}
+	
+	@Test
+	public void testDataSet() {
+		RecordingTransmitter target = new RecordingTransmitter();
+		RedundancyFilter filter = new RedundancyFilter(target);
+		filter.send(new DataSet1(new Address(0x10, 0x00, 0x00, 0x7E), new byte[] { 1, 2, 3, 4 }));
+		filter.send(new DataSet1(new Address(0x10, 0x00, 0x00, 0x7E), new byte[] { 1, 2, 3, 4 }));
+		filter.send(new DataSet1(new Address(0x10, 0x00, 0x00, 0x7E), new byte[] { 1, 5, 6, 4 }));
+		
+		assertEquals(2, target.messages.size());
+		DataSet1 trimmed = (DataSet1) target.messages.get(1);
+		assertEquals(new Address(0x10, 0x00, 0x00, 0x7F), trimmed.getAddress());
+		assertArrayEquals(new byte[] { 5, 6 }, trimmed.getDataSet());
+		assertEquals(1, filter.getDroppedCount());
+		assertEquals(6, filter.getSavedByteCount());
+	}
+	
+	@Test
+	public void testDataSet_Received() {
+		RecordingTransmitter target = new RecordingTransmitter();
+		RedundancyFilter filter = new RedundancyFilter(target);
+		filter.receive(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 1, 2 }));
+		filter.send(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 1, 2 }));
+		filter.receive(new ProgramChangeMessage(0, 2));
+		filter.send(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 1, 2 }));
+		
+		assertEquals(1, target.messages.size());
+		assertEquals(1, filter.getDroppedCount());
+	}
+	
+	@Test
+	public void testDataSet_Command() {
+		RecordingTransmitter target = new RecordingTransmitter();
+		RedundancyFilter filter = new RedundancyFilter(target);
+		filter.send(new DataSet1(new Address(0x0F, 0x00, 0x10, 0x00), new byte[] { 0 }));
+		filter.send(new DataSet1(new Address(0x0F, 0x00, 0x10, 0x00), new byte[] { 0 }));
+		
+		assertEquals(2, target.messages.size());
+	}
+	
+	@Test
+	public void testDataSet_ControlChange() {
+		RecordingTransmitter target = new RecordingTransmitter();
+		RedundancyFilter filter = new RedundancyFilter(target);
+		filter.send(new ControlChangeMessage(0, 74, 10));
+		filter.send(new DataSet1(new Address(0x10, 0x00, 0x20, 0x22), new byte[] { 0x50 }));
+		filter.send(new ControlChangeMessage(0, 74, 10));
+		filter.receive(new DataSet1(new Address(0x10, 0x00, 0x20, 0x22), new byte[] { 0x60 }));
+		filter.send(new ControlChangeMessage(0, 74, 10));
+		filter.send(new ControlChangeMessage(1, 74, 10));
+		filter.send(new DataSet1(new Address(0x10, 0x00, 0x20, 0x22), new byte[] { 0x70 }));
+		filter.send(new ControlChangeMessage(1, 74, 10));
+		
+		assertEquals(6, target.messages.size());
+		assertEquals(1, filter.getDroppedCount());
+	}
+	
+	@Test
+	public void testDataSet_CommandReceived() {
+		RecordingTransmitter target = new RecordingTransmitter();
+		RedundancyFilter filter = new RedundancyFilter(target);
+		filter.send(new ControlChangeMessage(0, 74, 10));
+		filter.send(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 1 }));
+		filter.receive(new DataSet1(new Address(0x0F, 0x00, 0x10, 0x00), new byte[] { 0 }));
+		filter.send(new ControlChangeMessage(0, 74, 10));
+		filter.send(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 1 }));
+		
+		assertEquals(4, target.messages.size());
+		assertEquals(0, filter.getDroppedCount());
+	}
+	
+	@Test
+	public void testDataSet_CommandSent() {
+		RecordingTransmitter target = new RecordingTransmitter();
+		RedundancyFilter filter = new RedundancyFilter(target);
+		filter.send(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 1 }));
+		filter.send(new DataSet1(new Address(0x0F, 0x00, 0x10, 0x00), new byte[] { 0 }));
+		filter.send(new DataSet1(new Address(0x10, 0x00, 0x01, 0x00), new byte[] { 1 }));
+		
+		assertEquals(3, target.messages.size());
+	}
+	
+	@Test
+	public void testClear() {
+		RecordingTransmitter target = new RecordingTransmitter();
+		RedundancyFilter filter = new RedundancyFilter(target);
+		filter.send(new ControlChangeMessage(0, 74, 10));
+		filter.send(new DataSet1(new Address(0x01, 0x00, 0x00, 0x19), new byte[] { 1 }));
+		filter.clear();
+		filter.send(new ControlChangeMessage(0, 74, 10));
+		filter.send(new DataSet1(new Address(0x01, 0x00, 0x00, 0x19), new byte[] { 1 }));
+		
+		assertEquals(4, target.messages.size());
+	}
+	
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nl.grauw.gaia.Log;
+import nl.grauw.gaia.midi.messages.Message;
+
+import org.junit.Test;
+
+public class SocketMidiConnectionTest {
+	
+	@Test
+	public void testBridge() throws Exception {
+		TestConnection target = new TestConnection();
+		SocketMidiServer server = new SocketMidiServer(new Log(), target);
+		server.start(new InetSocketAddress("127.0.0.1", 0));
+		SocketMidiConnection connection = new SocketMidiConnection(new Log());
+		RecordingReceiver received = new RecordingReceiver();
+		connection.addMidiReceiver(received);
+		try {
+			connection.open("127.0.0.1", server.getPort());
+			
+			byte[] large = new byte[6000];
+			large[0] = (byte)0xF0;
+			large[large.length - 1] = (byte)0xF7;
+			List<Message> messages = Arrays.asList(
+				new Message(new byte[] { (byte)0xB0, 0x07, 0x64 }),
+				new Message(new byte[] { (byte)0xC0, 0x05 }),
+				new Message(large)
+			);
+			connection.send(messages);
+			assertEquals(3, target.sent.await(3).size());
+			for (int i = 0; i < messages.size(); i++)
+				assertArrayEquals(messages.get(i).getMessage(), target.sent.messages.get(i).getMessage());
+			
+			Message reply = new Message(new byte[] { (byte)0x90, 0x3C, 0x40 });
+			for (MidiReceiver receiver : target.receivers)
+				receiver.receive(reply);
+			assertEquals(1, received.await(1).size());
+			assertArrayEquals(reply.getMessage(), received.messages.get(0).getMessage());
+			
+			int bytes = 3 * 4 + 3 + 2 + large.length;
+			assertEquals(3, connection.getSent().getMessageCount());
+			assertEquals(bytes, connection.getSent().getByteCount());
+			assertEquals(3, server.getClient().getReceived().getMessageCount());
+			assertEquals(bytes, server.getClient().getReceived().getByteCount());
+			assertEquals(1, connection.getReceived().getMessageCount());
+			assertEquals(4 + 3, connection.getReceived().getByteCount());
+			assertTrue(connection.getSent().getByteRate() > 0);
+			assertTrue(connection.getWriteCount() <= 1);
+		} finally {
+			connection.close();
+			server.stop();
+		}
+		assertFalse(connection.isConnected());
+	}
+	
+	@Test
+	public void testRemoteClose() throws Exception {
+		TestConnection target = new TestConnection();
+		SocketMidiServer server = new SocketMidiServer(new Log(), target);
+		server.start(new InetSocketAddress("127.0.0.1", 0));
+		SocketMidiConnection connection = new SocketMidiConnection(new Log());
+		connection.open("127.0.0.1", server.getPort());
+		connection.send(new Message(new byte[] { (byte)0xC0, 0x05 }));
+		target.sent.await(1);
+		server.stop();
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		while (connection.isConnected() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertFalse(connection.isConnected());
+		try {
+			connection.send(new Message(new byte[] { (byte)0xC0, 0x06 }));
+			fail("Expected exception.");
+		} catch (RuntimeException e) {
+		}
+		connection.close();
+	}
+	
+	private static class RecordingReceiver implements MidiReceiver {
+		
+		private List<Message> messages = new ArrayList<Message>();
+		
+		@Override
+		public synchronized void receive(Message message) {
+			messages.add(message);
+			notifyAll();
+		}
+		
+		public synchronized List<Message> await(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (messages.size() < count && System.currentTimeMillis() < deadline)
+				wait(100);
+			return messages;
+		}
+		
+	}
+	
+	private static class TestConnection implements MidiConnection {
+		
+		private List<MidiReceiver> receivers = new ArrayList<MidiReceiver>();
+		private RecordingReceiver sent = new RecordingReceiver();
+		
+		@Override
+		public void addMidiReceiver(MidiReceiver receiver) {
+			receivers.add(receiver);
+		}
+		
+		@Override
+		public void removeMidiReceiver(MidiReceiver receiver) {
+			receivers.remove(receiver);
+		}
+		
+		@Override
+		public MidiTransmitter getMidiTransmitter() {
+			return new MidiTransmitter() {
+				@Override
+				public void send(Message message) {
+					sent.receive(message);
+				}
+				
+				@Override
+				public void send(List<Message> messages) {
+					for (Message message : messages)
+						sent.receive(message);
+				}
+			};
+		}
+		
+	}
+	
+}
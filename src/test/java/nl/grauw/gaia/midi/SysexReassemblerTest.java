@@ -0,0 +1,118 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nl.grauw.gaia.midi.MidiInputBuffer.MessageHandler;
+
+import org.junit.Test;
+
+public class SysexReassemblerTest {
+	
+	@Test
+	public void testComplete() {
+		RecordingHandler handler = new RecordingHandler();
+		SysexReassembler reassembler = new SysexReassembler(handler);
+		byte[] message = { (byte)0xF0, 0x41, 0x10, 0x12, (byte)0xF7 };
+		reassembler.handle(message, message.length, 5);
+		assertEquals(1, handler.messages.size());
+		assertSame(message, handler.arrays.get(0));
+		assertFalse(reassembler.isPending());
+	}
+	
+	@Test
+	public void testFragments() {
+		RecordingHandler handler = new RecordingHandler();
+		SysexReassembler reassembler = new SysexReassembler(handler);
+		reassembler.handle(new byte[] { (byte)0xF0, 0x41, 0x10 }, 3, 5);
+		assertTrue(reassembler.isPending());
+		reassembler.handle(new byte[] { (byte)0xF7, 0x11, 0x12 }, 3, 6);
+		reassembler.handle(new byte[] { (byte)0xF7, 0x13, (byte)0xF7 }, 3, 7);
+		assertEquals(1, handler.messages.size());
+		assertArrayEquals(new byte[] { (byte)0xF0, 0x41, 0x10, 0x11, 0x12, 0x13, (byte)0xF7 }, handler.messages.get(0));
+		assertEquals(Long.valueOf(5), handler.timeStamps.get(0));
+	}
+	
+	@Test
+	public void testFragments_Terminator() {
+		RecordingHandler handler = new RecordingHandler();
+		SysexReassembler reassembler = new SysexReassembler(handler);
+		reassembler.handle(new byte[] { (byte)0xF0, 0x41, 0x10 }, 3, -1);
+		reassembler.handle(new byte[] { (byte)0xF7 }, 1, -1);
+		assertArrayEquals(new byte[] { (byte)0xF0, 0x41, 0x10, (byte)0xF7 }, handler.messages.get(0));
+	}
+	
+	@Test
+	public void testRealtime() {
+		RecordingHandler handler = new RecordingHandler();
+		SysexReassembler reassembler = new SysexReassembler(handler);
+		reassembler.handle(new byte[] { (byte)0xF0, 0x41, (byte)0xFE, 0x10 }, 4, -1);
+		reassembler.handle(new byte[] { (byte)0xFE }, 1, -1);
+		reassembler.handle(new byte[] { (byte)0xF7, 0x11, (byte)0xF7 }, 3, -1);
+		assertEquals(3, handler.messages.size());
+		assertArrayEquals(new byte[] { (byte)0xFE }, handler.messages.get(0));
+		assertArrayEquals(new byte[] { (byte)0xFE }, handler.messages.get(1));
+		assertArrayEquals(new byte[] { (byte)0xF0, 0x41, 0x10, 0x11, (byte)0xF7 }, handler.messages.get(2));
+		assertEquals(0, reassembler.getTruncatedCount());
+	}
+	
+	@Test
+	public void testTruncated() {
+		RecordingHandler handler = new RecordingHandler();
+		SysexReassembler reassembler = new SysexReassembler(handler);
+		reassembler.handle(new byte[] { (byte)0xF0, 0x41, 0x10 }, 3, -1);
+		reassembler.handle(new byte[] { (byte)0xB0, 0x10, 0x20 }, 3, -1);
+		reassembler.handle(new byte[] { (byte)0xF0, 0x41 }, 2, -1);
+		reassembler.handle(new byte[] { (byte)0xF0, 0x42, (byte)0xF7 }, 3, -1);
+		assertEquals(2, reassembler.getTruncatedCount());
+		assertEquals(2, handler.messages.size());
+		assertArrayEquals(new byte[] { (byte)0xB0, 0x10, 0x20 }, handler.messages.get(0));
+		assertArrayEquals(new byte[] { (byte)0xF0, 0x42, (byte)0xF7 }, handler.messages.get(1));
+	}
+	
+	@Test
+	public void testMalformed() {
+		RecordingHandler handler = new RecordingHandler();
+		SysexReassembler reassembler = new SysexReassembler(handler, 4);
+		reassembler.handle(new byte[] { (byte)0xF7, 0x11, (byte)0xF7 }, 3, -1);
+		reassembler.handle(new byte[] { (byte)0xF0, 0x41, 0x10, 0x11, 0x12, (byte)0xF7 }, 6, -1);
+		reassembler.handle(new byte[] { (byte)0xF0, 0x41, (byte)0xF7 }, 3, -1);
+		assertEquals(2, reassembler.getMalformedCount());
+		assertEquals(1, handler.messages.size());
+		assertArrayEquals(new byte[] { (byte)0xF0, 0x41, (byte)0xF7 }, handler.messages.get(0));
+	}
+	
+	private static class RecordingHandler implements MessageHandler {
+		
+		public List<byte[]> messages = new ArrayList<byte[]>();
+		public List<byte[]> arrays = new ArrayList<byte[]>();
+		public List<Long> timeStamps = new ArrayList<Long>();
+		
+		@Override
+		public void handle(byte[] data, int length, long timeStamp) {
+			messages.add(Arrays.copyOf(data, length));
+			arrays.add(data);
+			timeStamps.add(timeStamp);
+		}
+		
+	}
+	
+}
@@ -17,6 +17,9 @@ package nl.grauw.gaia.midi.messages;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+
 import nl.grauw.gaia.Address;
 import nl.grauw.gaia.midi.messages.DataSet1;
 import nl.grauw.gaia.midi.messages.Message;
@@ -70,5 +73,42 @@ public class DataSet1Test {
 		DataSet1 mm = new DataSet1(new Address(0x01, 0x23, 0x45, 0x67), data);
 		assertArrayEquals(data, mm.getDataSet());
 	}
+	
+	@Test
+	public void testGetAddressValue() {
+		byte[] data = { 0x76, 0x54, 0x32, 0x10 };
+		DataSet1 mm = new DataSet1(new Address(0x01, 0x23, 0x45, 0x67), data);
+		assertEquals(new Address(0x01, 0x23, 0x45, 0x67).getValue(), mm.getAddressValue());
+		assertEquals(4, mm.getSize());
+	}
+	
+	@Test
+	public void testGetDataSetBuffer() {
+		byte[] data = { 0x76, 0x54, 0x32, 0x10 };
+		DataSet1 mm = new DataSet1(new Address(0x01, 0x23, 0x45, 0x67), data);
+		ByteBuffer buffer = mm.getDataSetBuffer();
+		assertTrue(buffer.isReadOnly());
+		assertEquals(4, buffer.remaining());
+		assertEquals(0x76, buffer.get(0));
+		assertEquals(0x10, buffer.get(3));
+		assertEquals(0x54, mm.getDataSet(1));
+	}
+	
+	@Test
+	public void testSplit() {
+		byte[] data = { 0x76, 0x54, 0x32, 0x10, 0x01 };
+		DataSet1 mm = new DataSet1(0x10, new Address(0x10, 0x00, 0x00, 0x7E), data);
+		List<DataSet1> parts = mm.split(2);
+		assertEquals(3, parts.size());
+		assertEquals(new Address(0x10, 0x00, 0x00, 0x7E), parts.get(0).getAddress());
+		assertEquals(new Address(0x10, 0x00, 0x01, 0x00), parts.get(1).getAddress());
+		assertEquals(new Address(0x10, 0x00, 0x01, 0x02), parts.get(2).getAddress());
+		assertArrayEquals(new byte[] { 0x76, 0x54 }, parts.get(0).getDataSet());
+		assertArrayEquals(new byte[] { 0x32, 0x10 }, parts.get(1).getDataSet());
+		assertArrayEquals(new byte[] { 0x01 }, parts.get(2).getDataSet());
+		assertEquals(0x10, parts.get(2).getDeviceId());
+		new DataSet1(parts.get(1).getMessage());
+		assertSame(mm, mm.split(5).get(0));
+	}
 
 }
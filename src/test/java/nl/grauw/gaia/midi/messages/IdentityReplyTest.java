@@ -0,0 +1,37 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.midi.messages;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class IdentityReplyTest {
+	
+	@Test
+	public void testIsGaia() {
+		IdentityReply reply = new IdentityReply(new byte[] { (byte)0xF0, 0x7E, 0x10, 0x06, 0x02, 0x41, 0x41, 0x02, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, (byte)0xF7 });
+		assertTrue(reply.isGaia());
+		assertEquals(0x10, reply.getDeviceId());
+	}
+	
+	@Test
+	public void testIsGaia_OtherDevice() {
+		IdentityReply reply = new IdentityReply(new byte[] { (byte)0xF0, 0x7E, 0x10, 0x06, 0x02, 0x41, 0x42, 0x02, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, (byte)0xF7 });
+		assertFalse(reply.isGaia());
+	}
+	
+}
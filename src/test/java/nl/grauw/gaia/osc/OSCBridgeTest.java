@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.osc;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.List;
+
+import nl.grauw.gaia.Address;
+import nl.grauw.gaia.Log;
+import nl.grauw.gaia.Patch;
+
+import org.junit.Test;
+
+public class OSCBridgeTest {
+	
+	@Test
+	public void testToPath() {
+		assertEquals("filter/cutoff", OSCBridge.toPath("FilterCutoff"));
+		assertEquals("lfo/pitch/depth", OSCBridge.toPath("LFOPitchDepth"));
+		assertEquals("osc/pitch", OSCBridge.toPath("OSCPitch"));
+	}
+	
+	@Test
+	public void testAddresses() {
+		List<String> addresses = new OSCBridge(new Log(), new Patch()).getAddresses();
+		assertTrue(addresses.contains("/gaia/temp/tone/1/filter/cutoff"));
+		assertTrue(addresses.contains("/gaia/temp/tone/3/lfo/pitch/depth"));
+		assertTrue(addresses.contains("/gaia/temp/common/patch/level"));
+		assertTrue(addresses.contains("/gaia/temp/delay/feedback"));
+		assertEquals(addresses.size(), new HashSet<String>(addresses).size());
+	}
+	
+	@Test
+	public void testReceive() throws Exception {
+		Patch patch = new Patch();
+		patch.updateParameters(new Address(0x10, 0x00, 0x01, 0x00), new byte[0x3E]);
+		OSCBridge bridge = new OSCBridge(new Log(), patch);
+		bridge.setUpdateInterval(60000);
+		bridge.start(new InetSocketAddress("127.0.0.1", 0));
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			send(socket, bridge, OSCParserTest.message("/gaia/temp/tone/1/filter/cutoff", ",i", 10));
+			send(socket, bridge, OSCParserTest.message("/gaia/temp/tone/1/filter/cutoff", ",i", 20));
+			send(socket, bridge, OSCParserTest.message("/gaia/temp/tone/1/filter/resonance", ",f", Float.floatToIntBits(1.0f)));
+			send(socket, bridge, OSCParserTest.message("/gaia/temp/tone/2/filter/cutoff", ",i", 30));
+			send(socket, bridge, OSCParserTest.message("/gaia/temp/unknown", ",i", 30));
+			send(socket, bridge, new byte[] { '/', 'x', 'y', 'z' });
+			
+			long deadline = System.currentTimeMillis() + 5000;
+			while (bridge.getReceivedCount() + bridge.getMalformedCount() < 6 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(5, bridge.getReceivedCount());
+			assertEquals(1, bridge.getUnmatchedCount());
+			assertEquals(1, bridge.getMalformedCount());
+			assertEquals(1, bridge.getCoalescedCount());
+			
+			bridge.flush();
+			assertEquals(20, patch.getTone(1).getFilterCutoff().getValue());
+			assertEquals(127, patch.getTone(1).getFilterResonance().getValue());
+			assertEquals(2, bridge.getAppliedCount());
+			assertTrue(patch.getTone(1).hasChanged());
+		} finally {
+			socket.close();
+			bridge.stop();
+		}
+	}
+	
+	private static void send(DatagramSocket socket, OSCBridge bridge, byte[] packet) throws Exception {
+		socket.send(new DatagramPacket(packet, packet.length, InetAddress.getByName("127.0.0.1"), bridge.getPort()));
+	}
+	
+}
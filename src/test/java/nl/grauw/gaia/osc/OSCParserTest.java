@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010 Laurens Holst
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.grauw.gaia.osc;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class OSCParserTest {
+	
+	@Test
+	public void testParse_Int() {
+		byte[] packet = message("/gaia/test", ",i", 42);
+		List<String> messages = parse(packet, true);
+		assertEquals(1, messages.size());
+		assertEquals("/gaia/test i 42", messages.get(0));
+	}
+	
+	@Test
+	public void testParse_Float() {
+		byte[] packet = message("/a", ",f", Float.floatToIntBits(0.5f));
+		List<String> messages = parse(packet, true);
+		assertEquals("/a f 0.5", messages.get(0));
+	}
+	
+	@Test
+	public void testParse_NoArguments() {
+		byte[] packet = message("/a", ",");
+		assertEquals(0, parse(packet, true).size());
+	}
+	
+	@Test
+	public void testParse_Bundle() {
+		byte[] first = message("/one", ",i", 1);
+		byte[] second = message("/two", ",T");
+		ByteBuffer buffer = ByteBuffer.allocate(16 + 4 + first.length + 4 + second.length);
+		buffer.put("#bundle\0".getBytes(StandardCharsets.US_ASCII));
+		buffer.putLong(1);
+		buffer.putInt(first.length).put(first);
+		buffer.putInt(second.length).put(second);
+		
+		List<String> messages = parse(buffer.array(), true);
+		assertEquals(2, messages.size());
+		assertEquals("/one i 1", messages.get(0));
+		assertEquals("/two i 1", messages.get(1));
+	}
+	
+	@Test
+	public void testParse_Malformed() {
+		byte[] packet = message("/a", ",i", 1);
+		byte[] truncated = new byte[packet.length - 4];
+		System.arraycopy(packet, 0, truncated, 0, truncated.length);
+		assertEquals(0, parse(truncated, false).size());
+		assertEquals(0, parse(new byte[] { 'a', 0, 0, 0 }, false).size());
+		assertEquals(0, parse(new byte[] { '/', 'a', 'b', 'c' }, false).size());
+	}
+	
+	private static List<String> parse(byte[] packet, boolean valid) {
+		final List<String> messages = new ArrayList<String>();
+		boolean result = new OSCParser().parse(packet, 0, packet.length, new OSCParser.Handler() {
+			public void handle(byte[] data, int addressOffset, int addressLength, boolean isFloat, int intValue, float floatValue) {
+				String address = new String(data, addressOffset, addressLength, StandardCharsets.US_ASCII);
+				messages.add(address + (isFloat ? " f " + floatValue : " i " + intValue));
+			}
+		});
+		assertEquals(valid, result);
+		return messages;
+	}
+	
+	static byte[] message(String address, String tags, int... arguments) {
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		putString(buffer, address);
+		putString(buffer, tags);
+		for (int argument : arguments)
+			buffer.putInt(argument);
+		byte[] packet = new byte[buffer.position()];
+		buffer.flip();
+		buffer.get(packet);
+		return packet;
+	}
+	
+	private static void putString(ByteBuffer buffer, String string) {
+		buffer.put(string.getBytes(StandardCharsets.US_ASCII));
+		buffer.put((byte) 0);
+		while (buffer.position() % 4 != 0)
+			buffer.put((byte) 0);
+	}
+	
+}
@@ -63,6 +63,55 @@ public class ToneTest {
 		assertEquals(2, tone.getToneNumber());
 	}
 
+	@Test
+	public void testGetControlChange() {
+		Tone ptp = createTestParameters();
+		assertControlChange(0, Controller.TONE_1_FILTER_CUTOFF, 0x7B, ptp.getControlChange(0, 0x0C));
+		assertControlChange(0, Controller.TONE_1_OSC_PITCH, 127, ptp.getControlChange(0, 0x03));
+		assertControlChange(0, Controller.TONE_1_OSC_DETUNE, 2, ptp.getControlChange(0, 0x04));
+		assertControlChange(0, Controller.TONE_1_FILTER_KEY_FOLLOW, 6, ptp.getControlChange(0, 0x0D));
+		assertControlChange(0, Controller.TONE_1_LFO_RATE, 115, ptp.getControlChange(0, 0x1F));
+		assertNull(ptp.getControlChange(0, 0x1D));
+		assertNull(ptp.getControlChange(0, 0x00));
+		assertNull(ptp.getControlChange(0, 0x3D));
+		
+		ptp.setValue(0x03, 39);
+		assertNull(ptp.getControlChange(0, 0x03));
+		ptp.setValue(0x22, 0);
+		assertNull(ptp.getControlChange(0, 0x22));
+		ptp.setValue(0x22, 1);
+		assertControlChange(0, Controller.TONE_1_LFO_PITCH_DEPTH, 1, ptp.getControlChange(0, 0x22));
+		
+		Tone tone3 = createTestParameters(3);
+		assertControlChange(2, Controller.TONE_3_FILTER_CUTOFF, 0x7B, tone3.getControlChange(2, 0x0C));
+	}
+	
+	@Test
+	public void testGetControlChangeInverse() {
+		for (int tempoSync = 0; tempoSync <= 1; tempoSync++) {
+			for (int offset = 0; offset < 0x3E; offset++) {
+				for (int value = 0; value < 128; value++) {
+					Tone ptp = createTestParameters();
+					ptp.setValue(0x1E, tempoSync);
+					ptp.setValue(offset, value);
+					ControlChangeMessage message = ptp.getControlChange(0, offset);
+					if (message != null) {
+						ptp.setValue(offset, offset == 0x1E ? tempoSync : 0);
+						ptp.updateParameters(message);
+						assertEquals(value, ptp.getValue(offset));
+					}
+				}
+			}
+		}
+	}
+	
+	private static void assertControlChange(int channel, Controller controller, int value, ControlChangeMessage message) {
+		assertNotNull(message);
+		assertEquals(channel, message.getChannel());
+		assertEquals(controller, message.getController());
+		assertEquals(value, message.getValue());
+	}
+	
 	@Test
 	public void testGetOSCWave() {
 		Tone ptp = createTestParameters();